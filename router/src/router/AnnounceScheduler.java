@@ -0,0 +1,245 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * AnnounceScheduler.java
+ *
+ * Schedules the periodic and triggered announcements
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Schedules the announcements sent to the neighbours:
+ *  - the periodic announcement runs with a random jitter around the period,
+ *    so that routers started together do not stay synchronized;
+ *  - triggered updates are paced per neighbour: a neighbour does not
+ *    receive two announcements closer than the minimum spacing; the update
+ *    is deferred to the end of the spacing, and merged with later ones.
+ *
+ * Must be used from the control executor; the callbacks also run there.
+ */
+public class AnnounceScheduler {
+
+    /**
+     * Pacing state of one neighbour
+     */
+    private static final class Pace {
+        /** Time of the last announcement sent [ns] */
+        long last = Long.MIN_VALUE;
+        /** Deferred triggered update, or null */
+        TimingWheel.Timeout deferred;
+    }
+
+    /** Control plane executor */
+    private final Executor control;
+    /** Shared timing wheel */
+    private final TimingWheel timers;
+    /** Announcement period [ms] */
+    private final long period;
+    /** Jitter, as a fraction of the period */
+    private final double jitter;
+    /** Minimum spacing between announcements to a neighbour [ns] */
+    private final long spacing;
+    /** Random generator used for the jitter */
+    private final Random rnd;
+    /** Periodic announcement */
+    private final Runnable periodic;
+    /** Sends a deferred triggered update to a neighbour */
+    private final Consumer<Neighbour> send_deferred;
+
+    /** Pacing state of each neighbour */
+    private final HashMap<Character, Pace> paces = new HashMap<>();
+    /** Timeout of the next periodic announcement, or null */
+    private TimingWheel.Timeout timer;
+    /**
+     * Incremented when the periodic timer is restarted; older timeouts that
+     * already fired are ignored
+     */
+    private int gen;
+    /** False after stop() */
+    private boolean running = true;
+
+    /* Statistics counters */
+    private long triggered;
+    private long deferred;
+    private long merged;
+
+    /**
+     * Constructor
+     *
+     * @param control control plane executor
+     * @param timers shared timing wheel
+     * @param period_ms announcement period [ms]
+     * @param jitter jitter of the period, as a fraction (0 to 1)
+     * @param spacing_ms minimum spacing between announcements to the same
+     *      neighbour [ms]
+     * @param rnd random generator
+     * @param periodic periodic announcement
+     * @param send_deferred sends a deferred triggered update to a neighbour
+     */
+    public AnnounceScheduler(Executor control, TimingWheel timers, long period_ms,
+            double jitter, int spacing_ms, Random rnd, Runnable periodic,
+            Consumer<Neighbour> send_deferred) {
+        this.control = control;
+        this.timers = timers;
+        this.period = period_ms;
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        this.spacing = TimeUnit.MILLISECONDS.toNanos(spacing_ms);
+        this.rnd = rnd;
+        this.periodic = periodic;
+        this.send_deferred = send_deferred;
+    }
+
+    /**
+     * Start the periodic announcements; the first one is sent after a
+     * random delay up to the jitter
+     */
+    public void start() {
+        schedule((long) (period * jitter * rnd.nextDouble()));
+    }
+
+    /**
+     * Restart the periodic announcements after an announcement sent now
+     */
+    public void reset() {
+        cancel_periodic();
+        schedule(next_interval());
+    }
+
+    /**
+     * Stop all the announcements
+     */
+    public void stop() {
+        running = false;
+        cancel_periodic();
+        for (Pace p : paces.values()) {
+            if (p.deferred != null)
+                p.deferred.cancel();
+        }
+        paces.clear();
+    }
+
+    /**
+     * Record an announcement sent to a neighbour
+     *
+     * @param n neighbour name
+     */
+    public void sent(char n) {
+        Pace p = paces.computeIfAbsent(n, k -> new Pace());
+        p.last = timers.clock().nanos();
+    }
+
+    /**
+     * Request a triggered update to a neighbour
+     *
+     * @param n neighbour
+     * @return true if it may be sent now; otherwise it is deferred to the
+     *      end of the spacing, and sent by send_deferred
+     */
+    public boolean trigger(Neighbour n) {
+        triggered++;
+        Pace p = paces.computeIfAbsent(n.Name(), k -> new Pace());
+        if (p.deferred != null) {
+            merged++;     // Merged with the update already deferred
+            return false;
+        }
+        long wait = p.last + spacing - timers.clock().nanos();
+        if ((p.last == Long.MIN_VALUE) || (wait <= 0))
+            return true;
+        deferred++;
+        p.deferred = timers.schedule(() -> submit(() -> {
+            p.deferred = null;
+            if (running)
+                send_deferred.accept(n);
+        }), wait, TimeUnit.NANOSECONDS);
+        return false;
+    }
+
+    /**
+     * Forget the neighbours not in a set
+     *
+     * @param names names of the current neighbours
+     */
+    public void retain(Set<Character> names) {
+        paces.keySet().retainAll(names);
+    }
+
+    /**
+     * Return the next periodic interval, with jitter
+     *
+     * @return interval [ms]
+     */
+    private long next_interval() {
+        return (long) (period * (1 - jitter + 2 * jitter * rnd.nextDouble()));
+    }
+
+    /**
+     * Schedule the next periodic announcement
+     *
+     * @param delay delay [ms]
+     */
+    private void schedule(long delay) {
+        int g = ++gen;
+        timer = timers.schedule(() -> submit(() -> run_periodic(g)),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand a task to the control executor
+     *
+     * @param task task to run
+     */
+    private void submit(Runnable task) {
+        try {
+            control.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    /**
+     * Run the periodic announcement and schedule the next one
+     *
+     * @param g periodic timer generation
+     */
+    private void run_periodic(int g) {
+        if (!running || (g != gen))
+            return;     // Stopped or restarted
+        periodic.run();
+        if (running && (g == gen))
+            schedule(next_interval());
+    }
+
+    /**
+     * Cancel the periodic timer
+     */
+    private void cancel_periodic() {
+        gen++;
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Return a string with the counters
+     *
+     * @return string with the number of triggered, deferred and merged
+     *      updates
+     */
+    public String statistics() {
+        return "Triggered updates:" + triggered + " deferred:" + deferred
+                + " merged:" + merged;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * AsyncLog.java
+ *
+ * Asynchronous Log implementation
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log implementation that never blocks the caller: messages are stored in a
+ * bounded lock-free ring buffer and written to the sink Log by one
+ * background thread. When the ring is full, messages are dropped and counted.
+ */
+public class AsyncLog implements Log {
+    /** Maximum time the writer thread sleeps without checking the ring [ns] */
+    private final static long IDLE_WAIT = 100000000L;
+
+    /** Where the messages are written */
+    private final Log sink;
+    /** Ring slots */
+    private final String[] items;
+    /** Sequence number of each slot */
+    private final AtomicLongArray seqs;
+    /** Ring size - 1; the size is a power of two */
+    private final int mask;
+    /** Next position to write */
+    private final AtomicLong tail = new AtomicLong();
+    /** Next position to read; only used by the writer thread */
+    private long head;
+    /** Number of messages dropped because the ring was full */
+    private final AtomicLong dropped = new AtomicLong();
+    /** Dropped messages already reported */
+    private long dropped_reported;
+    /** Writer thread */
+    private final Thread writer;
+    /** True while the writer thread is parked waiting for messages */
+    private volatile boolean waiting;
+    /** False after close() */
+    private volatile boolean running = true;
+
+    /**
+     * Constructor - create the ring and start the writer thread
+     *
+     * @param sink Log object where messages are written
+     * @param capacity minimum number of messages held in the ring
+     */
+    public AsyncLog(Log sink, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.sink = sink;
+        this.items = new String[size];
+        this.seqs = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            seqs.set(i, i);
+        }
+        writer = new Thread(this::run, "router-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a message; never blocks
+     *
+     * @param s string to print
+     */
+    @Override
+    public void Log(String s) {
+        long t;
+        int idx;
+        while (true) {
+            t = tail.get();
+            idx = (int) t & mask;
+            long dif = seqs.get(idx) - t;
+            if (dif == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (dif < 0) {
+                // Ring full
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        items[idx] = s;
+        seqs.set(idx, t + 1);
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Return the number of messages dropped because the ring was full
+     *
+     * @return number of messages
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Write the queued messages and stop the writer thread
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(IDLE_WAIT / 1000000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Remove the next message from the ring
+     *
+     * @return the message, or null if the ring is empty
+     */
+    private String poll() {
+        int idx = (int) head & mask;
+        if (seqs.get(idx) != head + 1) {
+            return null;
+        }
+        String s = items[idx];
+        items[idx] = null;
+        seqs.lazySet(idx, head + items.length);
+        head++;
+        return s;
+    }
+
+    /**
+     * Writer thread main function: writes the messages in batches
+     */
+    private void run() {
+        StringBuilder batch = new StringBuilder();
+        while (true) {
+            String s;
+            while ((batch.length() < 8192) && ((s = poll()) != null)) {
+                batch.append(s);
+            }
+            long d = dropped.get();
+            if (d != dropped_reported) {
+                batch.append("[log: ").append(d - dropped_reported)
+                        .append(" messages dropped]\n");
+                dropped_reported = d;
+            }
+            if (batch.length() > 0) {
+                sink.Log(batch.toString());
+                batch.setLength(0);
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+            waiting = true;
+            if ((s = poll()) != null) {
+                batch.append(s);
+            } else {
+                LockSupport.parkNanos(this, IDLE_WAIT);
+            }
+            waiting = false;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * DistanceVector.java
+ *
+ * Incremental distance vector calculation
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.*;
+
+/**
+ * Keeps the last vector and link distance seen from each neighbour, and
+ * computes routes incrementally: only the destinations whose reported
+ * distance changed are recalculated.
+ */
+public class DistanceVector {
+
+    /**
+     * State last seen from one neighbour
+     */
+    private static final class NeighbourState {
+        /** Neighbour name */
+        final char name;
+        /** Distance to the neighbour */
+        int link;
+        /** Vector received (same object as in the Neighbour) */
+        Entry[] vec;
+        /** Distance reported to each destination, including the neighbour */
+        HashMap<Character, Integer> reported;
+
+        NeighbourState(char name) {
+            this.name = name;
+            this.link = -1;
+            this.vec = null;
+            this.reported = new HashMap<>();
+            this.reported.put(name, 0);
+        }
+    }
+
+    /** State of each neighbour */
+    private final HashMap<Character, NeighbourState> state;
+    /** Log object */
+    private final Log log;
+
+    /**
+     * Constructor
+     *
+     * @param log Log object
+     */
+    public DistanceVector(Log log) {
+        this.state = new HashMap<>();
+        this.log = log;
+    }
+
+    /**
+     * Compare the neighbours with the state last seen and return the
+     * destinations whose routes may have changed
+     *
+     * @param neighbours current neighbours
+     * @return set with the affected destinations
+     */
+    public Set<Character> sync(Collection<Neighbour> neighbours) {
+        Set<Character> affected = new TreeSet<>();
+        Set<Character> seen = new HashSet<>();
+        for (Neighbour n : neighbours) {
+            if (!n.is_valid()) {
+                continue;
+            }
+            seen.add(n.Name());
+            NeighbourState st = state.get(n.Name());
+            if (st == null) {
+                st = new NeighbourState(n.Name());
+                state.put(n.Name(), st);
+            }
+            if (st.link != n.Dist()) {
+                // Every destination through the neighbour is affected
+                affected.addAll(st.reported.keySet());
+                st.link = n.Dist();
+            }
+            Entry[] vec = n.Vec();
+            if (st.vec != vec) {
+                diff(st, vec, affected);
+            }
+        }
+        Iterator<NeighbourState> it = state.values().iterator();
+        while (it.hasNext()) {
+            NeighbourState st = it.next();
+            if (!seen.contains(st.name)) {
+                affected.addAll(st.reported.keySet());
+                it.remove();
+            }
+        }
+        return affected;
+    }
+
+    /**
+     * Replace the vector of a neighbour, adding to affected the destinations
+     * with a different reported distance
+     *
+     * @param st neighbour state
+     * @param vec new vector, or null if the neighbour has no valid vector
+     * @param affected set where the changed destinations are added
+     */
+    private void diff(NeighbourState st, Entry[] vec, Set<Character> affected) {
+        HashMap<Character, Integer> reported = new HashMap<>();
+        reported.put(st.name, 0);
+        if (vec != null) {
+            for (Entry e : vec) {
+                if (e.dest != st.name) {
+                    reported.put(e.dest, e.dist);
+                }
+            }
+        }
+        for (Map.Entry<Character, Integer> e : reported.entrySet()) {
+            if (!e.getValue().equals(st.reported.get(e.getKey()))) {
+                affected.add(e.getKey());
+            }
+        }
+        for (Character dest : st.reported.keySet()) {
+            if (!reported.containsKey(dest)) {
+                affected.add(dest);
+            }
+        }
+        st.vec = vec;
+        st.reported = reported;
+    }
+
+    /**
+     * Calculate the best route to a destination with the state last seen
+     *
+     * @param dest destination address
+     * @param cur current route, preferred when there is a tie, or null
+     * @return the best route, or null if no neighbour reports a distance
+     *          lower than RouterNode.MAX_DISTANCE
+     */
+    public RouteEntry best_route(char dest, RouteEntry cur) {
+        return feasible_route(dest, cur, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Calculate the best route to a destination through the feasible
+     * successors: the neighbours whose reported distance is lower than the
+     * feasible distance. These routes cannot create a loop.
+     *
+     * Up to RouterNode.MAX_ECMP neighbours with the same best distance are
+     * kept as equal cost next hops.
+     *
+     * @param dest destination address
+     * @param cur current route, preferred when there is a tie, or null
+     * @param fd feasible distance
+     * @return the best feasible route, or null if there is none
+     */
+    public RouteEntry feasible_route(char dest, RouteEntry cur, int fd) {
+        int best = RouterNode.MAX_DISTANCE;
+        char[] hops = new char[state.size()];
+        int n = 0;
+        for (NeighbourState st : state.values()) {
+            Integer r = st.reported.get(dest);
+            if ((r == null) || (r >= fd)) {
+                continue;
+            }
+            int dist = st.link + r;
+            if (dist >= RouterNode.MAX_DISTANCE) {
+                // Infinite distance: the neighbour has no route
+                continue;
+            }
+            if (dist < best) {
+                best = dist;
+                n = 0;
+            }
+            if (dist == best) {
+                hops[n++] = st.name;
+            }
+        }
+        if (n == 0)
+            return null;
+        Arrays.sort(hops, 0, n);
+        // The current next hop stays the primary one, and is kept among the
+        //   equal cost next hops
+        char cur_hop = (cur == null) ? ' ' : cur.next_hop;
+        char primary = hops[0];
+        for (int i = 0; i < n; i++) {
+            if (hops[i] == cur_hop) {
+                primary = cur_hop;
+                if (i >= RouterNode.MAX_ECMP) {
+                    hops[RouterNode.MAX_ECMP - 1] = cur_hop;
+                    Arrays.sort(hops, 0, RouterNode.MAX_ECMP);
+                }
+                break;
+            }
+        }
+        RouteEntry re = new RouteEntry(dest, primary, best, log);
+        n = Math.min(n, RouterNode.MAX_ECMP);
+        if (n > 1)
+            re.next_hops = Arrays.copyOf(hops, n);
+        return re;
+    }
+
+    /**
+     * Forget all neighbour state
+     */
+    public void clear() {
+        state.clear();
+    }
+}
@@ -83,7 +83,7 @@ public class Entry {
      */
     @Override
     public String toString() {
-        return "("+dest+" , "+dist+")";
+        return "("+NodeId.str(dest)+" , "+dist+")";
     }
     
     /**
@@ -147,11 +147,11 @@ public class Entry {
      */
     public final void readEntry(DataInputStream dis) throws java.io.IOException {
         dest= dis.readChar();
-        if (!Character.isUpperCase(dest)) {
+        if (!NodeId.is_valid(dest)) {
             throw new IOException("Invalid address '"+dest+"'");
         }            
         dist= dis.readInt();
-        if ((dist<0) || (dist>Router.MAX_DISTANCE)) {
+        if ((dist<0) || (dist>RouterNode.MAX_DISTANCE)) {
             throw new IOException("Invalid distance '"+dist+"'");
         }
     }
@@ -0,0 +1,428 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * LinkState.java
+ *
+ * Link state database and shortest path calculation
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the link state advertisements (LSA) received from every router and
+ * calculates the shortest path tree rooted at the local router (Dijkstra).
+ *
+ * A link is only used if both ends announce it. The changes to the links
+ * are recorded as the LSAs are installed; spf() recalculates only the part
+ * of the tree reached by links that got shorter, and runs the full
+ * calculation when a link in the tree got longer or disappeared.
+ *
+ * Only used by the control executor.
+ */
+public class LinkState {
+
+    /**
+     * Link state advertisement
+     */
+    public static final class Lsa {
+        /** Router that originated the LSA */
+        public final char origin;
+        /** Sequence number */
+        public final int seq;
+        /** Links of the origin: neighbour and distance */
+        public final Entry[] links;
+        /** TTL [s] */
+        public final int TTL;
+        /** Time when the LSA expires [ns] */
+        final long expires;
+
+        Lsa(char origin, int seq, Entry[] links, int TTL, long now) {
+            this.origin = origin;
+            this.seq = seq;
+            this.links = links;
+            this.TTL = TTL;
+            this.expires = now + TimeUnit.SECONDS.toNanos(TTL);
+        }
+
+        /**
+         * Return the distance of the link to a neighbour
+         * @param n neighbour name
+         * @return the distance, or -1 if there is no link
+         */
+        int cost(char n) {
+            for (Entry e : links) {
+                if (e.dest == n)
+                    return e.dist;
+            }
+            return -1;
+        }
+    }
+
+    /** Result of installing an LSA */
+    public enum Status { NEWER, SAME, OLDER }
+
+    /** Infinite distance */
+    private final static int INF = Integer.MAX_VALUE;
+
+    /** Local address name */
+    private final char local_name;
+    /** Log object */
+    private final Log log;
+    /** Time source of the LSA expiration */
+    private final TimingWheel.Clock clock;
+    /** Link state database */
+    private final HashMap<Character, Lsa> db = new HashMap<>();
+    /** Sequence number of the last local LSA */
+    private int local_seq;
+
+    /** Distance to each reachable router */
+    private final HashMap<Character, Integer> dist = new HashMap<>();
+    /** Previous router in the path to each reachable router */
+    private final HashMap<Character, Character> parent = new HashMap<>();
+    /** Next hop to each reachable router */
+    private final HashMap<Character, Character> first = new HashMap<>();
+    /** Link changes since the last spf(): from, to, old and new distance */
+    private final ArrayList<int[]> pending = new ArrayList<>();
+    /** True if the next spf() must recalculate the full tree */
+    private boolean full_needed = true;
+
+    /* Statistics counters */
+    private long full_runs;
+    private long incremental_runs;
+
+    /**
+     * Constructor
+     *
+     * @param local_name local address
+     * @param log Log object
+     * @param clock time source, shared with the timers
+     */
+    public LinkState(char local_name, Log log, TimingWheel.Clock clock) {
+        this.local_name = local_name;
+        this.log = log;
+        this.clock = clock;
+    }
+
+    /**
+     * Create a new local LSA if the local links changed
+     *
+     * @param links local links, or null if there are none
+     * @param TTL TTL of the LSA [s]
+     * @param force if true, a new LSA is created even without changes
+     * @return the new LSA, or null if the links did not change
+     */
+    public Lsa originate(Entry[] links, int TTL, boolean force) {
+        if (links == null)
+            links = new Entry[0];
+        Lsa cur = db.get(local_name);
+        if (!force && (cur != null) && same_links(cur.links, links))
+            return null;
+        Lsa lsa = new Lsa(local_name, ++local_seq, links, TTL, clock.nanos());
+        replace(cur, lsa);
+        return lsa;
+    }
+
+    /**
+     * Install an LSA received from the network
+     *
+     * A copy of the local LSA newer than the last one originated (e.g. from
+     * before a restart) is not installed: the sequence number jumps after
+     * it, NEWER is returned, and a new local LSA must be originated.
+     *
+     * @param origin router that originated the LSA
+     * @param seq sequence number
+     * @param links links of the origin
+     * @param TTL TTL of the LSA [s]
+     * @return NEWER if it was installed, SAME or OLDER otherwise
+     */
+    public Status install(char origin, int seq, Entry[] links, int TTL) {
+        if (origin == local_name) {
+            int dif = seq - local_seq;
+            if (dif > 0)
+                local_seq = seq;
+            return (dif > 0) ? Status.NEWER : ((dif == 0) ? Status.SAME : Status.OLDER);
+        }
+        Lsa cur = db.get(origin);
+        if (cur != null) {
+            int dif = seq - cur.seq;
+            if (dif < 0)
+                return Status.OLDER;
+            if (dif == 0)
+                return Status.SAME;
+        }
+        replace(cur, new Lsa(origin, seq, links, TTL, clock.nanos()));
+        return Status.NEWER;
+    }
+
+    /**
+     * Return the LSA of a router
+     *
+     * @param origin router name
+     * @return the LSA, or null if not known
+     */
+    public Lsa get(char origin) {
+        return db.get(origin);
+    }
+
+    /**
+     * Return all the LSAs in the database
+     *
+     * @return collection with the LSAs
+     */
+    public Collection<Lsa> lsas() {
+        return db.values();
+    }
+
+    /**
+     * Remove the LSAs whose TTL ended; the local LSA never expires
+     *
+     * @return true if any LSA was removed
+     */
+    public boolean expire() {
+        long now = clock.nanos();
+        boolean removed = false;
+        Iterator<Lsa> it = db.values().iterator();
+        while (it.hasNext()) {
+            Lsa lsa = it.next();
+            if ((lsa.origin != local_name) && (lsa.expires - now < 0)) {
+                log.Log(Log.Level.DEBUG, "LSA(%s) expired\n", lsa.origin);
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed)
+            full_needed = true;
+        return removed;
+    }
+
+    /**
+     * Replace an LSA in the database, recording the link changes
+     *
+     * @param cur LSA replaced, or null
+     * @param lsa new LSA
+     */
+    private void replace(Lsa cur, Lsa lsa) {
+        char u = lsa.origin;
+        Set<Character> ends = new HashSet<>();
+        if (cur != null) {
+            for (Entry e : cur.links)
+                ends.add(e.dest);
+        }
+        for (Entry e : lsa.links)
+            ends.add(e.dest);
+        // Effective distances before the change
+        int[][] before = new int[ends.size()][];
+        int i = 0;
+        for (char v : ends) {
+            before[i++] = new int[] { v, cost(u, v), cost(v, u) };
+        }
+        db.put(u, lsa);
+        for (int[] b : before) {
+            char v = (char) b[0];
+            int uv = cost(u, v);
+            int vu = cost(v, u);
+            if (uv != b[1])
+                pending.add(new int[] { u, v, b[1], uv });
+            if (vu != b[2])
+                pending.add(new int[] { v, u, b[2], vu });
+        }
+    }
+
+    /**
+     * Return the distance of the link from a router to another; the link is
+     * only valid if both announce it
+     *
+     * @param from first router
+     * @param to second router
+     * @return the distance, or INF if the link is not valid
+     */
+    private int cost(char from, char to) {
+        Lsa a = db.get(from);
+        Lsa b = db.get(to);
+        if ((a == null) || (b == null) || (b.cost(from) < 0))
+            return INF;
+        int c = a.cost(to);
+        return (c < 0) ? INF : c;
+    }
+
+    /**
+     * Recalculate the shortest path tree
+     *
+     * @return destinations whose distance or next hop changed
+     */
+    public Set<Character> spf() {
+        Set<Character> changed = new TreeSet<>();
+        if (!full_needed) {
+            for (int[] p : pending) {
+                if ((p[3] > p[2]) && (parent.get((char) p[1]) != null)
+                        && (parent.get((char) p[1]) == (char) p[0])) {
+                    full_needed = true;     // A link in the tree got longer
+                    break;
+                }
+            }
+        }
+        if (full_needed) {
+            full_spf(changed);
+        } else if (!pending.isEmpty()) {
+            incremental_spf(changed);
+        }
+        pending.clear();
+        full_needed = false;
+        return changed;
+    }
+
+    /**
+     * Calculate the full shortest path tree
+     *
+     * @param changed set where the changed destinations are added
+     */
+    private void full_spf(Set<Character> changed) {
+        full_runs++;
+        HashMap<Character, Integer> old_dist = new HashMap<>(dist);
+        HashMap<Character, Character> old_first = new HashMap<>(first);
+        dist.clear();
+        parent.clear();
+        first.clear();
+        dist.put(local_name, 0);
+        PriorityQueue<int[]> queue = new PriorityQueue<>((a, b) -> Integer.compare(a[1], b[1]));
+        queue.add(new int[] { local_name, 0 });
+        dijkstra(queue, null);
+        for (Character d : old_dist.keySet()) {
+            if (!dist.containsKey(d))
+                changed.add(d);
+        }
+        for (Character d : dist.keySet()) {
+            if (!dist.get(d).equals(old_dist.get(d)) || !Objects.equals(first.get(d), old_first.get(d)))
+                changed.add(d);
+        }
+        changed.remove(local_name);
+    }
+
+    /**
+     * Update the shortest path tree after links got shorter or were added
+     *
+     * @param changed set where the changed destinations are added
+     */
+    private void incremental_spf(Set<Character> changed) {
+        incremental_runs++;
+        PriorityQueue<int[]> queue = new PriorityQueue<>((a, b) -> Integer.compare(a[1], b[1]));
+        for (int[] p : pending) {
+            char x = (char) p[0];
+            char y = (char) p[1];
+            Integer dx = dist.get(x);
+            if ((p[3] >= p[2]) || (dx == null) || (p[3] == INF))
+                continue;
+            relax(x, y, dx + p[3], queue, changed);
+        }
+        dijkstra(queue, changed);
+    }
+
+    /**
+     * Run Dijkstra from the routers in the queue
+     *
+     * @param queue queue with {router, distance}
+     * @param changed set where the changed destinations are added, or null
+     */
+    private void dijkstra(PriorityQueue<int[]> queue, Set<Character> changed) {
+        while (!queue.isEmpty()) {
+            int[] q = queue.poll();
+            char u = (char) q[0];
+            if (q[1] > dist.get(u))
+                continue;   // Old queue element
+            Lsa lsa = db.get(u);
+            if (lsa == null)
+                continue;
+            for (Entry e : lsa.links) {
+                int c = cost(u, e.dest);
+                if (c != INF)
+                    relax(u, e.dest, q[1] + c, queue, changed);
+            }
+        }
+    }
+
+    /**
+     * Use the link from u to v if it gives a shorter path to v
+     *
+     * @param u previous router
+     * @param v router reached
+     * @param d distance to v through u
+     * @param queue Dijkstra queue
+     * @param changed set where the changed destinations are added, or null
+     */
+    private void relax(char u, char v, int d, PriorityQueue<int[]> queue, Set<Character> changed) {
+        Integer dv = dist.get(v);
+        if ((dv != null) && (d >= dv))
+            return;
+        dist.put(v, d);
+        parent.put(v, u);
+        first.put(v, (u == local_name) ? v : first.get(u));
+        queue.add(new int[] { v, d });
+        if (changed != null)
+            changed.add(v);
+    }
+
+    /**
+     * Return the route to a destination from the last spf()
+     *
+     * @param dest destination address
+     * @return the route, or null if the destination is not reachable
+     */
+    public RouteEntry route(char dest) {
+        Integer d = dist.get(dest);
+        if ((d == null) || (dest == local_name))
+            return null;
+        return new RouteEntry(dest, first.get(dest), d, log);
+    }
+
+    /**
+     * Forget all the state
+     */
+    public void clear() {
+        db.clear();
+        dist.clear();
+        parent.clear();
+        first.clear();
+        pending.clear();
+        full_needed = true;
+    }
+
+    /**
+     * Return a string with the counters
+     *
+     * @return string with the number of runs
+     */
+    public String statistics() {
+        return "SPF full:" + full_runs + " incremental:" + incremental_runs
+                + " LSAs:" + db.size();
+    }
+
+    /**
+     * Compare two link lists, ignoring the order
+     *
+     * @param a first list
+     * @param b second list
+     * @return true if they have the same links
+     */
+    private static boolean same_links(Entry[] a, Entry[] b) {
+        if (a.length != b.length)
+            return false;
+        for (Entry e : a) {
+            boolean found = false;
+            for (Entry f : b) {
+                if (e.equals_to(f)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+}
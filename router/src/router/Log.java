@@ -1,4 +1,4 @@
-/** 
+/**
  * Redes Integradas de Telecomunicacoes
  * MIEEC/MEEC 2022/2023
  *
@@ -11,13 +11,73 @@
  */
 package router;
 
+import java.util.function.Supplier;
+
 /**
  * Defines the basic logging function signature
  */
 public interface Log {
+    /**
+     * Logging levels, from the most detailed to the most important
+     */
+    public enum Level { TRACE, DEBUG, INFO, WARN }
+
     /**
      * Logging function signature
      * @param s string to print
      */
     public void Log(String s);
+
+    /**
+     * Test if messages of a level are written
+     * @param level logging level
+     * @return true if the level is enabled
+     */
+    public default boolean is_enabled(Level level) {
+        return true;
+    }
+
+    /**
+     * Log a message if the level is enabled
+     * @param level logging level
+     * @param s string to print
+     */
+    public default void Log(Level level, String s) {
+        if (is_enabled(level))
+            Log(s);
+    }
+
+    /**
+     * Log a message if the level is enabled; the string is only built when
+     * the level is enabled
+     * @param level logging level
+     * @param s function that builds the string to print
+     */
+    public default void Log(Level level, Supplier<String> s) {
+        if (is_enabled(level))
+            Log(s.get());
+    }
+
+    /**
+     * Log a formatted message if the level is enabled
+     * @param level logging level
+     * @param format format string, as in String.format
+     * @param arg argument
+     */
+    public default void Log(Level level, String format, Object arg) {
+        if (is_enabled(level))
+            Log(String.format(format, arg));
+    }
+
+    /**
+     * Log a formatted message if the level is enabled
+     * @param level logging level
+     * @param format format string, as in String.format
+     * @param arg1 first argument
+     * @param arg2 second argument
+     */
+    public default void Log(Level level, String format, Object arg1, Object arg2) {
+        if (is_enabled(level))
+            Log(String.format(format, arg1, arg2));
+    }
 }
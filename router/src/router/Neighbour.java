@@ -13,7 +13,9 @@ package router;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -30,16 +32,31 @@ public final class Neighbour {
     public int dist;
     /** address of the Neighbour, includes IP+port */
     public InetAddress netip;
+    /** socket address of the Neighbour, used to send packets */
+    public InetSocketAddress sockaddr;
+    /** Capabilities announced by the Neighbour (RouterNode.CAP_* flags) */
+    public byte caps;
+    /** Session number: a new one for each Neighbour created from a HELLO or
+     *  from the user, kept by the copies made when its fields change */
+    public long session;
+    /** Last session number */
+    private static final AtomicLong last_session= new AtomicLong();
     /** Log object */
     private Log log;
     
 // Distance-vector protocols' specific data
     /** Vector received from Neighbour Router */    
     public Entry[] vec;
-    /** Date when the vector was received */
-    public Date vec_date;
+    /** Time when the vector expires [ns, monotonic clock] */
+    public long vec_deadline;
     /** Vector TTL */
     public long vec_TTL;    // in seconds
+    /** Timer that invalidates the vector when the TTL ends, or null */
+    public TimingWheel.Timeout vec_timer;
+    /** Sequence number of the last ROUTE_DELTA applied */
+    public int route_seq;
+    /** True if route_seq holds a baseline for the next delta */
+    public boolean route_seq_valid;
     
     /**
      * Return the name of the Neighbour
@@ -70,6 +87,12 @@ public final class Neighbour {
      *          Returns a vector, if it exists
      * @return  the vector, or null if it does not exists */
     public Entry[] Vec() { return vec_valid()? vec : null; }
+    /**
+     * Test if the Neighbour supports a capability
+     * @param cap  RouterNode.CAP_* flag
+     * @return true if supported
+     */
+    public boolean has_cap(byte cap) { return (caps & cap) != 0; }
 
     
     /**
@@ -78,11 +101,8 @@ public final class Neighbour {
      * @return  true if name is valid, false otherwise
      */
     private boolean parseName(String name) {
-        // Clear name
-        if (name.length() != 1)
-            return false;
-        char c= name.charAt(0);
-        if (!Character.isUpperCase (c))
+        char c= NodeId.parse(name);
+        if (!NodeId.is_valid(c))
             return false;
         this.name= c;
         return true;
@@ -107,11 +127,13 @@ public final class Neighbour {
     public Neighbour(char name, String ip, int port, int distance, Log log) {
         clear();
         this.log= log;
+        this.session= last_session.incrementAndGet();
         this.ip= ip;
         if (test_IP()) {
             this.name= name;
             this.port= port;
             this.dist= distance;
+            this.sockaddr= new InetSocketAddress(netip, port);
         } else
             this.ip= null;
     }
@@ -124,11 +146,29 @@ public final class Neighbour {
         this.name= src.name;
         this.ip= src.ip;
         this.netip= src.netip;
+        this.sockaddr= src.sockaddr;
         this.port= src.port;
         this.dist= src.dist;
+        this.caps= src.caps;
         this.log= src.log;
     }
         
+    /**
+     * Copy the capabilities, the session and the routing state of the
+     * Neighbour object that this one replaces
+     * @param src  object replaced
+     */
+    public void inherit(Neighbour src) {
+        this.caps= src.caps;
+        this.session= src.session;
+        this.vec= src.vec;
+        this.vec_deadline= src.vec_deadline;
+        this.vec_TTL= src.vec_TTL;
+        this.vec_timer= src.vec_timer;
+        this.route_seq= src.route_seq;
+        this.route_seq_valid= src.route_seq_valid;
+    }
+
     /**
      * Update the fields of the Neighbour object
      * @param name      Neighbour's name
@@ -142,24 +182,41 @@ public final class Neighbour {
             this.name= name;
             this.port= port;
             this.dist= distance;
+            this.sockaddr= new InetSocketAddress(netip, port);
         } else
             clear();
     }
     
     /**
      * Vector-distance specific function:
-     *  updates last vector received from neighbor TTL in miliseconds
+     *  updates last vector received from neighbor and its TTL; the vector
+     *  is invalidated by expire_vec() when the TTL ends
      * @param vec  vector
-     * @param TTL  Time to Live
+     * @param TTL  Time to Live in seconds
+     * @param now  current time [ns, monotonic clock]
      * @throws java.lang.Exception Invalid Neighbour
      */
-    public void update_vec(Entry[] vec, long TTL) throws Exception {
+    public void update_vec(Entry[] vec, long TTL, long now) throws Exception {
         if (!is_valid())
             throw new Exception ("Update vector of invalid neighbor");
         this.vec= vec;
-        this.vec_date= new Date();  // Now
+        this.vec_deadline= now + TTL * 1000000000L;
         this.vec_TTL= TTL;
     }
+
+    /**
+     * Vector-distance specific function: invalidate the vector if the TTL
+     *  ended
+     * @param now  current time [ns, monotonic clock]
+     * @return true if the vector was invalidated
+     */
+    public boolean expire_vec(long now) {
+        if ((vec == null) || (now - vec_deadline < 0))
+            return false;
+        vec= null;
+        route_seq_valid= false;
+        return true;
+    }
     
     /**
      * Clear the contents of the neigbour object
@@ -168,11 +225,16 @@ public final class Neighbour {
         this.name= ' ';
         this.ip= null;
         this.netip= null;
+        this.sockaddr= null;
         this.port= 0;
-        this.dist= Router.MAX_DISTANCE;
+        this.dist= RouterNode.MAX_DISTANCE;
+        this.caps= 0;
+        this.route_seq= 0;
+        this.route_seq_valid= false;
         this.vec= null;
-        this.vec_date= null;
+        this.vec_deadline= 0;
         this.vec_TTL= 0;
+        this.vec_timer= null;
     }
 
     /**
@@ -197,95 +259,85 @@ public final class Neighbour {
     public boolean is_valid() { return (netip!=null); }
     
     /**
-     * Vector-distance protocol specific: test if the vector is valid
+     * Vector-distance protocol specific: test if the vector is valid; 
+     *  expired vectors are removed by expire_vec()
      * @return true if is valid, false otherwise
      */
     public boolean vec_valid() { 
-        return (vec!=null) && 
-            ((new Date().getTime() - vec_date.getTime())<=vec_TTL*1000); 
+        return (vec!=null); 
     }
         
     /**
-     * Send a packet to the Neighbour
-     * @param ds  datagram socket
-     * @param dp  datagram packet with the packet contents
+     * Send a packet to the Neighbour; the buffer position is preserved, so
+     * the same buffer can be sent to several neighbours
+     * @param ds  datagram transport
+     * @param buf buffer with the packet contents, between position and limit
      * @throws IOException Error sending packet
      */
-    public void send_packet(DatagramSocket ds, 
-                                DatagramPacket dp) throws IOException {
-        try {
-            dp.setAddress(this.netip);
-            dp.setPort(this.port);
-            ds.send(dp);
-        }
-        catch (IOException e) {
-            throw e;
-        }        
+    public void send_packet(Transport ds, 
+                                ByteBuffer buf) throws IOException {
+        int pos= buf.position();
+        int n= ds.send(buf, this.sockaddr);
+        buf.position(pos);
+        if (n == 0)
+            throw new IOException("Socket buffer full - packet dropped");
     }
     
     /**
-     * Send a packet to the Neighbour
-     * @param ds  datagram socket
-     * @param os  output stream with the packet contents
-     * @throws IOException Error sending packet
+     * Create a send a HELLO packet to the Neighbour, followed by a HELLO with
+     * the local capabilities; a router without capabilities accepts the
+     * first one and discards the second
+     * @param ds    datagram transport
+     * @param node  local router
+     * @return true if sent successfully, false otherwise
      */
-    public void send_packet(DatagramSocket ds, 
-                                ByteArrayOutputStream os) throws IOException {
+    public boolean send_Hello(Transport ds, RouterNode node) {
+        // Send HELLO packet
         try {
-            byte [] buffer = os.toByteArray();
-            DatagramPacket dp= new DatagramPacket(buffer, buffer.length, 
-                this.netip, this.port);
-            ds.send(dp);
+            send_packet(ds, PacketCodec.get().encode_HELLO(node.local_name(), dist));
+            node.HELLO_snt.increment();
         }
         catch (IOException e) {
-            throw e;
+            log.Log(Log.Level.WARN, "Internal error sending packet HELLO: "+e+"\n");
+            return false;
         }        
+        return send_caps_Hello(ds, node);
     }
-    
+
     /**
-     * Create a send a HELLO packet to the Neighbour
-     * @param ds    datagram socket
-     * @param win   main window object 
+     * Create a send a HELLO packet with the local capabilities to the
+     * Neighbour
+     * @param ds    datagram transport
+     * @param node  local router
      * @return true if sent successfully, false otherwise
      */
-    public boolean send_Hello(DatagramSocket ds, Router win) {
-        // Send HELLO packet
-        ByteArrayOutputStream os= new ByteArrayOutputStream();
-        DataOutputStream dos= new DataOutputStream(os);
+    public boolean send_caps_Hello(Transport ds, RouterNode node) {
         try {
-            dos.writeByte(Router.PKT_HELLO);
-            // name ('letter')
-            dos.writeChar(win.local_name());
-            // Distance
-            dos.writeInt(dist);
-            send_packet(ds, os);
-            win.HELLO_snt++;
+            send_packet(ds, PacketCodec.get().encode_HELLO(node.local_name(), dist,
+                    RouterNode.LOCAL_CAPS));
+            node.HELLO_snt.increment();
             return true;
         }
         catch (IOException e) {
-            log.Log("Internal error sending packet HELLO: "+e+"\n");
+            log.Log(Log.Level.WARN, "Internal error sending packet HELLO: "+e+"\n");
             return false;
         }        
     }
     
     /**
      * Create a send a BYE packet to the Neighbour
-     * @param ds    datagram socket
-     * @param win   main window object 
+     * @param ds    datagram transport
+     * @param node  local router
      * @return true if sent successfully, false otherwise
      */
-    public boolean send_Bye(DatagramSocket ds, Router win) {
-        ByteArrayOutputStream os= new ByteArrayOutputStream();
-        DataOutputStream dos= new DataOutputStream(os);
+    public boolean send_Bye(Transport ds, RouterNode node) {
         try {
-            dos.writeByte(Router.PKT_BYE);
-            dos.writeChar(win.local_name());
-            send_packet(ds, os);
-            win.BYE_snt++;
+            send_packet(ds, PacketCodec.get().encode_BYE(node.local_name()));
+            node.BYE_snt.increment();
             return true;
         }
         catch (IOException e) {
-            log.Log("Internal error sending packet BYE: "+e+"\n");
+            log.Log(Log.Level.WARN, "Internal error sending packet BYE: "+e+"\n");
             return false;
         }        
     }
@@ -296,10 +348,10 @@ public final class Neighbour {
      */
     @Override
     public String toString() {
-        String str= ""+name;
+        String str= NodeId.str(name);
         if (name == ' ')
             str= "INVALID";
-        return "("+name+" ; "+ip+" ; "+port+" ; "+dist+")";
+        return "("+str+" ; "+ip+" ; "+port+" ; "+dist+")";
     }
     
     /**
@@ -316,7 +368,7 @@ public final class Neighbour {
             String _name= st.nextToken();
             if (!parseName(_name))
                 return false;
-            if (!_name.equals(""+name))
+            if (!_name.equals(NodeId.str(name)))
                 return false;
             String _ip= st.nextToken();
             int _port= Integer.parseInt(st.nextToken());
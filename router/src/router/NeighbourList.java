@@ -12,12 +12,18 @@
 package router;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.*;
 import java.io.*;
-import javax.swing.*;
+import java.nio.ByteBuffer;
 
 /**
  * Holds the neighbor list Router internal data
+ *
+ * The changes to the list are serialized by list_lock, and each one is
+ * atomic. Readers never lock: the lookups use concurrent maps, and values()
+ * and iterator() return an immutable snapshot of the list, published again
+ * after each change. Any thread may read the list.
  */
 public class NeighbourList {
 
@@ -26,15 +32,28 @@ public class NeighbourList {
      */
     private final int max_range;
     /**
-     * Reference to the main window of the GUI
+     * Local router
      */
-    private final Router win;
+    private final RouterNode node;
     /**
      * List of Neighbour objects
      */
-    private final HashMap<Character, Neighbour> list;
+    private final ConcurrentHashMap<Character, Neighbour> list;
+    /**
+     * Index of the Neighbour objects by socket address; neighbours in the
+     * local host are indexed by the loopback and by the local host address
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Neighbour> by_addr;
+    /**
+     * Snapshot of the list, ordered by name; replaced after each change
+     */
+    private volatile List<Neighbour> snapshot = Collections.emptyList();
+    /**
+     * Local host address, resolved once
+     */
+    private final InetAddress local_ip;
     /**
-     * Lock to synchronize the access to the list
+     * Lock to serialize the changes to the list
      */
     private final Object list_lock = new Object();
 
@@ -42,30 +61,103 @@ public class NeighbourList {
      * Constructor - create a new instance of neighbourList
      *
      * @param max_range maximum number of neigbours in the list
-     * @param win main window
+     * @param node local router
      */
-    public NeighbourList(int max_range, Router win) {
+    public NeighbourList(int max_range, RouterNode node) {
         this.max_range = max_range;
-        this.win = win;
-        list = new HashMap<>();
+        this.node = node;
+        list = new ConcurrentHashMap<>();
+        by_addr = new ConcurrentHashMap<>();
+        InetAddress addr;
+        try {
+            addr = InetAddress.getLocalHost();
+        } catch (UnknownHostException e) {
+            addr = InetAddress.getLoopbackAddress();
+        }
+        local_ip = addr;
+    }
+
+    /**
+     * Return the keys of a socket address in the address index; addresses
+     * of the local host get both the loopback and the local host keys
+     *
+     * @param ip IP address
+     * @param port port number
+     * @return list of keys
+     */
+    private List<InetSocketAddress> addr_keys(InetAddress ip, int port) {
+        if (ip.isLoopbackAddress() || ip.equals(local_ip)) {
+            return Arrays.asList(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    new InetSocketAddress(local_ip, port));
+        }
+        return Collections.singletonList(new InetSocketAddress(ip, port));
     }
 
     /**
-     * Returns a collection with all the neighbours in the list
+     * Add a Neighbour to the address index; must hold list_lock
+     *
+     * @param pt Neighbour
+     */
+    private void index(Neighbour pt) {
+        for (InetSocketAddress key : addr_keys(pt.Netip(), pt.Port())) {
+            by_addr.put(key, pt);
+        }
+    }
+
+    /**
+     * Remove a Neighbour from the address index; must hold list_lock
+     *
+     * @param pt Neighbour
+     */
+    private void unindex(Neighbour pt) {
+        if (pt.Netip() == null) {
+            return;
+        }
+        for (InetSocketAddress key : addr_keys(pt.Netip(), pt.Port())) {
+            by_addr.remove(key, pt);
+        }
+    }
+
+    /**
+     * Publish a new snapshot of the list; must hold list_lock
+     */
+    private void publish() {
+        Neighbour[] arr = list.values().toArray(new Neighbour[0]);
+        Arrays.sort(arr, (a, b) -> Character.compare(a.Name(), b.Name()));
+        snapshot = Collections.unmodifiableList(Arrays.asList(arr));
+    }
+
+    /**
+     * Return the IP address stored for a sender; loopback senders are
+     * stored with the local host address
+     *
+     * @param addr sender socket address
+     * @return IP address
+     */
+    public String host_ip(InetSocketAddress addr) {
+        InetAddress ip = addr.getAddress();
+        return (ip.isLoopbackAddress() ? local_ip : ip).getHostAddress();
+    }
+
+    /**
+     * Returns a collection with all the neighbours in the list; it is a
+     * snapshot, not changed by later changes to the list
      *
      * @return collection for all neigbours in the list
      */
     public Collection<Neighbour> values() {
-        return list.values();
+        return snapshot;
     }
 
     /**
-     * Creates an Iterator for all neigbour objects in the list
+     * Creates an Iterator for all neigbour objects in the list; it iterates
+     * over a snapshot of the list
      *
      * @return iterator for all neigbours in the list
      */
     public Iterator<Neighbour> iterator() {
-        return list.values().iterator();
+        return snapshot.iterator();
     }
 
     /**
@@ -75,51 +167,72 @@ public class NeighbourList {
      * @param ip ip address
      * @param port port number
      * @param distance distance
-     * @param ds datagram socket
+     * @param ds datagram transport
+     * @return true if new Neighbour was created and added, false otherwise
+     */
+    public boolean add_neig(char name, String ip, int port, int distance, Transport ds) {
+        return add_neig(name, ip, port, distance, (byte) 0, ds);
+    }
+
+    /**
+     * Add a new Neighbour to the list, with the capabilities known
+     *
+     * @param name Neighbour's name
+     * @param ip ip address
+     * @param port port number
+     * @param distance distance
+     * @param caps capabilities of the Neighbour (RouterNode.CAP_* flags)
+     * @param ds datagram transport
      * @return true if new Neighbour was created and added, false otherwise
      */
-    public boolean add_neig(char name, String ip, int port, int distance, DatagramSocket ds) {
-        char local_name = win.local_name();
+    public boolean add_neig(char name, String ip, int port, int distance, byte caps, Transport ds) {
+        char local_name = node.local_name();
         boolean novo;
-        win.Log2("add_neig(" + name + ")");
-        synchronized (list_lock) {
-            if ((novo = !list.containsKey(name)) && (list.size() == max_range)) {
-                win.Log2("List is full\n");
-                return false;
-            }
-        }
-        Neighbour pt = locate_neig(ip, port);
+        node.Log(Log.Level.DEBUG, "add_neig(%s)\n", name);
         if (local_name == name) {
-            win.Log2("Name equals local_name");
+            node.Log2("Name equals local_name");
             return false;
         }
-        if ((pt != null) && (pt.Name() != name)) {
-            win.Log2("Duplicated IP and port\n");
-            return false;
-        }
-        if ((distance < 1) || (distance > Router.MAX_DISTANCE)) {
-            win.Log2("Invalid distance (" + distance + ")");
+        if ((distance < 1) || (distance > RouterNode.MAX_DISTANCE)) {
+            node.Log(Log.Level.DEBUG, "Invalid distance (%d)\n", distance);
             return false;
         }
         // Prepare Neighbour entry
-        pt = new Neighbour(name, ip, port, distance, win);
+        Neighbour pt = new Neighbour(name, ip, port, distance, node);
         if (!pt.is_valid()) {
-            win.Log2("Invalid neighbour data\n");
+            node.Log2("Invalid neighbour data\n");
             return false;
         }
+        pt.caps = caps;
         synchronized (list_lock) {
+            if ((novo = !list.containsKey(name)) && (list.size() == max_range)) {
+                node.Log2("List is full\n");
+                return false;
+            }
+            Neighbour dup = locate_neig(pt.sockaddr);
+            if ((dup != null) && (dup.Name() != name)) {
+                node.Log2("Duplicated IP and port\n");
+                return false;
+            }
             // Adds or replaces a member of the table
-            list.put(name, pt);
+            Neighbour old = list.put(name, pt);
+            if (old != null) {
+                unindex(old);
+            }
+            index(pt);
+            publish();
         }
         if (novo) // If not known
         {
-            pt.send_Hello(ds, win);
+            pt.send_Hello(ds, node);
         }
         return true;
     }
 
     /**
-     * Update the field values of a Neighbour with the ip+port
+     * Update the field values of a Neighbour with the ip+port. The Neighbour
+     * objects are read without locking, so a copy with the new values and
+     * the same routing state replaces the old one
      *
      * @param name Neighbour's name
      * @param ip ip address
@@ -128,56 +241,90 @@ public class NeighbourList {
      * @return true if updated the fields, false otherwise
      */
     public boolean update_neig(char name, String ip, int port, int distance) {
-        win.Log2("update_neig(" + name + ")");
-        Neighbour pt = locate_neig(ip, port);
-        if (pt == null) {
-            win.Log2("Unexistent neighbour\n");
+        node.Log(Log.Level.DEBUG, "update_neig(%s)\n", name);
+        if ((distance < 1) || (distance > RouterNode.MAX_DISTANCE)) {
+            node.Log(Log.Level.DEBUG, "Invalid distance (%d)\n", distance);
             return false;
         }
-        if ((distance < 1) || (distance > Router.MAX_DISTANCE)) {
-            win.Log2("Invalid distance (" + distance + ")");
-            return false;
-        }
-        if (name != pt.Name()) {
-            win.Log2("Invalid name - missmatched name previously associated with IP/port");
-            return false;
-        }
-        if (pt.Dist() == distance) {
-            // Did not change distance
-            return false;
+        synchronized (list_lock) {
+            Neighbour pt = locate_neig(ip, port);
+            if (pt == null) {
+                node.Log2("Unexistent neighbour\n");
+                return false;
+            }
+            if (name != pt.Name()) {
+                node.Log2("Invalid name - missmatched name previously associated with IP/port");
+                return false;
+            }
+            if (pt.Dist() == distance) {
+                // Did not change distance
+                return false;
+            }
+            // Replace the Neighbour entry
+            Neighbour upd = new Neighbour(pt.Name(), ip, port, distance, node);
+            unindex(pt);
+            if (upd.is_valid()) {
+                upd.inherit(pt);
+                list.put(name, upd);
+                index(upd);
+            } else {
+                list.remove(name, pt);
+            }
+            publish();
         }
-        // Prepare Neighbour entry
-        pt.update_neigh(pt.Name(), ip, port, distance);
         return true;
     }
 
+    /**
+     * Set the capabilities of a Neighbour, replacing it with a copy
+     *
+     * @param pt Neighbour
+     * @param caps capabilities (RouterNode.CAP_* flags)
+     * @return the Neighbour in the list, or null if pt is no longer there
+     */
+    public Neighbour update_caps(Neighbour pt, byte caps) {
+        synchronized (list_lock) {
+            if (list.get(pt.Name()) != pt) {
+                return null;
+            }
+            if (pt.caps == caps) {
+                return pt;
+            }
+            Neighbour upd = new Neighbour(pt);
+            upd.inherit(pt);
+            upd.caps = caps;
+            unindex(pt);
+            list.put(pt.Name(), upd);
+            index(upd);
+            publish();
+            return upd;
+        }
+    }
+
     /**
      * Delete a Neighbour from the list, selected by name
      *
      * @param name name of Neighbour
      * @param send_msg if true, sends a BYE message
-     * @param ds datagram socket
+     * @param ds datagram transport
      * @return true if deleted successfully, false otherwise
      */
-    public boolean del_neig(char name, boolean send_msg, DatagramSocket ds) {
+    public boolean del_neig(char name, boolean send_msg, Transport ds) {
         Neighbour neig;
         synchronized (list_lock) {
-            try {
-                neig = (Neighbour) list.get(name);
-            } catch (Exception e) {
-                return false;
+            // Removes a member from the list
+            neig = list.remove(name);
+            if (neig != null) {
+                unindex(neig);
+                publish();
             }
         }
         if (neig == null) {
-            win.Log("Neighbour " + name + " not deleted\n");
+            node.Log("Neighbour " + name + " not deleted\n");
             return false;
         }
         if (send_msg) {
-            neig.send_Bye(ds, win);
-        }
-        synchronized (list_lock) {
-            // Adds or replaces a member of the table
-            list.remove(name);
+            neig.send_Bye(ds, node);
         }
         return true;
     }
@@ -187,21 +334,20 @@ public class NeighbourList {
      *
      * @param neig Neighbour to be deleted
      * @param send_msg if true, sends a BYE message
-     * @param ds datagram socket
+     * @param ds datagram transport
      * @return true if deleted successfully, false otherwise
      */
-    public boolean del_neig(Neighbour neig, boolean send_msg, DatagramSocket ds) {
+    public boolean del_neig(Neighbour neig, boolean send_msg, Transport ds) {
         synchronized (list_lock) {
-            if (!list.containsValue(neig)) {
+            // Removes a member from the list
+            if (!list.remove(neig.Name(), neig)) {
                 return false;
             }
+            unindex(neig);
+            publish();
         }
         if (send_msg) {
-            neig.send_Bye(ds, win);
-        }
-        synchronized (list_lock) {
-            // Removes a member from the list
-            list.remove(neig.Name());
+            neig.send_Bye(ds, node);
         }
         return true;
     }
@@ -209,15 +355,17 @@ public class NeighbourList {
     /**
      * empty Neighbour list and send BYE to all members
      *
-     * @param ds datagram socket
+     * @param ds datagram transport
      */
-    public void clear_BYE(DatagramSocket ds) {
+    public void clear_BYE(Transport ds) {
+        List<Neighbour> old;
         synchronized (list_lock) {
-            for (Neighbour pt : list.values()) {
-                pt.send_Bye(ds, win);
-            }
+            old = snapshot;
+            clear();
+        }
+        for (Neighbour pt : old) {
+            pt.send_Bye(ds, node);
         }
-        clear();
     }
 
     /**
@@ -226,6 +374,8 @@ public class NeighbourList {
     public void clear() {
         synchronized (list_lock) {
             list.clear();
+            by_addr.clear();
+            publish();
         }
     }
 
@@ -239,6 +389,23 @@ public class NeighbourList {
         return list.get(name);
     }
 
+    /**
+     * Locate a Neighbour by socket address in the list; the received
+     * address is used directly as the index key
+     *
+     * @param addr socket address
+     * @return the Neighbour object, or null if not found
+     */
+    public Neighbour locate_neig(InetSocketAddress addr) {
+        Neighbour pt = by_addr.get(addr);
+        if ((pt == null) && addr.getAddress().isLoopbackAddress()) {
+            // Other 127.* addresses
+            pt = by_addr.get(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), addr.getPort()));
+        }
+        return pt;
+    }
+
     /**
      * Locate a Neighbour by ip+port in the list
      *
@@ -247,71 +414,28 @@ public class NeighbourList {
      * @return the Neighbour object, or null if not found
      */
     public Neighbour locate_neig(String ip, int port) {
-        synchronized (list_lock) {
-            for (Neighbour pt : list.values()) {
-                if (((ip.compareTo(pt.Ip()) == 0)
-                        || (ip.startsWith("127.") && pt.Ip().startsWith("127.")))
-                        && (port == pt.Port())) {
-                    return pt;
-                }
-            }
+        try {
+            return locate_neig(new InetSocketAddress(InetAddress.getByName(ip), port));
+        } catch (UnknownHostException e) {
+            return null;
         }
-        return null;
     }
 
     /**
      * Send a packet to all neighbours in the list except 'exc'
      *
-     * @param ds datagram socket
-     * @param dp datagram packet to be sent
+     * @param ds datagram transport
+     * @param buf buffer with the packet to be sent
      * @param exc Neighbour to exclude, or null
      * @throws IOException  Error sending packet
      */
-    public void send_packet(DatagramSocket ds, DatagramPacket dp,
+    public void send_packet(Transport ds, ByteBuffer buf,
             Neighbour exc) throws IOException {
-        synchronized (list_lock) {
-            for (Neighbour pt : list.values()) {
-                if (pt != exc) {
-                    pt.send_packet(ds, dp);
-                }
-            }
-        }
-    }
-
-    /**
-     * Print the Neighbour list in the table at the GUI
-     *
-     * @param table reference to the graphical table
-     * @return true if successful, false otherwise
-     */
-    public boolean refresh_table(JTable table) {
-        synchronized (list_lock) {
-            if (table.getColumnCount() < 4) // Invalid number of columns
-            {
-                return false;
-            }
-            if (table.getRowCount() < max_range) // Invalid number of rows
-            {
-                return false;
-            }
-
-            // Update table
-            Iterator<Neighbour> it = values().iterator();
-            for (int i = 0; i < max_range; i++) { // For every row
-                if (it.hasNext()) {
-                    Neighbour pt = it.next();
-                    table.setValueAt("" + pt.Name(), i, 0);
-                    table.setValueAt(pt.Ip(), i, 1);
-                    table.setValueAt("" + pt.Port(), i, 2);
-                    table.setValueAt("" + pt.Dist(), i, 3);
-                } else {
-                    for (int j = 0; j < 4; j++) {
-                        table.setValueAt("", i, j);
-                    }
-                }
+        for (Neighbour pt : snapshot) {
+            if (pt != exc) {
+                pt.send_packet(ds, buf);
             }
         }
-        return true;
     }
 
     
@@ -351,25 +475,23 @@ public class NeighbourList {
 
         if (add_local) {
             // Adds the local name
-            aux.add(new Entry(win.local_name(), 0));
+            aux.add(new Entry(node.local_name(), 0));
         }
 
-        synchronized (list_lock) {
-            for (Neighbour pt : list.values()) {
-                if (pt.is_valid()) {
-                    aux.add(new Entry(pt.Name(), pt.Dist()));
-                }
+        for (Neighbour pt : snapshot) {
+            if (pt.is_valid()) {
+                aux.add(new Entry(pt.Name(), pt.Dist()));
             }
+        }
 
-            Entry[] vec= null;
-            if (aux.size() > 0) {
-                // Creates an array with all elements
-                vec = new Entry[aux.size()];
-                vec = aux.toArray(vec);
-            }
-            aux.clear();
-            return vec;
+        Entry[] vec= null;
+        if (aux.size() > 0) {
+            // Creates an array with all elements
+            vec = new Entry[aux.size()];
+            vec = aux.toArray(vec);
         }
+        aux.clear();
+        return vec;
     }
 
     /* ********************************************************************* */
@@ -0,0 +1,111 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * NodeId.java
+ *
+ * Router address (node identifier) helper functions
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+/**
+ * Router addresses are 16 bit identifiers, kept in a char and sent as a
+ * char in every packet. The letters 'A' to 'Z' keep their usual meaning and
+ * are written as the letter; the other identifiers are written as '#'
+ * followed by the decimal number (e.g. "#1234").
+ *
+ * The identifiers up to ' ' are reserved: ' ' is the empty next hop.
+ */
+public final class NodeId {
+    /** Empty address, used as the next hop of local routes */
+    public final static char NONE = ' ';
+    /** Lowest valid address */
+    public final static char MIN = NONE + 1;
+    /** Highest valid address */
+    public final static char MAX = Character.MAX_VALUE;
+    /** Highest address that fits in one byte (old DATA path format) */
+    public final static char MAX_NARROW = 0xFF;
+
+    private NodeId() {
+    }
+
+    /**
+     * Test if an address is valid
+     * @param id  address
+     * @return true if valid
+     */
+    public static boolean is_valid(char id) {
+        return id >= MIN;
+    }
+
+    /**
+     * Test if an address fits in one byte, used in the old DATA path
+     * @param id  address
+     * @return true if it fits
+     */
+    public static boolean is_narrow(char id) {
+        return id <= MAX_NARROW;
+    }
+
+    /**
+     * Test if all the addresses in a path fit in one byte
+     * @param path  sequence of addresses
+     * @return true if all fit
+     */
+    public static boolean is_narrow(CharSequence path) {
+        for (int i= 0; i<path.length(); i++) {
+            if (!is_narrow(path.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parse an address: an uppercase letter, or '#' followed by a number
+     * @param s  string
+     * @return the address, or NONE if not valid
+     */
+    public static char parse(String s) {
+        if (s == null)
+            return NONE;
+        s= s.trim();
+        if ((s.length() == 1) && Character.isUpperCase(s.charAt(0)))
+            return s.charAt(0);
+        if ((s.length() < 2) || (s.charAt(0) != '#'))
+            return NONE;
+        try {
+            int n= Integer.parseInt(s.substring(1));
+            return ((n >= MIN) && (n <= MAX)) ? (char)n : NONE;
+        }
+        catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Return the text representation of an address
+     * @param id  address
+     * @return the letter, or '#' followed by the number
+     */
+    public static String str(char id) {
+        if ((id >= 'A') && (id <= 'Z'))
+            return String.valueOf(id);
+        return "#" + (int)id;
+    }
+
+    /**
+     * Return the text representation of a path
+     * @param path  sequence of addresses
+     * @return the addresses, written one after the other
+     */
+    public static String str(CharSequence path) {
+        StringBuilder sb= new StringBuilder(path.length());
+        for (int i= 0; i<path.length(); i++) {
+            sb.append(str(path.charAt(i)));
+        }
+        return sb.toString();
+    }
+}
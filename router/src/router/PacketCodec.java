@@ -0,0 +1,990 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * PacketCodec.java
+ *
+ * Encoding and decoding of HELLO, BYE, ROUTE, ROUTE_DELTA, LSA and DATA
+ * packets
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Packet encoder and flyweight packet readers. Each thread owns one codec
+ * (see get()), with a preallocated encoding buffer and one reader per packet
+ * type, so that encoding and decoding produce no garbage.
+ *
+ * The buffers returned by the encode methods and the readers are reused by
+ * the next call on the same thread.
+ */
+public final class PacketCodec {
+    /** Maximum size of an encoded packet */
+    public final static int MAX_PACKET= UnicastDaemon.MAX_DATAGRAM;
+    /** Size of one encoded ROUTE Entry: dest (char) + dist (int) */
+    public final static int ENTRY_LEN= 6;
+    /** ROUTE_DELTA flag: the packet carries the full vector */
+    public final static byte FLAG_FULL= 0x01;
+    /** ROUTE_DELTA flag: the packet is one fragment of the update */
+    public final static byte FLAG_FRAG= 0x02;
+    /** ROUTE_DELTA flag: compact entries - the destinations are sorted,
+     *  and each entry is one varint with the difference to the previous
+     *  destination and the distance in the DIST_BITS low bits */
+    public final static byte FLAG_COMPACT= 0x04;
+    /** Bits of the distance in a compact entry */
+    public final static int DIST_BITS= 6;
+    /** Size of the ROUTE_DELTA header, including the common header and 
+     *  the fragment fields */
+    public final static int ROUTE_DELTA_HEADER= 18;
+
+    /** One codec per thread */
+    private final static ThreadLocal<PacketCodec> LOCAL=
+                                ThreadLocal.withInitial(PacketCodec::new);
+
+    /** Encoding buffer */
+    private final ByteBuffer out= ByteBuffer.allocateDirect(MAX_PACKET);
+    /** HELLO packet reader */
+    public final HelloReader hello= new HelloReader();
+    /** ROUTE packet reader */
+    public final RouteReader route= new RouteReader();
+    /** ROUTE_DELTA packet reader */
+    public final RouteDeltaReader route_delta= new RouteDeltaReader();
+    /** LSA packet reader */
+    public final LsaReader lsa= new LsaReader();
+    /** DATA packet reader */
+    public final DataReader data= new DataReader();
+
+    /**
+     * Return the codec owned by the current thread
+     * @return the codec object
+     */
+    public static PacketCodec get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Start encoding a packet with the common header
+     * @param code    packet code
+     * @param sender  sender name
+     * @return the encoding buffer
+     */
+    private ByteBuffer header(byte code, char sender) {
+        out.clear();
+        out.put(code);
+        out.putChar(sender);
+        return out;
+    }
+
+    /**
+     * Encode a HELLO packet, as sent by every router
+     * @param sender  sender name
+     * @param dist    distance to the neighbour
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_HELLO(char sender, int dist) {
+        header(RouterNode.PKT_HELLO, sender).putInt(dist);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode a HELLO packet with the capabilities byte; routers without
+     * capabilities discard it as too long
+     * @param sender  sender name
+     * @param dist    distance to the neighbour
+     * @param caps    capabilities supported (RouterNode.CAP_* flags)
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_HELLO(char sender, int dist, byte caps) {
+        header(RouterNode.PKT_HELLO, sender).putInt(dist);
+        out.put(caps);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode a BYE packet
+     * @param sender  sender name
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_BYE(char sender) {
+        header(RouterNode.PKT_BYE, sender);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode a ROUTE packet
+     * @param sender  sender name
+     * @param TTL     vector TTL
+     * @param vec     vector to send
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_ROUTE(char sender, int TTL, Entry[] vec) {
+        header(RouterNode.PKT_ROUTE, sender).putInt(TTL);
+        out.putInt(vec.length);
+        for (Entry e : vec) {
+            out.putChar(e.dest);
+            out.putInt(e.dist);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode a ROUTE_DELTA packet
+     * @param sender  sender name
+     * @param TTL     vector TTL
+     * @param flags   packet flags (FLAG_FULL)
+     * @param seq     sequence number
+     * @param upd     entries added or modified; the full vector if FLAG_FULL
+     * @param wd      destinations withdrawn
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_ROUTE_DELTA(char sender, int TTL, byte flags,
+                        int seq, List<Entry> upd, List<Character> wd) {
+        return encode_ROUTE_DELTA(sender, TTL, flags, seq, 0, 1, upd, wd);
+    }
+
+    /**
+     * Encode one fragment of a ROUTE_DELTA update; all the fragments of an
+     * update have the same sequence number. With one fragment, the fragment
+     * fields are not sent
+     * @param sender  sender name
+     * @param TTL     vector TTL
+     * @param flags   packet flags (FLAG_FULL)
+     * @param seq     sequence number
+     * @param frag    fragment index
+     * @param frags   number of fragments of the update (up to 255)
+     * @param upd     entries added or modified in this fragment
+     * @param wd      destinations withdrawn in this fragment
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_ROUTE_DELTA(char sender, int TTL, byte flags,
+                        int seq, int frag, int frags, List<Entry> upd, List<Character> wd) {
+        header(RouterNode.PKT_ROUTE_DELTA, sender).putInt(TTL);
+        if (frags > 1) {
+            out.put((byte)(flags | FLAG_FRAG));
+            out.putInt(seq);
+            out.put((byte)frag);
+            out.put((byte)frags);
+        } else {
+            out.put((byte)(flags & ~FLAG_FRAG));
+            out.putInt(seq);
+        }
+        out.putShort((short)upd.size());
+        if ((flags & FLAG_COMPACT) != 0) {
+            // upd and wd must be sorted by destination
+            int prev= 0;
+            for (Entry e : upd) {
+                put_varint(compact_entry(e.dest - prev, e.dist));
+                prev= e.dest;
+            }
+            out.putShort((short)wd.size());
+            prev= 0;
+            for (char c : wd) {
+                put_varint(c - prev);
+                prev= c;
+            }
+        } else {
+            for (Entry e : upd) {
+                out.putChar(e.dest);
+                out.putInt(e.dist);
+            }
+            out.putShort((short)wd.size());
+            for (char c : wd) {
+                out.putChar(c);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Write an unsigned varint: 7 bits per byte, the high bit set in all
+     * bytes except the last
+     * @param v  value, not negative
+     */
+    private void put_varint(int v) {
+        while (v >= 0x80) {
+            out.put((byte)(v | 0x80));
+            v>>>= 7;
+        }
+        out.put((byte)v);
+    }
+
+    /**
+     * Return the value of a compact entry
+     * @param gap   difference to the previous destination
+     * @param dist  distance, up to RouterNode.MAX_DISTANCE
+     * @return value, sent as a varint
+     */
+    public static int compact_entry(int gap, int dist) {
+        return (gap << DIST_BITS) | dist;
+    }
+
+    /**
+     * Return the number of bytes of an unsigned varint
+     * @param v  value, not negative
+     * @return number of bytes
+     */
+    public static int varint_len(int v) {
+        int n= 1;
+        while (v >= 0x80) {
+            v>>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Read an unsigned varint with up to 28 bits
+     * @param buf  buffer
+     * @return value
+     * @throws IOException if the varint is truncated or too large
+     */
+    private static int get_varint(ByteBuffer buf) throws IOException {
+        int v= 0;
+        for (int shift= 0; shift<=21; shift+= 7) {
+            if (!buf.hasRemaining())
+                throw new EOFException("Packet too short");
+            int b= buf.get() & 0xFF;
+            v|= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Encode a ROUTE_NACK packet, asking for a full vector
+     * @param sender  sender name
+     * @param seq     sequence number expected
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_ROUTE_NACK(char sender, int seq) {
+        header(RouterNode.PKT_ROUTE_NACK, sender).putInt(seq);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode an LSA packet
+     * @param sender  sender name
+     * @param lsa     link state advertisement
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_LSA(char sender, LinkState.Lsa lsa) {
+        header(RouterNode.PKT_LSA, sender).putChar(lsa.origin);
+        out.putInt(lsa.seq);
+        out.putInt(lsa.TTL);
+        out.putShort((short)lsa.links.length);
+        for (Entry e : lsa.links) {
+            out.putChar(e.dest);
+            out.putInt(e.dist);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode a DATA packet; the local name is appended to the path. The
+     * packet uses the PKT_DATA_WIDE format, with two bytes per name in the
+     * path, when a name in the path does not fit in one byte
+     * @param sender  sender name
+     * @param dest    destination name
+     * @param seq     sequence number
+     * @param msg     message contents
+     * @param path    path already transverse
+     * @param local   local name
+     * @return buffer with the packet, ready to send
+     */
+    public ByteBuffer encode_DATA(char sender, char dest, int seq,
+                        CharSequence msg, CharSequence path, char local) {
+        boolean wide= !NodeId.is_narrow(path) || !NodeId.is_narrow(local);
+        header(wide ? RouterNode.PKT_DATA_WIDE : RouterNode.PKT_DATA, sender).putChar(dest);
+        out.putInt(seq);
+        out.putShort((short)msg.length());
+        put_bytes(msg);
+        out.put((byte)(path.length() + 1));
+        if (wide) {
+            for (int i= 0; i<path.length(); i++) {
+                out.putChar(path.charAt(i));
+            }
+            out.putChar(local);
+        } else {
+            put_bytes(path);
+            out.put((byte)local);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Write the low byte of each character, like DataOutputStream.writeBytes
+     * @param s  characters to write
+     */
+    private void put_bytes(CharSequence s) {
+        for (int i= 0; i<s.length(); i++) {
+            out.put((byte)s.charAt(i));
+        }
+    }
+
+
+    /* ********************************************************************* */
+    /* Flyweight readers                                                     */
+    /* ********************************************************************* */
+
+    /**
+     * Reads the fields of a HELLO packet
+     */
+    public static final class HelloReader {
+        private int dist;
+        private byte caps;
+        private boolean has_caps;
+
+        /**
+         * Decode a HELLO packet body; the capabilities byte is optional
+         * @param buf  buffer positioned after the common header
+         * @throws IOException if the packet is malformed
+         */
+        public void wrap(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 4)
+                throw new EOFException("Packet too short");
+            if (buf.remaining() > 5)
+                throw new IOException("Packet too long");
+            dist= buf.getInt();
+            has_caps= buf.hasRemaining();
+            caps= has_caps ? buf.get() : 0;
+        }
+
+        /**
+         * Return the distance announced
+         * @return distance
+         */
+        public int dist() { return dist; }
+        /**
+         * Return the capabilities announced
+         * @return RouterNode.CAP_* flags
+         */
+        public byte caps() { return caps; }
+        /**
+         * Test if the packet has the capabilities byte
+         * @return true if the capabilities were announced
+         */
+        public boolean has_caps() { return has_caps; }
+    }
+
+    /**
+     * Reads the fields of a ROUTE packet in place, without creating Entry
+     * objects
+     */
+    public static final class RouteReader {
+        private ByteBuffer buf;
+        private int TTL;
+        private int count;
+        /** Position of the first entry */
+        private int base;
+
+        /**
+         * Decode and validate a ROUTE packet body
+         * @param buf  buffer positioned after the common header
+         * @throws IOException if the packet is malformed
+         */
+        public void wrap(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 8)
+                throw new EOFException("Packet too short");
+            this.buf= buf;
+            TTL= buf.getInt();
+            count= buf.getInt();
+            base= buf.position();
+            if ((count <= 0) || (count > RouterNode.MAX_ROUTINGTABLE_SIZE))
+                throw new IOException("Invalid Entry list length '"+count+"'");
+            if (buf.remaining() < count*ENTRY_LEN)
+                throw new EOFException("Packet too short");
+            if (buf.remaining() > count*ENTRY_LEN)
+                throw new IOException("Invalid ROUTE - extra bytes after end of message");
+            for (int i= 0; i<count; i++) {
+                if (!NodeId.is_valid(dest(i)))
+                    throw new IOException("Invalid address '"+dest(i)+"'");
+                if ((dist(i)<0) || (dist(i)>RouterNode.MAX_DISTANCE))
+                    throw new IOException("Invalid distance '"+dist(i)+"'");
+            }
+        }
+
+        /**
+         * Return the vector TTL
+         * @return TTL in seconds
+         */
+        public int TTL() { return TTL; }
+        /**
+         * Return the number of entries
+         * @return number of entries
+         */
+        public int count() { return count; }
+        /**
+         * Return the destination of entry i
+         * @param i  entry index
+         * @return destination address
+         */
+        public char dest(int i) { return buf.getChar(base + i*ENTRY_LEN); }
+        /**
+         * Return the distance of entry i
+         * @param i  entry index
+         * @return distance
+         */
+        public int dist(int i) { return buf.getInt(base + i*ENTRY_LEN + 2); }
+
+        /**
+         * Compare the vector in the packet with vec, ignoring the order
+         * @param vec  vector
+         * @return true if they hold the same entries
+         */
+        public boolean equals_vec(Entry[] vec) {
+            if ((vec == null) || (vec.length != count))
+                return false;
+            for (int i= 0; i<count; i++) {
+                char dest= dest(i);
+                int dist= dist(i);
+                boolean found= false;
+                for (Entry e : vec) {
+                    if ((e.dest == dest) && (e.dist == dist)) {
+                        found= true;
+                        break;
+                    }
+                }
+                if (!found)
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Create an Entry vector with the packet contents
+         * @return new vector
+         */
+        public Entry[] to_vec() {
+            Entry[] vec= new Entry[count];
+            for (int i= 0; i<count; i++) {
+                vec[i]= new Entry(dest(i), dist(i));
+            }
+            return vec;
+        }
+
+        /**
+         * Return a string with the entries
+         * @return string with the packet contents
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb= new StringBuilder();
+            sb.append("TTL=").append(TTL).append(",EntryList(").append(count).append(": ");
+            for (int i= 0; i<count; i++) {
+                sb.append(i == 0 ? "" : " ; ").append('(').append(dest(i))
+                    .append(" , ").append(dist(i)).append(')');
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * Reads the fields of a ROUTE_DELTA packet in place
+     */
+    public static final class RouteDeltaReader {
+        private ByteBuffer buf;
+        private int TTL;
+        private byte flags;
+        private int seq;
+        private int frag;
+        private int frags;
+        private int count;
+        private int wd_count;
+        /** Position of the first entry */
+        private int base;
+        /** Position of the first withdrawal */
+        private int wd_base;
+        /** Entries and withdrawals of a compact packet, decoded by wrap() */
+        private char[] c_dest= new char[0];
+        private int[] c_dist= new int[0];
+        private char[] c_wd= new char[0];
+
+        /**
+         * Decode and validate a ROUTE_DELTA packet body
+         * @param buf  buffer positioned after the common header
+         * @throws IOException if the packet is malformed
+         */
+        public void wrap(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 11)
+                throw new EOFException("Packet too short");
+            this.buf= buf;
+            TTL= buf.getInt();
+            flags= buf.get();
+            seq= buf.getInt();
+            frag= 0;
+            frags= 1;
+            if (fragmented()) {
+                if (buf.remaining() < 4)
+                    throw new EOFException("Packet too short");
+                frag= buf.get() & 0xFF;
+                frags= buf.get() & 0xFF;
+                if ((frags < 2) || (frag >= frags))
+                    throw new IOException("Invalid fragment "+frag+"/"+frags);
+            }
+            count= buf.getShort() & 0xFFFF;
+            base= buf.position();
+            if (count > RouterNode.MAX_ROUTINGTABLE_SIZE)
+                throw new IOException("Invalid Entry list length '"+count+"'");
+            if (compact()) {
+                decode_compact();
+            } else {
+                if (buf.remaining() < count*ENTRY_LEN + 2)
+                    throw new EOFException("Packet too short");
+                wd_count= buf.getShort(base + count*ENTRY_LEN) & 0xFFFF;
+                wd_base= base + count*ENTRY_LEN + 2;
+                check_wd_count();
+                if (buf.limit() - wd_base < wd_count*2)
+                    throw new EOFException("Packet too short");
+                if (buf.limit() - wd_base > wd_count*2)
+                    throw new IOException("Invalid ROUTE_DELTA - extra bytes after end of message");
+            }
+            for (int i= 0; i<count; i++) {
+                if (!NodeId.is_valid(dest(i)))
+                    throw new IOException("Invalid address '"+dest(i)+"'");
+                if ((dist(i)<0) || (dist(i)>RouterNode.MAX_DISTANCE))
+                    throw new IOException("Invalid distance '"+dist(i)+"'");
+            }
+            for (int i= 0; i<wd_count; i++) {
+                if (!NodeId.is_valid(withdrawn(i)))
+                    throw new IOException("Invalid address '"+withdrawn(i)+"'");
+            }
+        }
+
+        /**
+         * Decode the entries and withdrawals of a compact packet
+         * @throws IOException if the packet is malformed
+         */
+        private void decode_compact() throws IOException {
+            if (c_dest.length < count) {
+                c_dest= new char[count];
+                c_dist= new int[count];
+            }
+            int d= 0;
+            for (int i= 0; i<count; i++) {
+                int v= get_varint(buf);
+                int gap= v >>> DIST_BITS;
+                if ((i > 0) && (gap == 0))
+                    throw new IOException("Duplicated address");
+                d+= gap;
+                if (d > NodeId.MAX)
+                    throw new IOException("Invalid address '"+d+"'");
+                c_dest[i]= (char)d;
+                c_dist[i]= v & ((1 << DIST_BITS) - 1);
+            }
+            if (buf.remaining() < 2)
+                throw new EOFException("Packet too short");
+            wd_count= buf.getShort() & 0xFFFF;
+            check_wd_count();
+            if (c_wd.length < wd_count)
+                c_wd= new char[wd_count];
+            d= 0;
+            for (int i= 0; i<wd_count; i++) {
+                int gap= get_varint(buf);
+                if ((i > 0) && (gap == 0))
+                    throw new IOException("Duplicated address");
+                d+= gap;
+                if (d > NodeId.MAX)
+                    throw new IOException("Invalid address '"+d+"'");
+                c_wd[i]= (char)d;
+            }
+            if (buf.hasRemaining())
+                throw new IOException("Invalid ROUTE_DELTA - extra bytes after end of message");
+        }
+
+        /**
+         * Validate the number of withdrawals
+         * @throws IOException if it is not valid
+         */
+        private void check_wd_count() throws IOException {
+            if (full() && (wd_count > 0))
+                throw new IOException("Withdrawals in full vector");
+            if (wd_count > RouterNode.MAX_ROUTINGTABLE_SIZE)
+                throw new IOException("Invalid withdrawal list length '"+wd_count+"'");
+        }
+
+        /**
+         * Return the vector TTL
+         * @return TTL in seconds
+         */
+        public int TTL() { return TTL; }
+        /**
+         * Test if the packet carries the full vector
+         * @return true if full, false if delta
+         */
+        public boolean full() { return (flags & FLAG_FULL) != 0; }
+        /**
+         * Test if the packet uses compact entries
+         * @return true if compact
+         */
+        public boolean compact() { return (flags & FLAG_COMPACT) != 0; }
+        /**
+         * Test if the packet is one fragment of a larger update
+         * @return true if fragmented
+         */
+        public boolean fragmented() { return (flags & FLAG_FRAG) != 0; }
+        /**
+         * Return the fragment index
+         * @return index, from 0 to frags()-1
+         */
+        public int frag() { return frag; }
+        /**
+         * Return the number of fragments of the update
+         * @return number of fragments; 1 if not fragmented
+         */
+        public int frags() { return frags; }
+        /**
+         * Return the sequence number
+         * @return sequence number
+         */
+        public int seq() { return seq; }
+        /**
+         * Return the number of entries added or modified
+         * @return number of entries
+         */
+        public int count() { return count; }
+        /**
+         * Return the number of destinations withdrawn
+         * @return number of withdrawals
+         */
+        public int wd_count() { return wd_count; }
+        /**
+         * Return the destination of entry i
+         * @param i  entry index
+         * @return destination address
+         */
+        public char dest(int i) { 
+            return compact() ? c_dest[i] : buf.getChar(base + i*ENTRY_LEN); 
+        }
+        /**
+         * Return the distance of entry i
+         * @param i  entry index
+         * @return distance
+         */
+        public int dist(int i) { 
+            return compact() ? c_dist[i] : buf.getInt(base + i*ENTRY_LEN + 2); 
+        }
+        /**
+         * Return the destination of withdrawal i
+         * @param i  withdrawal index
+         * @return destination address
+         */
+        public char withdrawn(int i) { 
+            return compact() ? c_wd[i] : buf.getChar(wd_base + i*2); 
+        }
+
+        /**
+         * Apply the packet to a vector. A fragment of a full vector only
+         * adds or modifies entries; the entries missing from all the
+         * fragments are removed when the last one arrives. The old vector
+         * is indexed by destination, so the cost is linear in the sizes of
+         * the vector and of the packet
+         * @param old  vector received before; ignored if the packet is a
+         *      full vector in one fragment
+         * @return the resulting vector; old itself if nothing changed
+         */
+        public Entry[] apply(Entry[] old) {
+            boolean replace= full() && !fragmented();
+            HashMap<Character, Entry> index= new HashMap<>(2*old.length);
+            for (Entry e : old) {
+                index.put(e.dest, e);
+            }
+            // Look for changes
+            boolean changed= replace && (old.length != count);
+            for (int i= 0; !changed && (i<count); i++) {
+                Entry e= index.get(dest(i));
+                changed= (e == null) || (e.dist != dist(i));
+            }
+            for (int i= 0; !changed && (i<wd_count); i++) {
+                changed= index.containsKey(withdrawn(i));
+            }
+            if (!changed)
+                return old;
+            // Build the new vector
+            ArrayList<Entry> vec= new ArrayList<>(old.length + count);
+            if (!replace) {
+                HashSet<Character> touched= new HashSet<>(2*(count + wd_count));
+                for (int i= 0; i<count; i++) {
+                    touched.add(dest(i));
+                }
+                for (int i= 0; i<wd_count; i++) {
+                    touched.add(withdrawn(i));
+                }
+                for (Entry e : old) {
+                    if (!touched.contains(e.dest))
+                        vec.add(e);
+                }
+            }
+            for (int i= 0; i<count; i++) {
+                vec.add(new Entry(dest(i), dist(i)));
+            }
+            return vec.toArray(new Entry[vec.size()]);
+        }
+
+        /**
+         * Return a string with the entries
+         * @return string with the packet contents
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb= new StringBuilder();
+            sb.append(full() ? "FULL" : "DELTA").append(",seq=").append(seq);
+            if (fragmented())
+                sb.append(",frag=").append(frag).append('/').append(frags);
+            sb.append(",TTL=").append(TTL).append(",EntryList(").append(count).append(": ");
+            for (int i= 0; i<count; i++) {
+                sb.append(i == 0 ? "" : " ; ").append('(').append(dest(i))
+                    .append(" , ").append(dist(i)).append(')');
+            }
+            sb.append(")");
+            if (wd_count > 0) {
+                sb.append(",Withdrawn(");
+                for (int i= 0; i<wd_count; i++) {
+                    sb.append(withdrawn(i));
+                }
+                sb.append(')');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Reads the fields of an LSA packet in place
+     */
+    public static final class LsaReader {
+        private ByteBuffer buf;
+        private char origin;
+        private int seq;
+        private int TTL;
+        private int count;
+        /** Position of the first link */
+        private int base;
+
+        /**
+         * Decode and validate an LSA packet body
+         * @param buf  buffer positioned after the common header
+         * @throws IOException if the packet is malformed
+         */
+        public void wrap(ByteBuffer buf) throws IOException {
+            if (buf.remaining() < 12)
+                throw new EOFException("Packet too short");
+            this.buf= buf;
+            origin= buf.getChar();
+            seq= buf.getInt();
+            TTL= buf.getInt();
+            count= buf.getShort() & 0xFFFF;
+            base= buf.position();
+            if (!NodeId.is_valid(origin))
+                throw new IOException("Invalid origin '"+origin+"'");
+            if (TTL <= 0)
+                throw new IOException("Invalid TTL '"+TTL+"'");
+            if (count > RouterNode.MAX_ROUTINGTABLE_SIZE)
+                throw new IOException("Invalid link list length '"+count+"'");
+            if (buf.remaining() < count*ENTRY_LEN)
+                throw new EOFException("Packet too short");
+            if (buf.remaining() > count*ENTRY_LEN)
+                throw new IOException("Invalid LSA - extra bytes after end of message");
+            for (int i= 0; i<count; i++) {
+                if (!NodeId.is_valid(dest(i)))
+                    throw new IOException("Invalid address '"+dest(i)+"'");
+                if ((dist(i)<1) || (dist(i)>RouterNode.MAX_DISTANCE))
+                    throw new IOException("Invalid distance '"+dist(i)+"'");
+            }
+        }
+
+        /**
+         * Return the router that originated the LSA
+         * @return origin address
+         */
+        public char origin() { return origin; }
+        /**
+         * Return the sequence number
+         * @return sequence number
+         */
+        public int seq() { return seq; }
+        /**
+         * Return the LSA TTL
+         * @return TTL in seconds
+         */
+        public int TTL() { return TTL; }
+        /**
+         * Return the number of links
+         * @return number of links
+         */
+        public int count() { return count; }
+        /**
+         * Return the neighbour of link i
+         * @param i  link index
+         * @return neighbour address
+         */
+        public char dest(int i) { return buf.getChar(base + i*ENTRY_LEN); }
+        /**
+         * Return the distance of link i
+         * @param i  link index
+         * @return distance
+         */
+        public int dist(int i) { return buf.getInt(base + i*ENTRY_LEN + 2); }
+
+        /**
+         * Create an Entry vector with the links
+         * @return new vector
+         */
+        public Entry[] to_vec() {
+            Entry[] vec= new Entry[count];
+            for (int i= 0; i<count; i++) {
+                vec[i]= new Entry(dest(i), dist(i));
+            }
+            return vec;
+        }
+
+        /**
+         * Return a string with the links
+         * @return string with the packet contents
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb= new StringBuilder();
+            sb.append("origin=").append(origin).append(",seq=").append(seq)
+                .append(",TTL=").append(TTL).append(",Links(").append(count).append(": ");
+            for (int i= 0; i<count; i++) {
+                sb.append(i == 0 ? "" : " ; ").append('(').append(dest(i))
+                    .append(" , ").append(dist(i)).append(')');
+            }
+            return sb.append(')').toString();
+        }
+    }
+
+    /**
+     * Reads the fields of a DATA packet in place
+     */
+    public static final class DataReader {
+        private ByteBuffer buf;
+        private char dest;
+        private int seq;
+        private int msg_len;
+        /** Position of the message */
+        private int msg_pos;
+        private int path_len;
+        /** Bytes per name in the path: 1, or 2 in PKT_DATA_WIDE */
+        private int name_len;
+
+        /**
+         * Decode and validate a DATA packet body
+         * @param buf  buffer positioned after the common header
+         * @param wide true for PKT_DATA_WIDE, with two bytes per path name
+         * @throws IOException if the packet is malformed
+         */
+        public void wrap(ByteBuffer buf, boolean wide) throws IOException {
+            this.buf= buf;
+            this.name_len= wide ? 2 : 1;
+            int pos= buf.position();
+            if (buf.remaining() < 8)
+                throw new EOFException("packet too short");
+            dest= buf.getChar(pos);
+            seq= buf.getInt(pos + 2);
+            msg_len= buf.getShort(pos + 6);
+            msg_pos= pos + 8;
+            if (msg_len > 255)
+                throw new IOException("message too long ("+msg_len+">255)");
+            if ((msg_len < 0) || (msg_pos + msg_len >= buf.limit()))
+                throw new IOException("Invalid message length");
+            path_len= buf.get(path_len_pos());
+            if ((path_len < 0) || (path_pos() + path_len*name_len != buf.limit()))
+                throw new IOException("Invalid path length");
+            if (path_len > RouterNode.MAX_PATH_LEN)
+                throw new IOException("path length too long ("+path_len+">"
+                        +RouterNode.MAX_PATH_LEN+")");
+        }
+
+        /**
+         * Return the destination
+         * @return destination address
+         */
+        public char dest() { return dest; }
+        /**
+         * Return the sequence number
+         * @return sequence number
+         */
+        public int seq() { return seq; }
+        /**
+         * Return the path length
+         * @return number of names in the path
+         */
+        public int path_len() { return path_len; }
+        /**
+         * Test if the path uses two bytes per name (PKT_DATA_WIDE)
+         * @return true if wide
+         */
+        public boolean wide() { return name_len == 2; }
+        /**
+         * Return a name of the path
+         * @param i  index in the path
+         * @return name
+         */
+        public char path_name(int i) {
+            int pos= path_pos() + i*name_len;
+            return wide() ? buf.getChar(pos) : (char)(buf.get(pos) & 0xFF);
+        }
+        /**
+         * Return the position of the path length field in the buffer
+         * @return position
+         */
+        public int path_len_pos() { return msg_pos + msg_len; }
+        /**
+         * Return the position of the path in the buffer
+         * @return position
+         */
+        public int path_pos() { return msg_pos + msg_len + 1; }
+
+        /**
+         * Decode the message contents
+         * @return message string
+         */
+        public String msg() { return decode(msg_pos, msg_len); }
+        /**
+         * Decode the path
+         * @return path string, with one character per name
+         */
+        public String path() {
+            if (!wide())
+                return decode(path_pos(), path_len);
+            StringBuilder sb= new StringBuilder(path_len);
+            for (int i= 0; i<path_len; i++) {
+                sb.append(path_name(i));
+            }
+            return sb.toString();
+        }
+
+        /**
+         * Decode a byte string
+         * @param pos  position in the buffer
+         * @param len  number of bytes
+         * @return new string
+         */
+        private String decode(int pos, int len) {
+            byte[] b= new byte[len];
+            for (int i= 0; i<len; i++) {
+                b[i]= buf.get(pos + i);
+            }
+            return new String(b, 0, len);
+        }
+    }
+}
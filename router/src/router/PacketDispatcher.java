@@ -0,0 +1,212 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * PacketDispatcher.java
+ *
+ * Dispatches received packets to the control plane and data plane executors
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches received packets by type:
+ *  - HELLO, BYE and ROUTE packets run one at a time on the control executor;
+ *  - DATA packets run in parallel on the data worker pool.
+ *
+ * Thread-safety rules:
+ *  - NeighbourList and RoutingTable are only modified by tasks running on the
+ *    control executor (packets, GUI actions and timers all submit there);
+ *  - DATA workers only read the published routing table and neighbour list;
+ *  - the control tasks that are not packets (GUI actions, timers) run on the
+ *    control executor too; nothing else serializes them.
+ *
+ * Both executors have bounded queues. A packet that does not fit is dropped:
+ * its view is released and the drop is counted in RouterNode.DROPPED_rcv.
+ * Packets use at most CONTROL_PACKETS places of the control queue, leaving
+ * the rest for the other control tasks; these are bounded by the number of
+ * routes and neighbours, and are only rejected (and logged) if it fills.
+ *
+ * Each received datagram is read into a PacketView taken from a pool, which
+ * owns its buffer. The view is handed to the task that processes it and
+ * returns to the pool when the task ends, so no buffer is allocated or
+ * copied per datagram. At most MAX_VIEWS views are created; when all are in
+ * use, the receive engine stops reading and the datagrams wait in the
+ * socket buffer, where the system drops them if it fills.
+ */
+public class PacketDispatcher {
+    /** Time waited for pending tasks when stopping [ms] */
+    private final static int SHUTDOWN_WAIT = 1000;
+    /** Maximum number of views, idle or in use */
+    public final static int MAX_VIEWS = 256;
+    /** Size of the buffer of each view: the largest datagram received,
+     *  plus room to forward DATA packets in place */
+    public final static int VIEW_CAPACITY = UnicastDaemon.MAX_DATAGRAM + PacketView.TAILROOM;
+    /** Maximum number of packets waiting in the control queue */
+    public final static int CONTROL_PACKETS = MAX_VIEWS / 2;
+    /** Size of the control queue: packets, plus timers (e.g. one hold down
+     *  per route) and other control tasks */
+    private final static int CONTROL_QUEUE = CONTROL_PACKETS + 4 * RouterNode.MAX_ROUTINGTABLE_SIZE;
+    /** Maximum number of DATA packets waiting for a data worker */
+    public final static int DATA_QUEUE = MAX_VIEWS / 2;
+
+    /**
+     * Task that processes one received packet
+     */
+    private final class PacketTask implements Runnable {
+        /** Packet view, released when the task ends */
+        final PacketView view;
+
+        PacketTask(PacketView view) {
+            this.view = view;
+        }
+
+        @Override
+        public void run() {
+            try {
+                router.process_packet(view);
+            } finally {
+                release(view);
+            }
+        }
+    }
+
+    /** Router that processes the packets */
+    private final RouterNode router;
+    /** Single thread executor for the control plane */
+    private final ThreadPoolExecutor control;
+    /** Worker pool for the data plane */
+    private final ThreadPoolExecutor data;
+    /** Idle packet views */
+    private final ArrayBlockingQueue<PacketView> pool = new ArrayBlockingQueue<>(MAX_VIEWS);
+    /** Number of views created */
+    private final AtomicInteger views = new AtomicInteger();
+
+    /**
+     * Constructor - create the control executor and the data worker pool
+     *
+     * @param router router that processes the packets
+     * @param data_workers number of threads in the data worker pool
+     */
+    public PacketDispatcher(RouterNode router, int data_workers) {
+        this.router = router;
+        this.control = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(CONTROL_QUEUE), r -> {
+                    Thread t = new Thread(r, "router-control");
+                    t.setDaemon(true);
+                    return t;
+                }, this::rejected);
+        AtomicInteger cnt = new AtomicInteger();
+        this.data = new ThreadPoolExecutor(data_workers, data_workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DATA_QUEUE), r -> {
+                    Thread t = new Thread(r, "router-data-" + cnt.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, this::rejected);
+    }
+
+    /**
+     * Handle a task that does not fit in the queue of an executor, or
+     * arrives after the shutdown: a packet is dropped, releasing its view;
+     * other tasks are rejected
+     *
+     * @param r task
+     * @param ex executor
+     */
+    private void rejected(Runnable r, ThreadPoolExecutor ex) {
+        if (!(r instanceof PacketTask)) {
+            if (!ex.isShutdown())
+                router.Log(Log.Level.WARN, "Control queue full - task discarded\n");
+            throw new RejectedExecutionException(ex.isShutdown() ? "Stopped" : "Queue full");
+        }
+        release(((PacketTask) r).view);
+        if (!ex.isShutdown())
+            router.DROPPED_rcv.increment();
+    }
+
+    /**
+     * Take a view from the pool, to receive a datagram into its buffer; a
+     * new view is created if none is idle and less than MAX_VIEWS exist
+     *
+     * @param wait_ms time waited for a view to be released when all are in
+     *      use [ms]; 0 to return at once
+     * @return an idle view, with a buffer of VIEW_CAPACITY bytes, or null
+     *      if all the views are in use
+     */
+    public PacketView take(long wait_ms) {
+        PacketView view = pool.poll();
+        if (view != null)
+            return view;
+        if (views.incrementAndGet() <= MAX_VIEWS)
+            return new PacketView(VIEW_CAPACITY);
+        views.decrementAndGet();
+        try {
+            return pool.poll(wait_ms, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Return a view to the pool
+     *
+     * @param view view taken with take()
+     */
+    public void release(PacketView view) {
+        view.store().clear();
+        pool.offer(view);
+    }
+
+    /**
+     * Dispatch a received packet to the right executor. The view is owned by
+     * the dispatcher from now on, and is released after being processed.
+     *
+     * @param view packet view taken with take(), positioned after the header
+     */
+    public void dispatch(PacketView view) {
+        PacketTask task = new PacketTask(view);
+        if ((view.code() == RouterNode.PKT_DATA) || (view.code() == RouterNode.PKT_DATA_WIDE)) {
+            data.execute(task);
+        } else if (control.getQueue().size() >= CONTROL_PACKETS) {
+            rejected(task, control);    // Keeps room for the other control tasks
+        } else {
+            control.execute(task);
+        }
+    }
+
+    /**
+     * Run a task on the control executor
+     *
+     * @param task task that modifies the control plane state
+     */
+    public void submit_control(Runnable task) {
+        try {
+            control.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Stopping, or control queue full - task discarded
+        }
+    }
+
+    /**
+     * Stop both executors, waiting for the tasks already queued
+     */
+    public void shutdown() {
+        control.shutdown();
+        data.shutdown();
+        try {
+            control.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+            data.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * PacketView.java
+ *
+ * Typed view over a received datagram
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view over a received datagram: decodes the common header
+ * (code + sender) in place and exposes the remaining payload as a ByteBuffer.
+ * The views used by the daemon own their receive buffer, and are recycled
+ * by the PacketDispatcher once the packet is processed.
+ */
+public final class PacketView {
+    /** Size of the common header: code (byte) + sender (char) */
+    public final static int HEADER_LEN= 3;
+    /** Free bytes kept after a copied datagram, so that a transit DATA 
+     *  packet can append the local name to its path in place (two bytes
+     *  in PKT_DATA_WIDE) */
+    public final static int TAILROOM= 2;
+
+    /** Buffer with the datagram contents; position is after the header */
+    private ByteBuffer buf;
+    /** Address of the sender */
+    private InetSocketAddress src;
+    /** Packet type code */
+    private byte code;
+    /** Sender name */
+    private char sender;
+    /** Receive buffer owned by the view, or null */
+    private final ByteBuffer store;
+
+    /**
+     * Constructor - create a view over buffers owned by the caller
+     */
+    public PacketView() {
+        this.store= null;
+    }
+
+    /**
+     * Constructor - create a view that owns its receive buffer
+     * @param capacity  size of the receive buffer, including the TAILROOM
+     */
+    public PacketView(int capacity) {
+        this.store= ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Return the receive buffer owned by the view
+     * @return the buffer, or null if the view does not own one
+     */
+    public ByteBuffer store() { return store; }
+
+    /**
+     * Wrap a datagram buffer and decode the common header
+     * @param buf  buffer with the datagram, between position and limit
+     * @param src  sender socket address
+     * @return true if the header was decoded, false if the packet is too short
+     */
+    public boolean wrap(ByteBuffer buf, InetSocketAddress src) {
+        this.buf= buf;
+        this.src= src;
+        if (buf.remaining() < HEADER_LEN)
+            return false;
+        code= buf.get();
+        sender= buf.getChar();
+        return true;
+    }
+
+    /**
+     * Return the packet type code
+     * @return packet code
+     */
+    public byte code() { return code; }
+    /**
+     * Return the sender name written in the packet
+     * @return sender name
+     */
+    public char sender() { return sender; }
+    /**
+     * Return the socket address the packet was received from
+     * @return sender socket address
+     */
+    public InetSocketAddress source() { return src; }
+    /**
+     * Return the IP address of the sender as a string
+     * @return IP address
+     */
+    public String ip() { return src.getAddress().getHostAddress(); }
+    /**
+     * Return the port number of the sender
+     * @return port number
+     */
+    public int port() { return src.getPort(); }
+    /**
+     * Return the packet payload, positioned after the header
+     * @return buffer with the payload
+     */
+    public ByteBuffer buffer() { return buf; }
+    /**
+     * Return the total length of the datagram
+     * @return number of bytes
+     */
+    public int length() { return buf.limit(); }
+}
@@ -0,0 +1,164 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RecomputeScheduler.java
+ *
+ * Coalesces routing table recalculations
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Merges bursts of topology events into one recalculation: each event marks
+ * the table dirty, and the action runs at most once per coalescing window,
+ * on the control executor.
+ *
+ * request() must be called from the control executor.
+ */
+public class RecomputeScheduler {
+    /** Action run for each recalculation; receives the send_always flag */
+    private final Consumer<Boolean> action;
+    /** Control plane executor */
+    private final Executor control;
+    /** Timing wheel that waits for the end of the window */
+    private final TimingWheel timer;
+    /** Timeout of the run scheduled, or null */
+    private TimingWheel.Timeout timeout;
+    /** Coalescing window [ns] */
+    private final long window;
+
+    /** True if there are events not handled yet */
+    private boolean dirty;
+    /** True if at least one pending event requested sending always */
+    private boolean send_always;
+    /** True if a run is already scheduled */
+    private boolean scheduled;
+    /** Time of the last run [ns] */
+    private long last_run;
+    /** Events since the last run */
+    private int pending;
+
+    /* Statistics counters */
+    private long events;
+    private long runs;
+    private int last_merged;
+    private int max_merged;
+
+    /**
+     * Constructor
+     *
+     * @param action action run for each recalculation
+     * @param control control plane executor
+     * @param timer shared timing wheel
+     * @param window_ms coalescing window [ms]
+     */
+    public RecomputeScheduler(Consumer<Boolean> action, Executor control, 
+            TimingWheel timer, int window_ms) {
+        this.action = action;
+        this.control = control;
+        this.timer = timer;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window_ms);
+        this.last_run = timer.clock().nanos() - window;
+    }
+
+    /**
+     * Register a topology event
+     *
+     * @param send_always if true, the ROUTE is sent even if the table does
+     *      not change
+     */
+    public void request(boolean send_always) {
+        events++;
+        pending++;
+        dirty = true;
+        this.send_always |= send_always;
+        if (scheduled) {
+            return;     // Merged with the run already scheduled
+        }
+        scheduled = true;
+        long delay = last_run + window - timer.clock().nanos();
+        try {
+            if (delay <= 0) {
+                control.execute(this::run);
+            } else {
+                timeout = timer.schedule(() -> submit(), delay, TimeUnit.NANOSECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            scheduled = false;  // Stopping
+        }
+    }
+
+    /**
+     * Hand the run to the control executor, at the end of the window
+     */
+    private void submit() {
+        try {
+            control.execute(this::run);
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
+
+    /**
+     * Run the recalculation, on the control executor
+     */
+    private void run() {
+        scheduled = false;
+        timeout = null;
+        if (!dirty) {
+            return;
+        }
+        boolean always = send_always;
+        last_merged = pending;
+        max_merged = Math.max(max_merged, pending);
+        runs++;
+        dirty = false;
+        send_always = false;
+        pending = 0;
+        last_run = timer.clock().nanos();
+        action.accept(always);
+    }
+
+    /**
+     * Stop the scheduler; pending events are discarded
+     */
+    public void stop() {
+        TimingWheel.Timeout t = timeout;
+        if (t != null)
+            t.cancel();
+    }
+
+    /**
+     * Return a string with the counters
+     *
+     * @return string with the number of events, runs and merged events
+     */
+    public String statistics() {
+        return "Recompute events:" + events + " runs:" + runs
+                + " merged(last):" + last_merged + " merged(max):" + max_merged;
+    }
+
+    /**
+     * Return the number of events registered
+     * @return number of events
+     */
+    public long events() { return events; }
+    /**
+     * Return the number of recalculations run
+     * @return number of runs
+     */
+    public long runs() { return runs; }
+    /**
+     * Return the number of events merged into the last run
+     * @return number of events
+     */
+    public int last_merged() { return last_merged; }
+}
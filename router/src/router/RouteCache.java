@@ -0,0 +1,159 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouteCache.java
+ *
+ * Cache of the vectors and ROUTE packets sent to each neighbour
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Keeps the vector advertised to each neighbour and its encoded ROUTE
+ * packet. The vectors are built in one pass over a routing table snapshot
+ * and are kept until a new snapshot is published; since snapshots are
+ * read-only, the snapshot itself identifies the table version. Neighbours
+ * that receive the same vector share the same vector and encoded packet.
+ *
+ * Only used by the control executor.
+ */
+public class RouteCache {
+    /** Local address name */
+    private final char local_name;
+    /** Uses Split Horizon */
+    private final boolean splitHorizon;
+    /** TTL sent in the ROUTE packets */
+    private final int TTL;
+
+    /** Table snapshot used to build the cache, or null if empty */
+    private RoutingTable built_from;
+    /** Vector without split horizon; null if empty */
+    private Entry[] all;
+    /** Entries of 'all' grouped by next hop */
+    private final HashMap<Character, List<Entry>> by_hop = new HashMap<>();
+    /** Vector sent to each neighbour, built on demand */
+    private final HashMap<Character, Entry[]> vecs = new HashMap<>();
+    /** ROUTE packet of each vector, built on demand */
+    private final IdentityHashMap<Entry[], ByteBuffer> packets = new IdentityHashMap<>();
+
+    /* Statistics counters */
+    private long builds;
+    private long encodes;
+
+    /**
+     * Constructor
+     *
+     * @param local_name local address
+     * @param splitHorizon use Split Horizon
+     * @param TTL TTL sent in the ROUTE packets
+     */
+    public RouteCache(char local_name, boolean splitHorizon, int TTL) {
+        this.local_name = local_name;
+        this.splitHorizon = splitHorizon;
+        this.TTL = TTL;
+    }
+
+    /**
+     * Rebuild the cache if the table snapshot changed
+     *
+     * @param tab routing table snapshot; it must be frozen
+     */
+    public void update(RoutingTable tab) {
+        if (tab == built_from)
+            return;
+        clear();
+        built_from = tab;
+        builds++;
+        ArrayList<Entry> list = new ArrayList<>(tab.size());
+        for (Iterator<RouteEntry> it = tab.iterator(); it.hasNext(); ) {
+            RouteEntry re = it.next();
+            if (re.is_holddown())
+                continue;
+            list.add(re);
+            if (splitHorizon && (re.next_hop != ' ')) {
+                // Excluded from the vectors sent to all its next hops
+                if (re.next_hops == null) {
+                    by_hop.computeIfAbsent(re.next_hop, k -> new ArrayList<>()).add(re);
+                } else {
+                    for (char hop : re.next_hops)
+                        by_hop.computeIfAbsent(hop, k -> new ArrayList<>()).add(re);
+                }
+            }
+        }
+        all = list.isEmpty() ? null : list.toArray(new Entry[list.size()]);
+    }
+
+    /**
+     * Return the vector advertised to a neighbour
+     *
+     * @param n neighbour name
+     * @return the vector, or null if empty; it must not be modified
+     */
+    public Entry[] vec(char n) {
+        List<Entry> excluded = by_hop.get(n);
+        if ((all == null) || (excluded == null))
+            return all;     // Shared by all neighbours without exclusions
+        Entry[] vec = vecs.get(n);
+        if ((vec == null) && !vecs.containsKey(n)) {
+            if (excluded.size() < all.length) {
+                vec = new Entry[all.length - excluded.size()];
+                int i = 0;
+                for (Entry e : all) {
+                    if (!((RouteEntry) e).has_hop(n))
+                        vec[i++] = e;
+                }
+            }
+            vecs.put(n, vec);
+        }
+        return vec;
+    }
+
+    /**
+     * Return the ROUTE packet advertised to a neighbour; it is shared, and
+     * must be sent without changing its position
+     *
+     * @param n neighbour name
+     * @return buffer with the packet, or null if the vector is empty
+     */
+    public ByteBuffer packet(char n) {
+        Entry[] vec = vec(n);
+        if (vec == null)
+            return null;
+        ByteBuffer buf = packets.get(vec);
+        if (buf == null) {
+            ByteBuffer enc = PacketCodec.get().encode_ROUTE(local_name, TTL, vec);
+            buf = ByteBuffer.allocate(enc.remaining());
+            buf.put(enc);
+            buf.flip();
+            packets.put(vec, buf);
+            encodes++;
+        }
+        return buf;
+    }
+
+    /**
+     * Empty the cache
+     */
+    public void clear() {
+        built_from = null;
+        all = null;
+        by_hop.clear();
+        vecs.clear();
+        packets.clear();
+    }
+
+    /**
+     * Return a string with the counters
+     *
+     * @return string with the number of builds and encodings
+     */
+    public String statistics() {
+        return "ROUTE cache builds:" + builds + " encodes:" + encodes;
+    }
+}
@@ -11,11 +11,9 @@
  */
 package router;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 
 public class RouteEntry extends Entry {
@@ -27,8 +25,11 @@ public class RouteEntry extends Entry {
 // New fields
     /** next hop */
     public char next_hop;
+    /** Equal cost next hops, sorted, including next_hop; null if next_hop 
+     * is the only one */
+    public char[] next_hops;
     /** Holddown timer */
-    private javax.swing.Timer holddown_timer;
+    private TimingWheel.Timeout holddown_timer;
     /** Holdown start time */
     private Date holddown_stime;
     /** Holdown duration */
@@ -46,7 +47,7 @@ public class RouteEntry extends Entry {
      * @param log  Log object 
      */
     public RouteEntry(char dest, Log log) {
-        super(dest, Router.MAX_DISTANCE);
+        super(dest, RouterNode.MAX_DISTANCE);
         next_hop= ' ';
         holddown_timer= null;
         holddown_stime= null;
@@ -63,6 +64,7 @@ public class RouteEntry extends Entry {
     public RouteEntry(RouteEntry src) {
         super(src);
         next_hop= src.next_hop;
+        next_hops= src.next_hops;
         holddown_timer= src.holddown_timer;
         holddown_stime= src.holddown_stime;
         holddown_duration= src.holddown_duration;
@@ -89,32 +91,83 @@ public class RouteEntry extends Entry {
         self= this;
     }
     
+// Equal cost multipath specific functions
+
+    /**
+     * Select the next hop of a flow; all the packets of the same flow use
+     * the same next hop
+     * @param src  source of the flow
+     * @return the next hop address
+     */
+    public char select_hop(char src) {
+        if (next_hops == null)
+            return next_hop;
+        int h= (src * 0x9E3779B1) ^ dest;
+        h^= (h >>> 16);
+        return next_hops[Math.floorMod(h * 0x85EBCA6B, next_hops.length)];
+    }
+
+    /**
+     * Test if a neighbour is one of the next hops
+     * @param n  neighbour address
+     * @return true if n is a next hop
+     */
+    public boolean has_hop(char n) {
+        if (next_hops == null)
+            return next_hop == n;
+        for (char c : next_hops) {
+            if (c == n)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compare the next hops with another entry
+     * @param e  another RouteEntry
+     * @return true if both use the same next hops
+     */
+    public boolean same_hops(RouteEntry e) {
+        return (e != null) && (next_hop == e.next_hop) 
+                && Arrays.equals(next_hops, e.next_hops);
+    }
+
+    /**
+     * Return a string with the next hops
+     * @return string with the next hops, separated by ','
+     */
+    public String hops_string() {
+        if (next_hops == null)
+            return NodeId.str(next_hop);
+        StringBuilder sb= new StringBuilder();
+        for (char c : next_hops) {
+            sb.append(sb.length() == 0 ? "" : ",").append(NodeId.str(c));
+        }
+        return sb.toString();
+    }
+
 // Holdown algorithm specific field
     
     /**
-     * Set holddown value
+     * Set holddown value; must be called before the entry is published in
+     * a routing table
      * @param duration  Duration of the hold down time
      * @param router    router object
      */
     public void start_holddown(int duration, Routing router) { 
-        start_holddown_timer(duration); 
         this.holddown_stime= new Date();
         this.holddown_duration= duration; 
         this.router= router;
+        start_holddown_timer(duration, router); 
     }
     
     /**
-     * Decrement the holdown value
-     * @param update_table  if true, inform router process about hold down timeout
+     * Stop the hold down timer, without informing the router process
      */
-    public void stop_holddown(boolean update_table) { 
+    public void stop_holddown() { 
         stop_holddown_timer();
         this.holddown_stime= null;
         this.holddown_duration= 0;
-        if (update_table) {
-            // Update the routing table
-            router.handle_holddown_timeout(this);
-        }
         this.router= null;
     }
     
@@ -126,6 +179,16 @@ public class RouteEntry extends Entry {
         return (holddown_timer != null); 
     }
     
+    /**
+     * Test if the hold down timer of the entry expired; the timer is marked
+     * expired before the router process is informed, and the entry stays
+     * in hold down until the router process replaces it
+     * @return true if the hold down time ended
+     */
+    public boolean is_holddown_expired() { 
+        return (holddown_timer != null) && holddown_timer.is_expired(); 
+    }
+    
     
     /**
      * Return time until the end of hold down state
@@ -141,37 +204,25 @@ public class RouteEntry extends Entry {
     /* ------------------------------------ */
     // Holddown timer
     /**
-     * Start and run the timer responsible for counting the hold down time
+     * Start and run the timer responsible for counting the hold down time;
+     * the entry is not modified when the timer ends, the router process
+     * replaces it in a new routing table
+     * @param duration  hold down time in miliseconds
+     * @param router    router object, informed when the timer ends
      */
-    private void start_holddown_timer(int duration) {
-     
-        //  STEP 7
-        //  Place here the code to create and start the holddown timer
-        //  when the timer ends, it must call stop_holddown 
-
-        TimerTask decrementar = new TimerTask() {
-            int contador=duration;
-            public void run() {
-                contador--;
-                if(contador==0){
-                    stop_holddown(true);
-                }
-            }
-        };
-        Timer timer = new Timer();
-        int delay = 0;
-        timer.schedule(decrementar,delay,1000);        
+    private void start_holddown_timer(int duration, Routing router) {
+        holddown_timer = router.timers().schedule(() -> router.handle_holddown_timeout(this), 
+                duration, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Stop the timer responsible for counting the hold down time
      */
     private void stop_holddown_timer() {
-    
-        // STEP 7
-        // Place here the code to stop the holddown_timer
-        
-          
+        if (holddown_timer != null) {
+            holddown_timer.cancel();
+            holddown_timer = null;
+        }
     }
     
 }
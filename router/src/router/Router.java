@@ -15,35 +15,21 @@ import java.net.*;
 import java.io.*;
 
 /**
- * Main class and graphic interface class with auxiliar functions
+ * Main class and graphic interface class with auxiliar functions; the
+ * router itself runs in a RouterNode, and this window shows its state
  */
-public class Router extends javax.swing.JFrame implements Log {
-    
-    /** Packet's type codes */
-    public final static byte PKT_HELLO = 1;
-    public final static byte PKT_BYE = 2;
-    public final static byte PKT_ROUTE = 3;
-    public final static byte PKT_DATA = 9;
-    /** Maximum routing table size */
-    public final static int MAX_ROUTINGTABLE_SIZE= 30;
-    /** Maximum valid distance for a route, above or equal is infinity */
-    public final static int MAX_DISTANCE = 40;
-    /** Maximum path length for a DATA packet */
-    public final static int MAX_PATH_LEN = 20;
+public class Router extends javax.swing.JFrame implements Log, RouterListener {
     
     /**
      * Constructor - creates a new form router
      */
     public Router() {
-        this.data_seq = 0;
         // Start main window
         initComponents();
-        // Start Neighbour list
-        neig= new NeighbourList(neigTable.getRowCount(), this);
-        
-        ds= null;
-        daemon= null;
-        route= null;
+        // Start the router core, observed by this window
+        node= new RouterNode(this::write_log, this);
+        checkSndIfChanges.addActionListener(
+            evt -> node.set_sendIfChanges(checkSndIfChanges.isSelected()));
     }
     
     /** This method is called from within the constructor to
@@ -86,6 +72,9 @@ public class Router extends javax.swing.JFrame implements Log {
         jCheckBoxSplitH = new javax.swing.JCheckBox();
         jCheckBoxHolddown = new javax.swing.JCheckBox();
         editHoldownTime = new javax.swing.JTextField();
+        jPanel10 = new javax.swing.JPanel();
+        jLabel12 = new javax.swing.JLabel();
+        comboProtocol = new javax.swing.JComboBox<>();
         jPanel4 = new javax.swing.JPanel();
         jScrollPane2 = new javax.swing.JScrollPane();
         routeTable = new javax.swing.JTable();
@@ -322,6 +311,18 @@ public class Router extends javax.swing.JFrame implements Log {
 
         getContentPane().add(jPanel9);
 
+        jPanel10.setMaximumSize(new java.awt.Dimension(330, 30));
+        jPanel10.setMinimumSize(new java.awt.Dimension(330, 30));
+        jPanel10.setPreferredSize(new java.awt.Dimension(330, 30));
+
+        jLabel12.setText("Protocol");
+        jPanel10.add(jLabel12);
+
+        comboProtocol.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "Distance vector", "Link state", "DV feasible successors" }));
+        jPanel10.add(comboProtocol);
+
+        getContentPane().add(jPanel10);
+
         jPanel4.setMaximumSize(new java.awt.Dimension(320, 200));
         jPanel4.setMinimumSize(new java.awt.Dimension(320, 120));
         jPanel4.setPreferredSize(new java.awt.Dimension(320, 120));
@@ -472,9 +473,11 @@ public class Router extends javax.swing.JFrame implements Log {
     private void logTextKeyPressed(java.awt.event.KeyEvent evt) {//GEN-FIRST:event_logTextKeyPressed
         // Add your handling code here:
         if (evt.getKeyChar() == 's')
-            write_statistics();
+            node.write_statistics();
         if (evt.getKeyChar() == 'z')
-            zero_statistics();
+            node.zero_statistics();
+        if (evt.getKeyChar() == 'l')
+            node.next_log_level();
     }//GEN-LAST:event_logTextKeyPressed
 
     /** 
@@ -512,12 +515,7 @@ public class Router extends javax.swing.JFrame implements Log {
      * @param evt graphical event
      */
     private void buttonSendActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonSendActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        route.send_data_packet(local_name(), editDestName.getText().charAt(0), 
-            ++data_seq, editMessage.getText(), "");
+        node.send_data(NodeId.parse(editDestName.getText()), editMessage.getText());
     }//GEN-LAST:event_buttonSendActionPerformed
 
     /** 
@@ -525,24 +523,12 @@ public class Router extends javax.swing.JFrame implements Log {
      * @param evt graphical event
      */
     private void buttonModActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonModActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        if (neig.locate_neig(editNeigName.getText().charAt(0)) == null) {
-            Log("Invalid neighbour\n");
-            return;
-        }
+        char name= NodeId.parse(editNeigName.getText());
         try {
-            if (neig.update_neig(editNeigName.getText().charAt(0), 
-                          editNeigIP.getText(), 
-                          Integer.parseInt(editNeigPort.getText()),
-                          Integer.parseInt(editNeigDist.getText()))) { 
-                neig.refresh_table(neigTable);
-                if (checkSndIfChanges.isSelected()) {
-                    route.network_changed(true);
-                }
-            }
+            String ip= editNeigIP.getText();
+            int port= Integer.parseInt(editNeigPort.getText());
+            int dist= Integer.parseInt(editNeigDist.getText());
+            node.update_neighbour(name, ip, port, dist);
         }
         catch (NumberFormatException e) { 
             Log("Invalid number\n");
@@ -554,20 +540,7 @@ public class Router extends javax.swing.JFrame implements Log {
      * @param evt graphical event
      */
     private void buttonRemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonRemActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
-        if (neig.locate_neig(editNeigName.getText().charAt(0)) == null) {
-            Log("Invalid neighbour\n");
-            return;
-        }
-        if (neig.del_neig(editNeigName.getText().charAt(0), true, ds)) {
-            neig.refresh_table(neigTable);
-            if (checkSndIfChanges.isSelected()) {
-                route.network_changed(true);
-            }
-        }
+        node.remove_neighbour(NodeId.parse(editNeigName.getText()));
     }//GEN-LAST:event_buttonRemActionPerformed
 
     /** 
@@ -575,30 +548,17 @@ public class Router extends javax.swing.JFrame implements Log {
      * @param evt graphical event
      */
     private void buttonAddActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_buttonAddActionPerformed
-        if (!tbuttonActive.isSelected()) {
-            Log("Router is not active\n");
-            return;
-        }
         String new_name= editNeigName.getText();
-        if (new_name.length()>1 || !Character.isUpperCase(new_name.charAt(0))) {
+        char name= NodeId.parse(new_name);
+        if (!NodeId.is_valid(name)) {
             Log("Invalid name '"+new_name+"'\n");
             return;
         }
-        if (neig.locate_neig(new_name.charAt(0)) != null) {
-            Log("Duplicate name\n");
-            return;            
-        }
         try {
-            if (neig.add_neig(new_name.charAt(0), 
-                          editNeigIP.getText(), 
-                          Integer.parseInt(editNeigPort.getText()),
-                          Integer.parseInt(editNeigDist.getText()),
-                          ds)) {
-                neig.refresh_table(neigTable);
-                if (checkSndIfChanges.isSelected()) {
-                    route.network_changed(true);
-                }
-            }
+            String ip= editNeigIP.getText();
+            int port= Integer.parseInt(editNeigPort.getText());
+            int dist= Integer.parseInt(editNeigDist.getText());
+            node.add_neighbour(name, ip, port, dist);
         }
         catch (NumberFormatException e) { 
             Log("Invalid number\n");
@@ -614,70 +574,72 @@ public class Router extends javax.swing.JFrame implements Log {
             // Start Router
             boolean active= false;
             try {
-                int port= Integer.parseInt(editPort.getText());
-                char c= editName.getText().charAt(0);              
-                int period= Integer.parseInt(editPeriod.getText());
-                int holddownTime= Integer.parseInt (editHoldownTime.getText());
+                RouterConfig cfg= new RouterConfig();
+                cfg.port= Integer.parseInt(editPort.getText());
+                cfg.name= NodeId.parse(editName.getText());
+                if (!NodeId.is_valid(cfg.name)) {
+                    Log("Invalid name '"+editName.getText()+"'\n");
+                    tbuttonActive.setSelected(false);
+                    return;
+                }
+                cfg.period= Integer.parseInt(editPeriod.getText());
+                cfg.holddown_time= Integer.parseInt (editHoldownTime.getText());
+                cfg.split_horizon= jCheckBoxSplitH.isSelected();
+                cfg.holddown= jCheckBoxHolddown.isSelected();
+                cfg.mode= protocol();
+                cfg.send_if_changes= checkSndIfChanges.isSelected();
+                cfg.max_neighbours= neigTable.getRowCount();
                 do {
                     try {
-                        ds= new DatagramSocket(port);
+                        node.start(cfg);
                         active= true;
                     }
-                    catch (SocketException se) {
+                    catch (BindException se) {
                         // Skip to next letter
-                        port++;
-                        c++;
+                        cfg.port++;
+                        cfg.name++;
                     }
-                } while (!active && (c<='Z'));
+                } while (!active && (cfg.name<='Z'));
                 
                 if (!active) {
                     Log("All letters ('A'-'Z') occupied\n");
                     tbuttonActive.setSelected(false);
                     return;
                 }
+                char c= cfg.name;
+                int port= cfg.port;
                  // Update edit boxes
                 editPort.setText(""+port);
-                editName.setText(""+c);
+                editName.setText(NodeId.str(c));
                 editIP.setText(InetAddress.getLocalHost().getHostAddress());
-                editDestName.setText (""+c);
+                editDestName.setText (NodeId.str(c));
                 if (c<'Z') c++; else c--;
-                editNeigName.setText(""+c);
+                editNeigName.setText(NodeId.str(c));
                 editNeigPort.setText(""+(port+1));
                 editNeigIP.setText(InetAddress.getLocalHost().getHostAddress());
-                                
-                // Start Routing timer
-                route= new Routing(local_name(), neig, period, 
-                    jCheckBoxSplitH.isSelected(), jCheckBoxHolddown.isSelected(), 
-                    holddownTime, this, ds, routeTable);
-                if (!route.start()) {
-                    Log("Failed to boot the routing object\n");
-                    ds.close();
-                    ds= null;
-                    tbuttonActive.setSelected(false);
-                    return;
-                }
-                // Start daemon thread
-                daemon= new UnicastDaemon(this, ds);
-                daemon.start();
                 // Lock entry windows
                 editName.setEditable(false);
                 jCheckBoxSplitH.setEnabled(false);
                 jCheckBoxHolddown.setEnabled(false);
                 editHoldownTime.setEnabled(false);
+                comboProtocol.setEnabled(false);
                 editPort.setEditable(false);
                 editIP.setEditable(false);
                 editPeriod.setEditable(false);
-                //
-                zero_statistics();
             }
             catch (UnknownHostException e) {
                 Log("Localhost Unknown: "+e+"\n");
+                stop_router();
                 tbuttonActive.setSelected(false);
             }
             catch (NumberFormatException e) {
                 Log("Numero de porto ou periodo inv�lido: "+e+"\n");
                 tbuttonActive.setSelected(false);
             }
+            catch (IllegalArgumentException | IOException e) {
+                Log(e.getMessage()+"\n");
+                tbuttonActive.setSelected(false);
+            }
             
         } else {
             // Stop Router
@@ -690,8 +652,7 @@ public class Router extends javax.swing.JFrame implements Log {
      * @param evt graphical event
      */
     private void exitForm(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_exitForm
-        if (tbuttonActive.isSelected())
-            stop_router();
+        node.close();
         System.exit(0);
     }//GEN-LAST:event_exitForm
 
@@ -699,145 +660,76 @@ public class Router extends javax.swing.JFrame implements Log {
      * Stops the Router 
      */
     private void stop_router() {
-        if (daemon != null) {
-            daemon.stopRunning();
-            daemon= null;
-        }
-        if (route != null) {
-            route.stop();
-            route= null;
-        }
-        if (ds != null) {
-            neig.clear_BYE(ds);
-            neig.refresh_table(neigTable);
-            ds.close();
-            ds= null;
-        }
-        if (tbuttonActive.isSelected()) {
-            Log("Router "+local_name()+" stopped\n");
-        }
+        node.stop();
         editName.setEditable(true);
         jCheckBoxSplitH.setEnabled(true);
         jCheckBoxHolddown.setEnabled(true);
         editHoldownTime.setEnabled(true);
+        comboProtocol.setEnabled(true);
         editPort.setEditable(true);
         editIP.setEditable(true);
         editPeriod.setEditable(true);
     }
 
     /**
-     * Test if SndIfChanges is selected
-     * @return true if SndIfChanges is selected
-     */
-    public boolean is_sendIfChanges() {
-        return checkSndIfChanges.isSelected();
-    }
-    
-    /**
-     * Get the node name from the form
-     * @return local name (address)
+     * Return the routing protocol selected
+     * @return routing protocol
      */
-    public char local_name() {
-        try {
-            return editName.getText().charAt(0);
-        }
-        catch(Exception e) {
-            Log("Local name error: "+e);
-        }
-        return '*';
+    private Routing.Mode protocol() {
+        return Routing.Mode.values()[Math.max(0, comboProtocol.getSelectedIndex())];
     }
-    
+
     /**
-     * Test if nm is the local name
-     * @param nm test name
-     * @return true if names are equal, false otherwise
+     * Show the neighbour list in the table; called by the router node
+     * @param list  snapshot of the neighbour list
      */
-    public boolean is_local_name(char nm) {
-        return (nm == local_name());
+    @Override
+    public void neighbours_changed(java.util.Collection<Neighbour> list) {
+        javax.swing.SwingUtilities.invokeLater(() -> {
+            java.util.Iterator<Neighbour> it= list.iterator();
+            for (int i= 0; i<neigTable.getRowCount(); i++) { // For every row
+                if (it.hasNext()) {
+                    Neighbour pt= it.next();
+                    neigTable.setValueAt(NodeId.str(pt.Name()), i, 0);
+                    neigTable.setValueAt(pt.Ip(), i, 1);
+                    neigTable.setValueAt(""+pt.Port(), i, 2);
+                    neigTable.setValueAt(""+pt.Dist(), i, 3);
+                } else {
+                    for (int j= 0; j<4; j++) {
+                        neigTable.setValueAt("", i, j);
+                    }
+                }
+            }
+        });
     }
 
-
     /**
-     * handle incoming packets, decoding and processing HELLO and BYE packets
-     * @param dp    datagram packet
-     * @param dis   input stream
-     * @return true if packet was processed with success, false otherwise
+     * Show the routing table in the table; called by the router node
+     * @param tab  snapshot of the routing table
      */
-    public synchronized boolean process_packet(DatagramPacket dp, DataInputStream dis) {
-        byte code;
-        char sender;
-        try {
-            code= dis.readByte();     // read code
-            sender= dis.readChar();   // read sender id
-            String ip= dp.getAddress().getHostAddress();  // Get sender address            
-            if (ip.startsWith("127.")) {
-                try {
-                    ip= InetAddress.getLocalHost().getHostAddress();
-                }
-                catch (UnknownHostException e) {
-                    Log("Error converting address '127.*'\n");
-                    return false;
-                }
-            }
-            
-            switch(code) {
-                case PKT_HELLO:
-                    Log("PKT_HELLO("+sender+")\n");
-                    HELLO_rcv++;
-                    // Update values
-                    int dist= dis.readInt();
-                    if (dis.available() != 0) {
-                        Log("Packet too long\n");
-                        return false;
-                    }
-                    if (tbuttonActive.isSelected()) {
-                        boolean ok= neig.add_neig(sender, ip, dp.getPort(), 
-                            dist, ds);
-                        if (ok) {
-                            neig.refresh_table(neigTable);
-                            if (is_sendIfChanges()) {
-                                route.network_changed(true);
-                            }
-                        }
-                    }
-                    break;
-                    
-                case PKT_BYE:
-                    Log("PKT_BYE("+sender+")\n");
-                    BYE_rcv++;
-                    if (dis.available() != 0) {
-                        Log("Packet too long\n");
-                        return false;
+    @Override
+    public void routing_table_changed(RoutingTable tab) {
+        javax.swing.SwingUtilities.invokeLater(() -> {
+            java.util.Iterator<RouteEntry> rit= tab.iterator();
+            for (int i= 0; i<routeTable.getRowCount(); i++) {
+                if ((rit != null) && rit.hasNext()) {
+                    RouteEntry r= rit.next();
+                    routeTable.setValueAt(NodeId.str(r.dest), i, 0);
+                    routeTable.setValueAt(r.hops_string(), i, 1);
+                    if (r.is_holddown()) {
+                        routeTable.setValueAt("HOLD", i, 2);
+                        routeTable.setValueAt(""+r.holddown_ending_time(), i, 3);
+                    } else {
+                        routeTable.setValueAt(""+r.dist, i, 2);
+                        routeTable.setValueAt("", i, 3);
                     }
-                    if (tbuttonActive.isSelected()) {
-                        boolean ok= neig.del_neig(sender, false, ds);
-                        if (ok) {
-                            neig.refresh_table(neigTable);
-                            if (is_sendIfChanges())
-                                route.network_changed(true);                            
-                        }
+                } else {
+                    for (int j= 0; j<4; j++) {
+                        routeTable.setValueAt("", i, j);
                     }
-                    break;
-                    
-                case PKT_ROUTE:
-                    ROUTE_rcv++; 
-                    return route.process_ROUTE(sender, dp, ip, dis);
-                    
-                case PKT_DATA:
-                    DATA_rcv++;
-                    return route.process_DATA(sender, dp, ip, dis);
-                    
-                default:
-                    Log("Invalid packet code ("+code+")\n");
-                    INVALID_rcv++;
-                    return false;
                 }
             }
-            catch(IOException e) {
-                Log("Packet too short\n");
-                return false;
-            }
-            return true;
+        });
     }
 
     
@@ -845,7 +737,8 @@ public class Router extends javax.swing.JFrame implements Log {
 
     
    /**
-     * main function of the Router program
+     * main function of the Router program; RouterDaemon starts the router
+     * without the graphical interface
      * @param args the command line arguments
      */
     public static void main(String args[]) {
@@ -853,79 +746,41 @@ public class Router extends javax.swing.JFrame implements Log {
     }
     
     /**
-     * Write messages in the log window and in the command line
+     * Write messages in the log window and in the command line; the message
+     * is queued and written later by the log thread
      * @param s  message to write
      */
     @Override
     public void Log(final java.lang.String s) {
-        logText.append(s);
-        System.out.print(s);
+        node.Log(s);
     }         
 
     /**
-     * Auxiliary log function - when more detail is required remove the comments
-     *
-     * @param s log string
-     */
-    public void Log2(String s) {
-        System.err.println(s);
-        //if (win != null)
-        //    win.Log(s);  // For detailed debug purposes
-    }
-
-    /** 
-     * Clear statistics 
+     * Write messages in the log window and in the command line; called 
+     * by the log thread
+     * @param s  message to write
      */
-    public void zero_statistics() {
-        HELLO_snt= 0;
-        HELLO_rcv= 0;
-        BYE_snt= 0;
-        BYE_rcv= 0;
-        ROUTE_snt= 0;
-        ROUTE_rcv= 0;
-        DATA_snt= 0;
-        DATA_rcv= 0;
-        INVALID_rcv= 0;
+    private void write_log(final java.lang.String s) {
+        javax.swing.SwingUtilities.invokeLater(() -> logText.append(s));
+        System.out.print(s);
     }
 
-    /** 
-     * Write statistics 
+    /**
+     * Test if messages of a level are written
+     * @param level logging level
+     * @return true if the level is enabled
      */
-    public void write_statistics() {
-        Log("****Statistics**********************************************\n"+
-            "HELLO snt:"+HELLO_snt+" rcv:"+HELLO_rcv+
-            "; BYE snt:"+BYE_snt+" rcv:"+BYE_rcv+
-            "\nROUTE snt:"+ROUTE_snt+" rcv:"+ROUTE_rcv+
-            "; DATA snt:"+DATA_snt+" rcv:"+DATA_rcv+
-            "; Invalid rcv:"+INVALID_rcv+"\n"+
-            "************************************************************\n");
+    @Override
+    public boolean is_enabled(Log.Level level) {
+        return node.is_enabled(level);
     }
 
     
     ////////////////////////////////////////////////////////////////////
 
     
-    /** Datagram socket */
-    private DatagramSocket ds;
-    /** Socket daemon */
-    private UnicastDaemon daemon;
-    /** Neighbour list */
-    private final NeighbourList neig;
-    /** Routing object */
-    private Routing route;
-    /** Sequence number for data packets */
-    private int data_seq;
-    
-    /* Statistics counters */
-    public int HELLO_snt;
-    public int HELLO_rcv;
-    public int BYE_snt;
-    public int BYE_rcv;
-    public int ROUTE_snt;   // only counts local Routing
-    public int ROUTE_rcv;
-    public int DATA_snt;
-    public int DATA_rcv;
-    public int INVALID_rcv;
+    /** Router core */
+    private final RouterNode node;
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     javax.swing.JButton buttonAdd;
@@ -966,6 +821,9 @@ public class Router extends javax.swing.JFrame implements Log {
     javax.swing.JPanel jPanel7;
     javax.swing.JPanel jPanel8;
     javax.swing.JPanel jPanel9;
+    javax.swing.JPanel jPanel10;
+    javax.swing.JLabel jLabel12;
+    javax.swing.JComboBox<String> comboProtocol;
     javax.swing.JScrollPane jScrollPane1;
     javax.swing.JScrollPane jScrollPane2;
     javax.swing.JScrollPane jScrollPane3;
@@ -0,0 +1,78 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterConfig.java
+ *
+ * Router configuration
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+/**
+ * Configuration used to start a RouterNode; the fields are set directly,
+ * and start with the same defaults as the graphical interface
+ */
+public class RouterConfig {
+    /** Router address */
+    public char name = 'A';
+    /** Local UDP port */
+    public int port = 20000;
+    /** ROUTE period [s] */
+    public int period = 5;
+    /** Uses Split Horizon */
+    public boolean split_horizon = true;
+    /** Uses Hold down */
+    public boolean holddown = false;
+    /** Hold down time [s] */
+    public int holddown_time = 5;
+    /** Routing protocol */
+    public Routing.Mode mode = Routing.Mode.DISTANCE_VECTOR;
+    /** Sends a ROUTE packet when the routing table changes */
+    public boolean send_if_changes = false;
+    /** Maximum number of neighbours */
+    public int max_neighbours = 5;
+    /** Number of threads in the data worker pool */
+    public int data_workers = Runtime.getRuntime().availableProcessors();
+    /** Minimum interval between routing table recalculations [ms] */
+    public int coalesce_ms = RouterNode.COALESCE_WINDOW;
+    /** Jitter of the ROUTE period, as a fraction of the period */
+    public double jitter = RouterNode.ANNOUNCE_JITTER;
+    /** Minimum interval between triggered ROUTEs to a neighbour [ms] */
+    public int spacing_ms = RouterNode.TRIGGER_SPACING;
+    /** Seed of the random jitter, or 0 for a random seed */
+    public long seed = 0;
+
+    /**
+     * Test the configuration
+     * @return null if valid, or a string with the first error found
+     */
+    public String validate() {
+        if (!NodeId.is_valid(name))
+            return "Invalid name";
+        if ((port < 0) || (port > 65535))
+            return "Invalid port (" + port + ")";
+        if (period < 1)
+            return "Invalid period (" + period + ")";
+        if (holddown_time < 0)
+            return "Invalid hold down time (" + holddown_time + ")";
+        if (mode == null)
+            return "Routing protocol not defined";
+        if (max_neighbours < 1)
+            return "Invalid maximum number of neighbours (" + max_neighbours + ")";
+        if (data_workers < 1)
+            return "Invalid number of data workers (" + data_workers + ")";
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "RouterConfig(" + NodeId.str(name) + ", port=" + port + ", " + mode
+                + ", period=" + period
+                + (split_horizon ? ", splitHorizon" : "")
+                + (holddown ? (", holddown(" + holddown_time + ")") : "")
+                + (send_if_changes ? ", sendIfChanges" : "") + ")";
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterDaemon.java
+ *
+ * Command line launcher, without graphical interface
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Starts a RouterNode from the command line arguments, without loading AWT
+ * or Swing. Commands read from the standard input:
+ *  s - write statistics;  z - clear statistics;  l - next log level;
+ *  t - write routing table;  n - write neighbour list;
+ *  add name ip port dist;  mod name ip port dist;  rem name;
+ *  send dest message;  quit.
+ * When the standard input is closed the router keeps running until the
+ * process is terminated; the neighbours receive a BYE when it ends.
+ */
+public class RouterDaemon {
+
+    /** Command line usage */
+    private final static String USAGE =
+        "Usage: java router.RouterDaemon -name N [-port P] [-period s]\n"
+        + "    [-mode dv|ls|fs] [-nosplit] [-holddown s] [-sendifchanges]\n"
+        + "    [-maxneig n] [-workers n] [-log trace|debug|info|warn]\n"
+        + "    [-neig name,ip,port,dist]...\n"
+        + "  names are a letter or '#' followed by a number\n";
+
+    /**
+     * Neighbour configured in the command line
+     */
+    private static final class NeigArg {
+        char name;
+        String ip;
+        int port;
+        int dist;
+    }
+
+    private RouterDaemon() {
+    }
+
+    /**
+     * Parse a neighbour argument: name,ip,port,dist
+     * @param s  argument
+     * @return the neighbour
+     * @throws IllegalArgumentException if invalid
+     */
+    private static NeigArg parse_neig(String s) {
+        String[] f= s.split(",");
+        if (f.length != 4)
+            throw new IllegalArgumentException("Invalid neighbour '"+s+"'");
+        NeigArg n= new NeigArg();
+        n.name= NodeId.parse(f[0]);
+        if (!NodeId.is_valid(n.name))
+            throw new IllegalArgumentException("Invalid neighbour name '"+f[0]+"'");
+        n.ip= f[1];
+        n.port= Integer.parseInt(f[2]);
+        n.dist= Integer.parseInt(f[3]);
+        return n;
+    }
+
+    /**
+     * Parse a routing protocol name
+     * @param s  dv, ls, fs or the Routing.Mode name
+     * @return routing protocol
+     * @throws IllegalArgumentException if invalid
+     */
+    private static Routing.Mode parse_mode(String s) {
+        switch (s.toLowerCase(Locale.ROOT)) {
+            case "dv":
+                return Routing.Mode.DISTANCE_VECTOR;
+            case "ls":
+                return Routing.Mode.LINK_STATE;
+            case "fs":
+                return Routing.Mode.FEASIBLE_SUCCESSOR;
+            default:
+                return Routing.Mode.valueOf(s.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Return the value of an option
+     * @param args  command line arguments
+     * @param i     index of the option
+     * @return the value
+     * @throws IllegalArgumentException if missing
+     */
+    private static String value(String[] args, int i) {
+        if (i+1 >= args.length)
+            throw new IllegalArgumentException("Missing value for "+args[i]);
+        return args[i+1];
+    }
+
+    /**
+     * Parse the command line arguments
+     * @param args  command line arguments
+     * @param cfg   configuration filled in
+     * @param neigs neighbours filled in
+     * @return the initial log level
+     * @throws IllegalArgumentException if invalid
+     */
+    private static Log.Level parse_args(String[] args, RouterConfig cfg,
+            ArrayList<NeigArg> neigs) {
+        Log.Level level= Log.Level.INFO;
+        cfg.name= NodeId.NONE;
+        for (int i= 0; i<args.length; i++) {
+            switch (args[i]) {
+                case "-name":
+                    cfg.name= NodeId.parse(value(args, i++));
+                    break;
+                case "-port":
+                    cfg.port= Integer.parseInt(value(args, i++));
+                    break;
+                case "-period":
+                    cfg.period= Integer.parseInt(value(args, i++));
+                    break;
+                case "-mode":
+                    cfg.mode= parse_mode(value(args, i++));
+                    break;
+                case "-nosplit":
+                    cfg.split_horizon= false;
+                    break;
+                case "-holddown":
+                    cfg.holddown= true;
+                    cfg.holddown_time= Integer.parseInt(value(args, i++));
+                    break;
+                case "-sendifchanges":
+                    cfg.send_if_changes= true;
+                    break;
+                case "-maxneig":
+                    cfg.max_neighbours= Integer.parseInt(value(args, i++));
+                    break;
+                case "-workers":
+                    cfg.data_workers= Integer.parseInt(value(args, i++));
+                    break;
+                case "-log":
+                    level= Log.Level.valueOf(value(args, i++).toUpperCase(Locale.ROOT));
+                    break;
+                case "-neig":
+                    neigs.add(parse_neig(value(args, i++)));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option '"+args[i]+"'");
+            }
+        }
+        String err= cfg.validate();
+        if (err != null)
+            throw new IllegalArgumentException(err);
+        return level;
+    }
+
+    /**
+     * Run one console command
+     * @param node  router node
+     * @param line  command line
+     * @return false to end the program
+     */
+    private static boolean command(RouterNode node, String line) {
+        String[] f= line.trim().split("\\s+", 3);
+        try {
+            switch (f[0]) {
+                case "":
+                    break;
+                case "s":
+                    node.write_statistics();
+                    break;
+                case "z":
+                    node.zero_statistics();
+                    break;
+                case "l":
+                    node.next_log_level();
+                    break;
+                case "t":
+                    Routing r= node.routing();
+                    if (r != null)
+                        r.table().Log_routing_table(node);
+                    break;
+                case "n":
+                    for (Neighbour pt : node.neighbours().values())
+                        node.Log(pt+"\n");
+                    break;
+                case "add":
+                case "mod":
+                    String[] a= line.trim().split("\\s+");
+                    if (a.length != 5) {
+                        node.Log("Usage: "+f[0]+" name ip port dist\n");
+                        break;
+                    }
+                    char name= NodeId.parse(a[1]);
+                    int port= Integer.parseInt(a[3]);
+                    int dist= Integer.parseInt(a[4]);
+                    if (f[0].equals("add"))
+                        node.add_neighbour(name, a[2], port, dist);
+                    else
+                        node.update_neighbour(name, a[2], port, dist);
+                    break;
+                case "rem":
+                    if (f.length < 2) {
+                        node.Log("Usage: rem name\n");
+                        break;
+                    }
+                    node.remove_neighbour(NodeId.parse(f[1]));
+                    break;
+                case "send":
+                    if (f.length < 3) {
+                        node.Log("Usage: send dest message\n");
+                        break;
+                    }
+                    node.send_data(NodeId.parse(f[1]), f[2]);
+                    break;
+                case "quit":
+                    return false;
+                default:
+                    node.Log("Unknown command '"+f[0]+"'\n");
+            }
+        }
+        catch (NumberFormatException e) {
+            node.Log("Invalid number\n");
+        }
+        return true;
+    }
+
+    /**
+     * main function of the command line router
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        RouterConfig cfg= new RouterConfig();
+        ArrayList<NeigArg> neigs= new ArrayList<>();
+        Log.Level level;
+        try {
+            level= parse_args(args, cfg, neigs);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        RouterNode node= new RouterNode(System.out::print, null);
+        node.set_log_level(level);
+        try {
+            node.start(cfg);
+        }
+        catch (IOException e) {
+            System.err.println("Failed to start the router: "+e.getMessage());
+            node.close();
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(node::close, "router-shutdown"));
+        for (NeigArg n : neigs) {
+            node.add_neighbour(n.name, n.ip, n.port, n.dist);
+        }
+
+        try {
+            BufferedReader in= new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line= in.readLine()) != null) {
+                if (!command(node, line))
+                    System.exit(0);
+            }
+            // No console - run until the process is terminated
+            Thread.currentThread().join();
+        }
+        catch (IOException e) {
+            node.Log("Error reading the console: "+e+"\n");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterListener.java
+ *
+ * Observer of the router state
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.Collection;
+
+/**
+ * Receives the changes of the router state, e.g. to display them in a
+ * graphical interface. The methods are called from the control executor
+ * and must return quickly; the arguments are read-only snapshots, which may
+ * be kept and used later from another thread.
+ */
+public interface RouterListener {
+
+    /**
+     * Called after the neighbour list changed
+     * @param list  snapshot of the neighbour list, ordered by name
+     */
+    public default void neighbours_changed(Collection<Neighbour> list) {
+    }
+
+    /**
+     * Called after the routing table changed
+     * @param tab  snapshot of the routing table; it must not be modified
+     */
+    public default void routing_table_changed(RoutingTable tab) {
+    }
+}
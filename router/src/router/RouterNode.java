@@ -0,0 +1,691 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterNode.java
+ *
+ * Router core, without graphical interface
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.net.*;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Router core: owns the socket, the receive daemon, the packet dispatcher,
+ * the timers, the neighbour list and the routing object. It does not use
+ * AWT or Swing; the state changes are reported to a RouterListener, and the
+ * log messages are written to a Log sink.
+ *
+ * A node is started and stopped several times, with a new configuration
+ * each time; close() releases the log and timer threads at the end.
+ *
+ * The simulator starts the node with its own transport, control executor
+ * and timing wheel: no socket or thread is created, and all the packets are
+ * processed by the executor.
+ */
+public class RouterNode implements Log {
+
+    /** Packet's type codes */
+    public final static byte PKT_HELLO = 1;
+    public final static byte PKT_BYE = 2;
+    public final static byte PKT_ROUTE = 3;
+    public final static byte PKT_ROUTE_DELTA = 4;
+    public final static byte PKT_ROUTE_NACK = 5;
+    public final static byte PKT_LSA = 6;
+    public final static byte PKT_DATA = 9;
+    /** DATA with two bytes per address in the path */
+    public final static byte PKT_DATA_WIDE = 10;
+    /** Capability flags announced in HELLO packets */
+    public final static byte CAP_ROUTE_DELTA = 0x01;
+    public final static byte CAP_WIDE_ID = 0x02;
+    public final static byte CAP_ROUTE_FRAG = 0x04;
+    public final static byte CAP_COMPACT = 0x08;
+    /** Capabilities supported by this router */
+    public final static byte LOCAL_CAPS = CAP_ROUTE_DELTA | CAP_WIDE_ID | CAP_ROUTE_FRAG
+            | CAP_COMPACT;
+    /** Maximum routing table size sent in one ROUTE packet; larger tables
+     *  are only sent in ROUTE_DELTA fragments */
+    public final static int MAX_ROUTINGTABLE_SIZE= 1300;
+    /** Maximum size of a ROUTE_DELTA fragment, below the path MTU [bytes] */
+    public final static int ROUTE_MTU = 1400;
+    /** Maximum number of fragments of a ROUTE_DELTA update */
+    public final static int MAX_FRAGMENTS = 255;
+    /** Maximum valid distance for a route, above or equal is infinity */
+    public final static int MAX_DISTANCE = 40;
+    /** Maximum number of equal cost next hops per destination */
+    public final static int MAX_ECMP = 4;
+    /** Maximum path length for a DATA packet */
+    public final static int MAX_PATH_LEN = 20;
+    /** Number of log messages queued before they start being dropped */
+    public final static int LOG_CAPACITY = 4096;
+    /** Timing wheel tick [ms] */
+    public final static int TIMER_TICK = 10;
+    /** Timing wheel slots */
+    public final static int TIMER_SLOTS = 512;
+    /** Minimum interval between routing table recalculations [ms] */
+    public final static int COALESCE_WINDOW = 50;
+    /** Jitter of the ROUTE period, as a fraction of the period */
+    public final static double ANNOUNCE_JITTER = 0.25;
+    /** Minimum interval between triggered ROUTEs to a neighbour [ms] */
+    public final static int TRIGGER_SPACING = 500;
+
+    /**
+     * Constructor - creates a stopped router node
+     * @param sink      Log object where the messages are written
+     * @param listener  observer of the state changes, or null
+     */
+    public RouterNode(Log sink, RouterListener listener) {
+        this.listener= (listener != null) ? listener : new RouterListener() {};
+        // Start log writer
+        async_log= new AsyncLog(sink, LOG_CAPACITY);
+        log= async_log;
+        // Start timers
+        timers= new TimingWheel(TimingWheel.SYSTEM, TIMER_TICK, TIMER_SLOTS, this);
+        timers.start("router-timer");
+    }
+
+    /**
+     * Constructor - creates a stopped router node that uses external timers;
+     * the messages are written directly to the log, and the timing wheel is
+     * advanced by the caller
+     * @param log       Log object
+     * @param listener  observer of the state changes, or null
+     * @param timers    timing wheel
+     */
+    public RouterNode(Log log, RouterListener listener, TimingWheel timers) {
+        this.listener= (listener != null) ? listener : new RouterListener() {};
+        this.async_log= null;
+        this.log= log;
+        this.timers= timers;
+    }
+
+    /**
+     * Start the router, receiving from a UDP socket
+     * @param cfg  configuration; it must not be changed while running
+     * @throws BindException if the port is in use
+     * @throws IOException if the router failed to start
+     */
+    public synchronized void start(RouterConfig cfg) throws IOException {
+        check_start(cfg);
+        channel= open_channel(cfg.port);
+        // Start packet dispatcher
+        dispatcher= new PacketDispatcher(this, cfg.data_workers);
+        boot(cfg, Transport.udp(channel), dispatcher::submit_control);
+        // Start daemon thread
+        try {
+            daemon= new UnicastDaemon(this, dispatcher, channel);
+        }
+        catch (IOException e) {
+            stop();
+            throw new IOException("Failed to start the receive daemon: "+e, e);
+        }
+        daemon.start();
+        Log(Log.Level.INFO, () -> "Router "+NodeId.str(cfg.name)+" started on port "
+                +cfg.port+"\n");
+    }
+
+    /**
+     * Start the router over another transport; the received packets are
+     * handed to process_packet by the caller, from the control executor
+     * @param cfg  configuration; it must not be changed while running
+     * @param transport  transport used to send the packets
+     * @param control    control plane executor
+     * @throws IOException if the router failed to start
+     */
+    public synchronized void start(RouterConfig cfg, Transport transport,
+            Executor control) throws IOException {
+        check_start(cfg);
+        boot(cfg, transport, control);
+    }
+
+    /**
+     * Test if the router can start with a configuration
+     * @param cfg  configuration
+     */
+    private void check_start(RouterConfig cfg) {
+        if (running)
+            throw new IllegalStateException("Router already running");
+        String err= cfg.validate();
+        if (err != null)
+            throw new IllegalArgumentException(err);
+    }
+
+    /**
+     * Create the neighbour list and start the routing object
+     * @param cfg  configuration
+     * @param transport  transport used to send the packets
+     * @param control    control plane executor
+     * @throws IOException if the routing object failed to start
+     */
+    private void boot(RouterConfig cfg, Transport transport, Executor control)
+            throws IOException {
+        this.cfg= cfg;
+        this.ds= transport;
+        this.control= control;
+        this.send_if_changes= cfg.send_if_changes;
+        this.data_seq.set(0);
+        zero_statistics();
+        neig= new NeighbourList(cfg.max_neighbours, this);
+        // Start Routing timer
+        route= new Routing(cfg.name, neig, cfg.period,
+            cfg.split_horizon, cfg.holddown, cfg.holddown_time, cfg.mode,
+            this, ds, listener, control, timers,
+            cfg.coalesce_ms, cfg.jitter, cfg.spacing_ms,
+            (cfg.seed != 0) ? new Random(cfg.seed) : new Random());
+        running= true;
+        if (!route.start()) {
+            stop();
+            throw new IOException("Failed to boot the routing object");
+        }
+    }
+
+    /**
+     * Stops the Router, sending BYE to all the neighbours
+     */
+    public synchronized void stop() {
+        boolean was_running= running;
+        running= false;
+        if (daemon != null) {
+            daemon.stopRunning();
+            daemon= null;
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher= null;
+        }
+        if (route != null) {
+            route.stop();
+            route= null;
+        }
+        if (ds != null) {
+            neig.clear_BYE(ds);
+            listener.neighbours_changed(neig.values());
+            ds= null;
+        }
+        control= null;
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                Log("Error closing the socket: "+e+"\n");
+            }
+            channel= null;
+        }
+        if (was_running) {
+            Log("Router "+NodeId.str(cfg.name)+" stopped\n");
+        }
+    }
+
+    /**
+     * Stop the router and the log and timer threads; the node cannot be
+     * used afterwards
+     */
+    public void close() {
+        stop();
+        if (async_log != null) {
+            timers.stop();
+            async_log.close();
+        }
+    }
+
+    /**
+     * Open the unicast datagram channel, in non-blocking mode
+     * @param port  local port number
+     * @return the datagram channel bound to port
+     * @throws IOException if the port is in use
+     */
+    private static DatagramChannel open_channel(int port) throws IOException {
+        DatagramChannel dc= DatagramChannel.open();
+        try {
+            dc.bind(new InetSocketAddress(port));
+            dc.configureBlocking(false);
+            return dc;
+        }
+        catch (IOException e) {
+            dc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Test if the router is running
+     * @return true if running
+     */
+    public boolean is_running() {
+        return running;
+    }
+
+    /**
+     * Return the configuration of the last start
+     * @return configuration, or null if never started
+     */
+    public RouterConfig config() {
+        return cfg;
+    }
+
+    /**
+     * Return the neighbour list
+     * @return neighbour list, or null if never started
+     */
+    public NeighbourList neighbours() {
+        return neig;
+    }
+
+    /**
+     * Return the routing object
+     * @return routing object, or null if not running
+     */
+    public Routing routing() {
+        return route;
+    }
+
+    /**
+     * Return the shared timing wheel
+     * @return the timing wheel
+     */
+    public TimingWheel timers() {
+        return timers;
+    }
+
+    /**
+     * Test if a ROUTE is sent when the routing table changes
+     * @return true if SndIfChanges is selected
+     */
+    public boolean is_sendIfChanges() {
+        return send_if_changes;
+    }
+
+    /**
+     * Change the SndIfChanges option while running
+     * @param on  new value
+     */
+    public void set_sendIfChanges(boolean on) {
+        send_if_changes= on;
+    }
+
+    /**
+     * Get the node name
+     * @return local name (address)
+     */
+    public char local_name() {
+        RouterConfig c= cfg;
+        return (c != null) ? c.name : NodeId.NONE;
+    }
+
+    /**
+     * Test if nm is the local name
+     * @param nm test name
+     * @return true if names are equal, false otherwise
+     */
+    public boolean is_local_name(char nm) {
+        return (nm == local_name());
+    }
+
+    /**
+     * Report a neighbour list change to the listener and to the routing
+     * object; runs on the control executor
+     */
+    private void neighbours_changed() {
+        listener.neighbours_changed(neig.values());
+        route.neighbours_changed();
+    }
+
+    /**
+     * Run a task on the control executor; discarded if stopped
+     * @param task task that changes the control plane state
+     */
+    private void submit_control(Runnable task) {
+        Executor c= control;
+        if (c == null)
+            return;
+        try {
+            c.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            // Stopping - task discarded
+        }
+    }
+
+    /**
+     * Add a new neighbour; the change runs later on the control executor
+     * @param name      neighbour's name
+     * @param ip        IP address
+     * @param port      port number
+     * @param dist      distance
+     * @return true if the request was accepted, false otherwise
+     */
+    public boolean add_neighbour(char name, String ip, int port, int dist) {
+        if (!running) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (!NodeId.is_valid(name)) {
+            Log("Invalid name\n");
+            return false;
+        }
+        if (neig.locate_neig(name) != null) {
+            Log("Duplicate name\n");
+            return false;
+        }
+        submit_control(() -> {
+            if (running && neig.add_neig(name, ip, port, dist, ds)) {
+                neighbours_changed();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Change the distance to a neighbour; the change runs later on the
+     * control executor
+     * @param name      neighbour's name
+     * @param ip        IP address
+     * @param port      port number
+     * @param dist      distance
+     * @return true if the request was accepted, false otherwise
+     */
+    public boolean update_neighbour(char name, String ip, int port, int dist) {
+        if (!running) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (neig.locate_neig(name) == null) {
+            Log("Invalid neighbour\n");
+            return false;
+        }
+        submit_control(() -> {
+            if (running && neig.update_neig(name, ip, port, dist)) {
+                neighbours_changed();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Remove a neighbour, sending it a BYE; the change runs later on the
+     * control executor
+     * @param name      neighbour's name
+     * @return true if the request was accepted, false otherwise
+     */
+    public boolean remove_neighbour(char name) {
+        if (!running) {
+            Log("Router is not active\n");
+            return false;
+        }
+        if (neig.locate_neig(name) == null) {
+            Log("Invalid neighbour\n");
+            return false;
+        }
+        submit_control(() -> {
+            if (running && neig.del_neig(name, true, ds)) {
+                neighbours_changed();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Send a DATA test packet
+     * @param dest  destination address
+     * @param msg   message
+     * @return true if sent, false if the router is not active
+     */
+    public boolean send_data(char dest, String msg) {
+        Routing r= route;
+        if (!running || (r == null)) {
+            Log("Router is not active\n");
+            return false;
+        }
+        r.send_data_packet(local_name(), dest, data_seq.incrementAndGet(), msg, "");
+        return true;
+    }
+
+
+    /**
+     * handle incoming packets, decoding and processing HELLO and BYE packets;
+     * called by the PacketDispatcher from the control executor (HELLO, BYE
+     * and ROUTE) or from a data worker (DATA)
+     * @param pkt   packet view, positioned after the header
+     * @return true if packet was processed with success, false otherwise
+     */
+    public boolean process_packet(PacketView pkt) {
+        byte code;
+        char sender;
+        ByteBuffer dis= pkt.buffer();
+        Routing route= this.route;
+        if (!running || (route == null))
+            return false;
+        try {
+            code= pkt.code();       // read code
+            sender= pkt.sender();   // read sender id
+
+            switch(code) {
+                case PKT_HELLO:
+                    Log(Log.Level.DEBUG, "PKT_HELLO(%s)\n", sender);
+                    HELLO_rcv.increment();
+                    // Update values
+                    PacketCodec.HelloReader hello= PacketCodec.get().hello;
+                    try {
+                        hello.wrap(dis);
+                    }
+                    catch (IOException e) {
+                        Log(Log.Level.WARN, e.getMessage()+"\n");
+                        return false;
+                    }
+                    int dist= hello.dist();
+                    Neighbour prev= neig.locate_neig(pkt.source());
+                    if ((prev != null) && (prev.Name() != sender))
+                        prev= null;
+                    if (hello.has_caps() && (prev != null) && (prev.Dist() == dist)) {
+                        // Capabilities of a known neighbour; answered with the
+                        //   local ones when they are first learnt, in case
+                        //   the neighbour missed them
+                        boolean first= (prev.caps == 0);
+                        Neighbour pt= neig.update_caps(prev, hello.caps());
+                        if (first && (pt != null) && (pt.caps != 0))
+                            pt.send_caps_Hello(ds, this);
+                        break;
+                    }
+                    // A HELLO without capabilities keeps the ones known
+                    byte caps= hello.has_caps() ? hello.caps()
+                        : ((prev != null) ? prev.caps : 0);
+                    boolean ok= neig.add_neig(sender,
+                        neig.host_ip(pkt.source()), pkt.port(), dist, caps, ds);
+                    if (ok) {
+                        neighbours_changed();
+                    }
+                    break;
+
+                case PKT_BYE:
+                    Log(Log.Level.DEBUG, "PKT_BYE(%s)\n", sender);
+                    BYE_rcv.increment();
+                    if (dis.hasRemaining()) {
+                        Log(Log.Level.WARN, "Packet too long\n");
+                        return false;
+                    }
+                    if (neig.del_neig(sender, false, ds)) {
+                        neighbours_changed();
+                    }
+                    break;
+
+                case PKT_ROUTE:
+                    ROUTE_rcv.increment();
+                    return route.process_ROUTE(sender, pkt);
+
+                case PKT_ROUTE_DELTA:
+                    ROUTE_rcv.increment();
+                    return route.process_ROUTE_DELTA(sender, pkt);
+
+                case PKT_ROUTE_NACK:
+                    ROUTE_rcv.increment();
+                    return route.process_ROUTE_NACK(sender, pkt);
+
+                case PKT_LSA:
+                    ROUTE_rcv.increment();
+                    return route.process_LSA(sender, pkt);
+
+                case PKT_DATA:
+                case PKT_DATA_WIDE:
+                    DATA_rcv.increment();
+                    return route.process_DATA(sender, pkt);
+
+                default:
+                    Log(Log.Level.WARN, "Invalid packet code (%d)\n", code);
+                    INVALID_rcv.increment();
+                    return false;
+                }
+            }
+            catch(BufferUnderflowException e) {
+                Log(Log.Level.WARN, "Packet too short\n");
+                return false;
+            }
+            return true;
+    }
+
+
+/**************************************************************/
+
+
+    /**
+     * Write messages in the log sink; the message is queued and written
+     * later by the log thread
+     * @param s  message to write
+     */
+    @Override
+    public void Log(final java.lang.String s) {
+        log.Log(s);
+    }
+
+    /**
+     * Test if messages of a level are written; the level must be enabled
+     * in the node and in the log sink
+     * @param level logging level
+     * @return true if the level is enabled
+     */
+    @Override
+    public boolean is_enabled(Log.Level level) {
+        return (level.compareTo(log_level) >= 0) && log.is_enabled(level);
+    }
+
+    /**
+     * Change the minimum level of the messages written
+     * @param level new logging level
+     */
+    public void set_log_level(Log.Level level) {
+        log_level= level;
+        Log("Log level: "+level+"\n");
+    }
+
+    /**
+     * Change to the next logging level, returning to TRACE after WARN
+     */
+    public void next_log_level() {
+        Log.Level[] levels= Log.Level.values();
+        set_log_level(levels[(log_level.ordinal()+1) % levels.length]);
+    }
+
+    /**
+     * Auxiliary log function - writes debug level messages
+     *
+     * @param s log string
+     */
+    public void Log2(String s) {
+        if (is_enabled(Log.Level.DEBUG))
+            Log(s.endsWith("\n") ? s : s+"\n");
+    }
+
+    /**
+     * Clear statistics
+     */
+    public void zero_statistics() {
+        HELLO_snt.reset();
+        HELLO_rcv.reset();
+        BYE_snt.reset();
+        BYE_rcv.reset();
+        ROUTE_snt.reset();
+        ROUTE_rcv.reset();
+        DATA_snt.reset();
+        DATA_rcv.reset();
+        INVALID_rcv.reset();
+        DROPPED_rcv.reset();
+    }
+
+    /**
+     * Write statistics
+     */
+    public void write_statistics() {
+        Routing r= route;
+        Log("****Statistics**********************************************\n"+
+            "HELLO snt:"+HELLO_snt.sum()+" rcv:"+HELLO_rcv.sum()+
+            "; BYE snt:"+BYE_snt.sum()+" rcv:"+BYE_rcv.sum()+
+            "\nROUTE snt:"+ROUTE_snt.sum()+" rcv:"+ROUTE_rcv.sum()+
+            "; DATA snt:"+DATA_snt.sum()+" rcv:"+DATA_rcv.sum()+
+            "; Invalid rcv:"+INVALID_rcv.sum()+"; Dropped rcv:"+DROPPED_rcv.sum()+
+            ((async_log != null) ? ("; Log dropped:"+async_log.dropped()) : "")+"\n"+
+            ((r != null) ? (r.recompute_statistics()+"\n") : "")+
+            "************************************************************\n");
+    }
+
+
+    ////////////////////////////////////////////////////////////////////
+
+
+    /** Log writer */
+    private final Log log;
+    /** Asynchronous log writer, or null if the log is external */
+    private final AsyncLog async_log;
+    /** Timing wheel shared by all the timers */
+    private final TimingWheel timers;
+    /** Observer of the state changes */
+    private final RouterListener listener;
+    /** Minimum level of the messages written */
+    private volatile Log.Level log_level= Log.Level.INFO;
+    /** Configuration of the last start */
+    private volatile RouterConfig cfg;
+    /** True while the router is running */
+    private volatile boolean running;
+    /** Sends a ROUTE packet when the routing table changes */
+    private volatile boolean send_if_changes;
+    /** Datagram channel, or null if not using UDP */
+    private DatagramChannel channel;
+    /** Transport used to send the packets */
+    private Transport ds;
+    /** Control plane executor */
+    private volatile Executor control;
+    /** Socket daemon */
+    private UnicastDaemon daemon;
+    /** Packet dispatcher, with the control and data executors */
+    private volatile PacketDispatcher dispatcher;
+    /** Neighbour list */
+    private volatile NeighbourList neig;
+    /** Routing object */
+    private volatile Routing route;
+    /** Sequence number for data packets; send_data may be called from any thread */
+    private final AtomicInteger data_seq= new AtomicInteger();
+
+    /* Statistics counters; updated by the control thread and by the data
+       workers */
+    public final LongAdder HELLO_snt= new LongAdder();
+    public final LongAdder HELLO_rcv= new LongAdder();
+    public final LongAdder BYE_snt= new LongAdder();
+    public final LongAdder BYE_rcv= new LongAdder();
+    public final LongAdder ROUTE_snt= new LongAdder();   // only counts local Routing
+    public final LongAdder ROUTE_rcv= new LongAdder();
+    public final LongAdder DATA_snt= new LongAdder();
+    public final LongAdder DATA_rcv= new LongAdder();
+    public final LongAdder INVALID_rcv= new LongAdder();
+    public final LongAdder DROPPED_rcv= new LongAdder();     // executor queue full
+}
@@ -0,0 +1,614 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterSim.java
+ *
+ * Multi-router topology simulator with virtual time
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Runs many routers in one JVM, connected by a SimFabric: each router is a
+ * RouterNode started over an in-memory transport, and all the timers follow
+ * the virtual clock of the fabric.
+ *
+ * The scenario boots all the routers at time 0 and may fail a random link
+ * and restore it later; with -settle, a last phase runs without losses.
+ * For each phase it reports the convergence time (the last routing table
+ * change after the phase started), the messages sent and the routes that
+ * match the shortest paths of the topology; at the end it reports the
+ * counters and the CPU time of each router.
+ */
+public class RouterSim {
+
+    /** Command line usage */
+    private final static String USAGE =
+        "Usage: java router.RouterSim [-n routers] [-topo line|ring|grid|tree|random]\n"
+        + "    [-degree d] [-cost max] [-mode dv|ls|fs] [-period s] [-nosplit]\n"
+        + "    [-holddown s] [-sendifchanges] [-duration s] [-latency ms]\n"
+        + "    [-jitter ms] [-loss p] [-settle s] [-fail s] [-restore s] [-seed n]\n"
+        + "    [-log trace|debug|info|warn] [-quiet]\n";
+
+    /**
+     * Router in the simulation
+     */
+    private final class SimRouter implements RouterListener {
+        final char name;
+        final String ip;
+        final SimFabric.Endpoint ep;
+        final RouterNode node;
+        /** Last routing table reported */
+        RoutingTable last;
+        /** Number of routing table changes */
+        long changes;
+        /** Virtual time of the last routing table change [ns] */
+        long last_change;
+
+        SimRouter(int index) throws UnknownHostException {
+            name = (char) ('A' + index);
+            InetAddress a = InetAddress.getByAddress(new byte[] {10,
+                (byte) (index >> 16), (byte) (index >> 8), (byte) index});
+            ip = a.getHostAddress();
+            ep = fabric.add_endpoint(new InetSocketAddress(a, PORT));
+            node = new RouterNode(router_log(name), this, fabric.timers());
+            ep.attach(node);
+        }
+
+        @Override
+        public void routing_table_changed(RoutingTable tab) {
+            if (!same_routes(last, tab)) {
+                changes++;
+                last_change = fabric.nanos();
+            }
+            last = tab;
+        }
+    }
+
+    /**
+     * Link between two routers
+     */
+    private static final class Link {
+        final int a, b, cost;
+
+        Link(int a, int b, int cost) {
+            this.a = a;
+            this.b = b;
+            this.cost = cost;
+        }
+    }
+
+    /** UDP port used by all the routers */
+    private final static int PORT = 20000;
+    /** Unreachable distance */
+    private final static int INF = Integer.MAX_VALUE;
+
+    /* Scenario options */
+    private int n = 100;
+    private String topo = "random";
+    private double degree = 3;
+    private int max_cost = 1;
+    private long duration = 600;
+    private double latency = 5;
+    private double jitter = 1;
+    private double loss = 0;
+    private double settle = 0;
+    private double fail = 0;
+    private double restore = 0;
+    private long seed = 1;
+    private Log.Level level = null;
+    private boolean quiet = false;
+    /** Router configuration used as template */
+    private final RouterConfig base = new RouterConfig();
+
+    /* Simulation state */
+    private Random rnd;
+    private SimFabric fabric;
+    private SimRouter[] routers;
+    private final ArrayList<Link> links = new ArrayList<>();
+    /** Routes matching the shortest paths at the end of each phase, and router pairs */
+    private final ArrayList<long[]> routes_ok = new ArrayList<>();
+
+    /**
+     * Return the value of an option
+     * @param args  command line arguments
+     * @param i     index of the option
+     * @return the value
+     * @throws IllegalArgumentException if missing
+     */
+    private static String value(String[] args, int i) {
+        if (i+1 >= args.length)
+            throw new IllegalArgumentException("Missing value for "+args[i]);
+        return args[i+1];
+    }
+
+    /**
+     * Parse the command line arguments
+     * @param args  command line arguments
+     * @throws IllegalArgumentException if invalid
+     */
+    private void parse_args(String[] args) {
+        for (int i= 0; i<args.length; i++) {
+            switch (args[i]) {
+                case "-n":
+                    n= Integer.parseInt(value(args, i++));
+                    break;
+                case "-topo":
+                    topo= value(args, i++);
+                    break;
+                case "-degree":
+                    degree= Double.parseDouble(value(args, i++));
+                    break;
+                case "-cost":
+                    max_cost= Integer.parseInt(value(args, i++));
+                    break;
+                case "-mode":
+                    String m= value(args, i++).toLowerCase(Locale.ROOT);
+                    base.mode= m.equals("dv") ? Routing.Mode.DISTANCE_VECTOR
+                        : m.equals("ls") ? Routing.Mode.LINK_STATE
+                        : m.equals("fs") ? Routing.Mode.FEASIBLE_SUCCESSOR
+                        : Routing.Mode.valueOf(m.toUpperCase(Locale.ROOT));
+                    break;
+                case "-period":
+                    base.period= Integer.parseInt(value(args, i++));
+                    break;
+                case "-nosplit":
+                    base.split_horizon= false;
+                    break;
+                case "-holddown":
+                    base.holddown= true;
+                    base.holddown_time= Integer.parseInt(value(args, i++));
+                    break;
+                case "-sendifchanges":
+                    base.send_if_changes= true;
+                    break;
+                case "-duration":
+                    duration= Long.parseLong(value(args, i++));
+                    break;
+                case "-latency":
+                    latency= Double.parseDouble(value(args, i++));
+                    break;
+                case "-jitter":
+                    jitter= Double.parseDouble(value(args, i++));
+                    break;
+                case "-loss":
+                    loss= Double.parseDouble(value(args, i++));
+                    break;
+                case "-settle":
+                    settle= Double.parseDouble(value(args, i++));
+                    break;
+                case "-fail":
+                    fail= Double.parseDouble(value(args, i++));
+                    break;
+                case "-restore":
+                    restore= Double.parseDouble(value(args, i++));
+                    break;
+                case "-seed":
+                    seed= Long.parseLong(value(args, i++));
+                    break;
+                case "-log":
+                    level= Log.Level.valueOf(value(args, i++).toUpperCase(Locale.ROOT));
+                    break;
+                case "-quiet":
+                    quiet= true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option '"+args[i]+"'");
+            }
+        }
+        if ((n < 2) || (n > NodeId.MAX - 'A'))
+            throw new IllegalArgumentException("Invalid number of routers ("+n+")");
+        if ((max_cost < 1) || (max_cost >= RouterNode.MAX_DISTANCE))
+            throw new IllegalArgumentException("Invalid maximum cost ("+max_cost+")");
+        if ((loss < 0) || (loss >= 1) || (latency < 0) || (jitter < 0) || (settle < 0))
+            throw new IllegalArgumentException("Invalid latency, jitter or loss");
+        if ((restore > 0) && (restore <= fail))
+            throw new IllegalArgumentException("The link must fail before being restored");
+    }
+
+    /**
+     * Return the log of a router; the messages are prefixed with the virtual
+     * time and the router name, and are only written with -log
+     * @param name  router name
+     * @return the Log object
+     */
+    private Log router_log(char name) {
+        String prefix= NodeId.str(name)+": ";
+        return new Log() {
+            @Override
+            public void Log(String s) {
+                if (level != null)
+                    System.out.print(String.format("%10.3f ", fabric.nanos()/1e9)+prefix+s);
+            }
+
+            @Override
+            public boolean is_enabled(Log.Level l) {
+                return (level != null) && (l.compareTo(level) >= 0);
+            }
+        };
+    }
+
+    /**
+     * Add a link, with a random cost
+     * @param a  first router
+     * @param b  second router
+     */
+    private void link(int a, int b) {
+        links.add(new Link(a, b, 1 + rnd.nextInt(max_cost)));
+    }
+
+    /**
+     * Test if two routers are linked
+     * @param a  first router
+     * @param b  second router
+     * @return true if linked
+     */
+    private boolean linked(int a, int b) {
+        for (Link l : links) {
+            if (((l.a == a) && (l.b == b)) || ((l.a == b) && (l.b == a)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Create the links of the topology
+     */
+    private void build_topology() {
+        switch (topo) {
+            case "line":
+            case "ring":
+                for (int i= 1; i<n; i++)
+                    link(i-1, i);
+                if (topo.equals("ring") && (n > 2))
+                    link(n-1, 0);
+                break;
+            case "grid":
+                int side= (int) Math.ceil(Math.sqrt(n));
+                for (int i= 0; i<n; i++) {
+                    if (((i+1) % side != 0) && (i+1 < n))
+                        link(i, i+1);
+                    if (i+side < n)
+                        link(i, i+side);
+                }
+                break;
+            case "tree":
+                for (int i= 1; i<n; i++)
+                    link((i-1)/2, i);
+                break;
+            case "random":
+                // Random spanning tree, plus random links up to the degree
+                for (int i= 1; i<n; i++)
+                    link(rnd.nextInt(i), i);
+                long target= Math.min((long) (degree*n/2), (long) n*(n-1)/2);
+                while (links.size() < target) {
+                    int a= rnd.nextInt(n), b= rnd.nextInt(n);
+                    if ((a != b) && !linked(a, b))
+                        link(a, b);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown topology '"+topo+"'");
+        }
+    }
+
+    /**
+     * Return the maximum number of links of a router
+     * @return maximum degree
+     */
+    private int max_degree() {
+        int[] deg= new int[n];
+        int max= 0;
+        for (Link l : links) {
+            max= Math.max(max, Math.max(++deg[l.a], ++deg[l.b]));
+        }
+        return max;
+    }
+
+    /**
+     * Configure a link in both routers
+     * @param l     link
+     * @param up    true to add the neighbours, false to remove them
+     */
+    private void set_link(Link l, boolean up) {
+        SimRouter a= routers[l.a], b= routers[l.b];
+        if (up) {
+            a.node.add_neighbour(b.name, b.ip, PORT, l.cost);
+            b.node.add_neighbour(a.name, a.ip, PORT, l.cost);
+        } else {
+            a.node.remove_neighbour(b.name);
+            b.node.remove_neighbour(a.name);
+        }
+    }
+
+    /**
+     * Test if two routing tables have the same routes
+     * @param a  first table, or null
+     * @param b  second table, or null
+     * @return true if both have the same distances and next hops
+     */
+    private static boolean same_routes(RoutingTable a, RoutingTable b) {
+        if (a == b)
+            return true;
+        if ((a == null) || (b == null) || !a.equal_RoutingTable(b))
+            return false;
+        for (RouteEntry re : a.get_routeset()) {
+            if (a.nextHop(re.dest) != b.nextHop(re.dest))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Calculate the shortest distances from a router, with the links up
+     * @param src  source router
+     * @param up   links up
+     * @return distance to each router, or INF
+     */
+    private int[] shortest(int src, List<Link> up) {
+        ArrayList<ArrayList<Link>> adj= new ArrayList<>(n);
+        for (int i= 0; i<n; i++)
+            adj.add(new ArrayList<>());
+        for (Link l : up) {
+            adj.get(l.a).add(l);
+            adj.get(l.b).add(l);
+        }
+        int[] dist= new int[n];
+        Arrays.fill(dist, INF);
+        dist[src]= 0;
+        PriorityQueue<int[]> q= new PriorityQueue<>((x, y) -> Integer.compare(x[1], y[1]));
+        q.add(new int[] {src, 0});
+        while (!q.isEmpty()) {
+            int[] e= q.poll();
+            if (e[1] > dist[e[0]])
+                continue;
+            for (Link l : adj.get(e[0])) {
+                int o= (l.a == e[0]) ? l.b : l.a;
+                int d= e[1] + l.cost;
+                if (d < dist[o]) {
+                    dist[o]= d;
+                    q.add(new int[] {o, d});
+                }
+            }
+        }
+        return dist;
+    }
+
+    /**
+     * Count the routes that match the shortest paths; distance vector
+     * routes at or above MAX_DISTANCE are unreachable
+     * @param up   links up
+     * @return number of routes matching, and number of router pairs
+     */
+    private long[] check_routes(List<Link> up) {
+        int limit= (base.mode == Routing.Mode.LINK_STATE) ? INF : RouterNode.MAX_DISTANCE;
+        long ok= 0, total= 0;
+        for (int i= 0; i<n; i++) {
+            int[] exp= shortest(i, up);
+            Routing r= routers[i].node.routing();
+            RoutingTable tab= (r != null) ? r.table() : null;
+            for (int j= 0; j<n; j++) {
+                if (j == i)
+                    continue;
+                total++;
+                int want= (exp[j] < limit) ? exp[j] : INF;
+                int got= INF;
+                RouteEntry re= (tab != null) ? tab.get_RouteEntry(routers[j].name) : null;
+                if ((re != null) && !re.is_holddown() && (re.dist >= 0) && (re.dist < limit))
+                    got= re.dist;
+                if (got == want)
+                    ok++;
+            }
+        }
+        return new long[] {ok, total};
+    }
+
+    /**
+     * Return the number of ROUTE, ROUTE_DELTA and LSA packets sent
+     * @return number of packets
+     */
+    private long route_messages() {
+        long sum= 0;
+        for (SimRouter r : routers)
+            sum+= r.node.ROUTE_snt.sum();
+        return sum;
+    }
+
+    /**
+     * Run a phase of the scenario and write its results
+     * @param name   phase name
+     * @param start  start time [s]
+     * @param end    end time [s]
+     * @param up     links up during the phase
+     */
+    private void run_phase(String name, double start, double end, List<Link> up) {
+        long t0= (long) (start*1e9);
+        long msgs= route_messages();
+        fabric.run_until((long) (end*1e9));
+        long last= t0;
+        for (SimRouter r : routers)
+            last= Math.max(last, r.last_change);
+        long[] ok= check_routes(up);
+        routes_ok.add(ok);
+        System.out.println(String.format("%-16s %10.3f %14.3f %12d %10d/%d", name, start,
+            (last-t0)/1e9, route_messages()-msgs, ok[0], ok[1]));
+    }
+
+    /**
+     * Create the routers and run the scenario
+     * @throws IOException if a router failed to start
+     */
+    private void run() throws IOException {
+        rnd= new Random(seed);
+        Log sim_log= router_log('*');
+        fabric= new SimFabric(latency, jitter, loss, new Random(seed+1), sim_log);
+        build_topology();
+        base.max_neighbours= max_degree()+1;
+        base.data_workers= 1;
+        routers= new SimRouter[n];
+        for (int i= 0; i<n; i++)
+            routers[i]= new SimRouter(i);
+
+        System.out.println(String.format("Simulation: %d routers, %s topology, %d links, %s,"
+            +" period %d s%s%s%s", n, topo, links.size(), base.mode, base.period,
+            base.split_horizon ? ", split horizon" : "",
+            base.holddown ? (", holddown "+base.holddown_time+" s") : "",
+            base.send_if_changes ? ", send if changes" : ""));
+        System.out.println(String.format("Fabric: latency %.1f ms + %.1f ms jitter, loss %.2f %%,"
+            +" seed %d", latency, jitter, 100*loss, seed));
+        System.out.println(String.format("%-16s %10s %14s %12s %12s", "Phase", "start[s]",
+            "converged[s]", "ROUTE msgs", "routes ok"));
+
+        long real0= System.nanoTime();
+        long cpu0= fabric.cpu_nanos();
+        // Boot
+        for (int i= 0; i<n; i++) {
+            RouterConfig cfg= copy(base);
+            cfg.name= routers[i].name;
+            cfg.seed= seed*1000003L + i + 1;
+            routers[i].node.start(cfg, routers[i].ep, routers[i].ep);
+        }
+        for (Link l : links)
+            set_link(l, true);
+        ArrayList<Link> up= new ArrayList<>(links);
+        double t= 0;
+        Link failed= null;
+        if ((fail > 0) && (fail < duration)) {
+            run_phase("boot", t, fail, up);
+            failed= links.get(rnd.nextInt(links.size()));
+            set_link(failed, false);
+            up.remove(failed);
+            t= fail;
+            String name= "fail "+NodeId.str(routers[failed.a].name)+"-"
+                +NodeId.str(routers[failed.b].name);
+            if ((restore > 0) && (restore < duration)) {
+                run_phase(name, t, restore, up);
+                set_link(failed, true);
+                up.add(failed);
+                t= restore;
+                run_phase("restore", t, duration, up);
+            } else {
+                run_phase(name, t, duration, up);
+            }
+        } else {
+            run_phase("boot", t, duration, up);
+        }
+        if (settle > 0) {
+            // Without losses, the routes must converge again
+            fabric.set_loss(0);
+            run_phase("settle", duration, duration+settle, up);
+        }
+        long real= System.nanoTime()-real0;
+        long cpu= fabric.cpu_nanos()-cpu0;
+        report(real, cpu);
+    }
+
+    /**
+     * Copy a configuration
+     * @param c  configuration
+     * @return a new configuration with the same values
+     */
+    private static RouterConfig copy(RouterConfig c) {
+        RouterConfig r= new RouterConfig();
+        r.name= c.name;
+        r.port= c.port;
+        r.period= c.period;
+        r.split_horizon= c.split_horizon;
+        r.holddown= c.holddown;
+        r.holddown_time= c.holddown_time;
+        r.mode= c.mode;
+        r.send_if_changes= c.send_if_changes;
+        r.max_neighbours= c.max_neighbours;
+        r.data_workers= c.data_workers;
+        r.coalesce_ms= c.coalesce_ms;
+        r.jitter= c.jitter;
+        r.spacing_ms= c.spacing_ms;
+        r.seed= c.seed;
+        return r;
+    }
+
+    /**
+     * Write the counters and CPU time of the routers, and the totals
+     * @param real  elapsed time [ns]
+     * @param cpu   CPU time of the simulation [ns]
+     */
+    private void report(long real, long cpu) {
+        long min= Long.MAX_VALUE, max= 0, sum= 0;
+        long pkts= 0, bytes= 0, lost= 0;
+        if (!quiet) {
+            System.out.println(String.format("%-7s %11s %11s %13s %11s %8s %8s %9s",
+                "Router", "HELLO s/r", "BYE s/r", "ROUTE s/r", "DATA s/r", "lost",
+                "changes", "CPU[ms]"));
+        }
+        for (SimRouter r : routers) {
+            RouterNode nd= r.node;
+            min= Math.min(min, r.ep.cpu);
+            max= Math.max(max, r.ep.cpu);
+            sum+= r.ep.cpu;
+            pkts+= r.ep.packets_snt;
+            bytes+= r.ep.bytes_snt;
+            lost+= r.ep.packets_lost;
+            if (!quiet) {
+                System.out.println(String.format("%-7s %5d/%-5d %5d/%-5d %6d/%-6d %5d/%-5d %8d %8d %9.3f",
+                    NodeId.str(r.name), nd.HELLO_snt.sum(), nd.HELLO_rcv.sum(),
+                    nd.BYE_snt.sum(), nd.BYE_rcv.sum(), nd.ROUTE_snt.sum(), nd.ROUTE_rcv.sum(),
+                    nd.DATA_snt.sum(), nd.DATA_rcv.sum(), r.ep.packets_lost,
+                    r.changes, r.ep.cpu/1e6));
+            }
+        }
+        System.out.println(String.format("Packets sent %d (%d bytes), lost %d; events %d,"
+            +" failed %d", pkts, bytes, lost, fabric.events(), fabric.errors()));
+        System.out.println(String.format("CPU per router [ms]: min %.3f avg %.3f max %.3f;"
+            +" total %.3f", min/1e6, sum/1e6/n, max/1e6, cpu/1e6));
+        double time= duration+settle;
+        System.out.println(String.format("Virtual time %.0f s in %.3f s (%.0fx)", time,
+            real/1e9, time*1e9/Math.max(1, real)));
+    }
+
+    /**
+     * Run a scenario, as from the command line
+     * @param args the command line arguments
+     * @return for each phase, the number of routes matching the shortest
+     *      paths at its end and the number of router pairs
+     * @throws IOException if a router failed to start
+     */
+    static long[][] simulate(String... args) throws IOException {
+        RouterSim sim= new RouterSim();
+        sim.parse_args(args);
+        sim.run();
+        return sim.routes_ok.toArray(new long[0][]);
+    }
+
+    /**
+     * main function of the simulator
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        RouterSim sim= new RouterSim();
+        try {
+            sim.parse_args(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            sim.run();
+        }
+        catch (IOException e) {
+            System.err.println("Simulation failed: "+e.getMessage());
+            System.exit(1);
+        }
+    }
+}
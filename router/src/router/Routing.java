@@ -13,13 +13,13 @@
 package router;
 
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 import java.net.*;
 import java.io.*;
-import javax.swing.*;
-import java.awt.event.*;
-
-import java.util.TimerTask; 
-import java.util.Timer; 
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Encapsulates the Routing functions, hosting multiple instances of
@@ -35,12 +35,73 @@ public class Routing {
      * Time added to the period to define the TTL field of the ROUTE packets
      */
     public final int TTL_ADD = 10;
+    /**
+     * Every FULL_REFRESH-th ROUTE_DELTA sent to a neighbour carries the full
+     * vector, even without gaps
+     */
+    public final static int FULL_REFRESH = 5;
+    /**
+     * Number of ROUTE_NACKs sent to a neighbour during the last period of
+     * the TTL of its vector, if it was not refreshed
+     */
+    public final static int REFRESH_ASKS = 2;
+
+    /**
+     * Routing protocols
+     */
+    public enum Mode {
+        /** Distance vector, with ROUTE packets */
+        DISTANCE_VECTOR,
+        /** Link state, with LSA packets flooded to all the routers */
+        LINK_STATE,
+        /**
+         * Distance vector where only feasible successors (reported distance
+         * lower than the feasible distance) are used, as in DUAL
+         */
+        FEASIBLE_SUCCESSOR
+    }
+
+    /**
+     * ROUTE_DELTA state kept for each neighbour
+     */
+    private static final class AnnounceState {
+        /** Session of the neighbour the state refers to */
+        long session;
+        /** Sequence number of the last packet sent */
+        int seq;
+        /** Vector sent, as a baseline for the next delta */
+        HashMap<Character, Integer> sent = new HashMap<>();
+        /** True if the next packet must carry the full vector */
+        boolean full_needed = true;
+        /** Packets sent since the last full vector */
+        int since_full;
+    }
+
+    /**
+     * Fragmented ROUTE_DELTA update being received from a neighbour
+     */
+    private static final class Reassembly {
+        /** Session of the neighbour the state refers to */
+        long session;
+        /** Sequence number of the update */
+        int seq;
+        /** Number of fragments of the update */
+        int frags;
+        /** True if the update carries the full vector */
+        boolean full;
+        /** Fragments received */
+        BitSet received = new BitSet();
+        /** Destinations received, in a full vector */
+        HashSet<Character> seen = new HashSet<>();
+    }
 
     // Variables
     /**
-     * Routing table object
+     * Routing table snapshot; the control executor builds each new version
+     * on a copy and publishes it frozen, and the DATA workers read it
+     * without locking
      */
-    public RoutingTable tab;
+    private volatile RoutingTable tab;
 
     /**
      * Local address name
@@ -51,22 +112,87 @@ public class Routing {
      */
     private NeighbourList neig;
     /**
-     * Reference to main window with GUI
+     * Local router; null after stop()
+     */
+    private RouterNode node;
+    /**
+     * Datagram transport used to send packets
+     */
+    private Transport ds;
+    /**
+     * Observer of the routing table changes
      */
-    private Router win;
+    private final RouterListener listener;
     /**
-     * Unicast datagram socket used to send packets
+     * Control plane executor - serializes all changes to the routing state
      */
-    private DatagramSocket ds;
+    private final Executor control;
     /**
-     * Reference to graphical Routing table object
+     * Local socket address, used to send DATA packets to the local node
      */
-    private JTable tableObj;
+    private volatile InetSocketAddress local_addr;
 
     public Date lastSending;
-    private javax.swing.Timer timer_announce;
+    /**
+     * Schedules the periodic ROUTEs, with jitter, and paces the triggered
+     * ROUTEs sent to each neighbour
+     */
+    private final AnnounceScheduler announcer;
+    /**
+     * Shared timing wheel
+     */
+    private final TimingWheel timers;
+    /**
+     * Incremental distance vector calculation
+     */
+    private final DistanceVector dv;
+    /**
+     * Coalesces the recalculations triggered by topology events
+     */
+    private final RecomputeScheduler recompute;
+    /**
+     * Destinations recalculated in the next run, besides the ones affected
+     * by neighbour changes; only used by the control executor
+     */
+    private final Set<Character> forced = new TreeSet<>();
+    /**
+     * ROUTE_DELTA state of each neighbour; only used by the control executor
+     */
+    private final HashMap<Character, AnnounceState> announced = new HashMap<>();
+    /**
+     * Fragmented ROUTE_DELTA updates being received; only used by the
+     * control executor
+     */
+    private final HashMap<Character, Reassembly> reassembly = new HashMap<>();
+    /**
+     * Vectors and ROUTE packets advertised to the neighbours
+     */
+    private final RouteCache cache;
+    /**
+     * Link state database, used in LINK_STATE mode
+     */
+    private final LinkState ls;
+    /**
+     * Feasible distance of each destination, in FEASIBLE_SUCCESSOR mode: the
+     * lowest distance since the destination was last reset
+     */
+    private final HashMap<Character, Integer> fdist = new HashMap<>();
+    /**
+     * Destinations without feasible successors, in FEASIBLE_SUCCESSOR mode;
+     * they are announced as unreachable until the next periodic ROUTE, when
+     * the feasible distance is reset
+     */
+    private final Set<Character> active = new TreeSet<>();
+    /**
+     * Neighbours that already received the link state database
+     */
+    private final Set<Character> ls_synced = new HashSet<>();
 
     // Configuration variables
+    /**
+     * Routing protocol
+     */
+    private final Mode mode;
     /**
      * ROUTE sending period (ms)
      */
@@ -97,28 +223,51 @@ public class Routing {
      * @param splitHorz use Split Horizon
      * @param holddwn use Hold down
      * @param holddwn_t Hold down time
-     * @param win reference to main window object
-     * @param ds unicast datagram socket
-     * @param TabObject Graphical object with the 
+     * @param mode routing protocol
+     * @param node local router
+     * @param ds datagram transport
+     * @param listener observer of the routing table changes
+     * @param control control plane executor
+     * @param timers shared timing wheel
+     * @param coalesce_ms minimum interval between recalculations [ms]
+     * @param jitter jitter of the ROUTE period, as a fraction of the period
+     * @param spacing_ms minimum interval between triggered ROUTEs sent to a
+     *      neighbour [ms]
+     * @param rnd random generator used for the jitter
      */
     public Routing(char local_name, NeighbourList neig, int period,
-            boolean splitHorz, boolean holddwn, int holddwn_t,
-            Router win, DatagramSocket ds, JTable TabObject) {
+            boolean splitHorz, boolean holddwn, int holddwn_t, Mode mode,
+            RouterNode node, Transport ds, RouterListener listener, Executor control,
+            TimingWheel timers, int coalesce_ms, double jitter, int spacing_ms,
+            Random rnd) {
         this.local_name = local_name;
         this.neig = neig;
         this.period = period;
         this.splitHorizon = splitHorz;
         this.holddown = holddwn;
         this.holddown_time = holddwn_t * 1000;
-        this.win = win;
+        this.mode = mode;
+        this.node = node;
         this.ds = ds;
-        this.tableObj = TabObject;
+        this.listener = listener;
+        this.control = control;
+        this.timers = timers;
         // Initialize everything
-        this.timer_announce = null;
-        this.tab = new RoutingTable();
-        Log2("new routing(local='" + local_name + "', period=" + period
+        this.dv = new DistanceVector(node);
+        this.recompute = new RecomputeScheduler(this::recompute, control, timers, coalesce_ms);
+        this.announcer = new AnnounceScheduler(control, timers, period * 1000L,
+                jitter, spacing_ms, rnd, this::announce,
+                this::send_deferred_ROUTE);
+        this.cache = new RouteCache(local_name, splitHorz, period + TTL_ADD);
+        this.ls = new LinkState(local_name, node, timers.clock());
+        RoutingTable rt = new RoutingTable();
+        rt.add_route(new RouteEntry(local_name, ' ', 0, node));
+        publish(rt);
+        Log2("new routing(local='" + local_name + "', " + mode + ", period=" + period
                 + (splitHorizon ? ", splitHorizon" : "")
-                + (holddown ? (", holddown(" + holddown_time + ")") : "") + ")");
+                + (holddown ? (", holddown(" + holddown_time + ")") : "")
+                + ", coalesce=" + coalesce_ms + ", jitter=" + jitter
+                + ", spacing=" + spacing_ms + ")");
     }
 
     /**
@@ -126,110 +275,288 @@ public class Routing {
      * @return true if successful
      */
     public boolean start() {
-        update_routing_table();
-        start_announce_timer();
+        control.execute(() -> {
+            if (mode != Mode.LINK_STATE)
+                update_routing_table();
+            announcer.start();
+        });
         return true;
     }
 
     /**
-     * Handle a network change notification
+     * Return the shared timing wheel
+     * @return the timing wheel
+     */
+    public TimingWheel timers() {
+        return timers;
+    }
+
+    /**
+     * Handle a network change notification; must be called from the control
+     * executor. Bursts of notifications are merged into one recalculation
+     * per coalescing window
      * @param send_always  if true, send always the ROUTE packet
      */
     public void network_changed(boolean send_always) {
-        if (win.is_sendIfChanges() || send_always) {
-            update_routing_table();
-            if(send_local_ROUTE()){
-                reset_announce_timer();
-            }
-            
-            // COMPLETE THIS PART OF STEP 6
-            // Recalculate the table and send it if send_always or if the table changed
-            // Restart the ROUTE sending timer when the ROUTE is sent to the neighbours.       
+        if (node.is_sendIfChanges() || send_always) {
+            recompute.request(send_always);
         }     
     }
 
+    /**
+     * Handle a change in the neighbour list; must be called from the control
+     * executor. The link state mode floods a new LSA at once; the feasible
+     * successor mode switches at once to a feasible successor, and only
+     * sends a ROUTE if the table changed; the distance vector mode only
+     * reacts when sendIfChanges is active, and otherwise waits for the next
+     * period
+     */
+    public void neighbours_changed() {
+        if (node.is_sendIfChanges() || (mode == Mode.LINK_STATE)) {
+            recompute.request(true);
+        } else if (mode == Mode.FEASIBLE_SUCCESSOR) {
+            recompute.request(false);
+        }
+    }
+
+    /**
+     * Recalculate the table and send it if send_always or if the table
+     * changed; runs on the control executor
+     * @param send_always  if true, send always the ROUTE packet
+     */
+    private void recompute(boolean send_always) {
+        if (node == null)
+            return;     // Stopped
+        if (mode == Mode.LINK_STATE) {
+            ls_update(false);
+            return;
+        }
+        boolean changed = !update_routing_table().isEmpty();
+        Log(Log.Level.DEBUG, () -> "recompute: " + recompute.last_merged()
+                + " events merged\n");
+        if ((changed || send_always) && send_triggered_ROUTE()) {
+            announcer.reset();
+        }
+    }
+
+    /**
+     * Return a string with the recalculation counters
+     * @return string with the counters
+     */
+    public String recompute_statistics() {
+        return recompute.statistics() + "\n" + ((mode == Mode.LINK_STATE) 
+                ? ls.statistics() : (cache.statistics() + "\n" + announcer.statistics()));
+    }
+
     /**
      * Stop all the Routing processes and resets the Routing state
      */
     public void stop() {
         try {
-            stop_announce_timer();
+            recompute.stop();
+            announcer.stop();
         
             // Clean Routing table, stopping all hold down timers
-            tab.clear();
+            tab.stop_holddown_timers();
+            publish(new RoutingTable());
+            dv.clear();
+            announced.clear();
+            reassembly.clear();
+            cache.clear();
+            ls.clear();
+            ls_synced.clear();
+            fdist.clear();
+            active.clear();
 
-            update_routing_window();
+            table_changed();
         } catch (Exception e) {
             Log("Exception stopping the router: "+e+"\n");
         }
 
         local_name = ' ';
         neig = null;
-        win = null;
+        node = null;
         ds = null;
-        tableObj = null;
     }
     
     /**
      * Sends a ROUTE packet with route vector to Neighbour n
      *
      * @param n Neighbour reference
-     * @param vec Entry vector to send to the neighbour
+     * @param pkt encoded ROUTE packet; its position is preserved
      * @return true if successful, false otherwise
      */
-    public boolean send_local_ROUTE_to_neighbour(Neighbour n, Entry[] vec) {
-        Log2("send_local_ROUTE(" + n.Name() + ")\n");
+    public boolean send_local_ROUTE_to_neighbour(Neighbour n, ByteBuffer pkt) {
+        Log(Log.Level.DEBUG, () -> "send_local_ROUTE(" + n.Name() + ")\n");
 
-        // Prepare and send message
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(os);
-        
+        // Send message
         try {
-            dos.writeByte(Router.PKT_ROUTE);
-            dos.writeChar(local_name);
-            dos.writeInt(period + TTL_ADD);   // TTL value
-            dos.writeInt(vec.length);
-            for (Entry rt : vec) {
-                rt.writeEntry(dos);
-            }
-            byte[] buffer = os.toByteArray();
-            DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-
-            n.send_packet(ds, dp);
+            n.send_packet(ds, pkt);
+            announcer.sent(n.Name());
             lastSending = new Date();
-            win.ROUTE_snt++;
+            node.ROUTE_snt.increment();
             return true;
         } catch (IOException e) {
-            Log("Error sending ROUTE: " + e + "\n");
+            Log(Log.Level.WARN, "Error sending ROUTE: " + e + "\n");
             return false;
         }
     }
 
     /**
-     * Prepare a temporary vector to send to a neighbour router
-     * @param n neighbour router
-     * @return  vector 
+     * Sends a ROUTE_DELTA packet to Neighbour n, with the changes since the
+     * last packet sent, or with the full vector when required
+     *
+     * @param n Neighbour reference
+     * @param vec Entry vector to send to the neighbour, or null if empty
+     * @return true if successful, false otherwise
      */
-    private Entry[] prepare_vec_for_neighbour(Neighbour n) {
-        // Prepare a temporary routing table aux with entries to send to the neighbour
-        RoutingTable aux= tab;  // Default implementation - always use the full routing table
-        
-        // TO MODIFY IN STEPS 5 and 7
-        // Your split horizon and hold down implementations must remove from the vector all
-        //   destinations that are not accessible!
-        //
-        // Create a new routing table object and add only the the valid entries
-        // RoutingTable aux= new RoutingTable ();
-        // ...
-
-        for(RouteEntry re : tab.get_routeset()){            
-            if(tab.nextHop(re.dest)!= n.name){
-                aux.add_route(re);
+    public boolean send_local_ROUTE_DELTA_to_neighbour(Neighbour n, Entry[] vec) {
+        AnnounceState st = announced.get(n.Name());
+        if ((st == null) || (st.session != n.session)) {
+            // New neighbour, or replaced by a new HELLO
+            st = new AnnounceState();
+            st.session = n.session;
+            announced.put(n.Name(), st);
+        }
+        if (vec == null) {
+            vec = new Entry[0];
+        }
+        List<Entry> upd = new ArrayList<>();
+        List<Character> wd = new ArrayList<>();
+        HashSet<Character> dests = new HashSet<>(2 * vec.length);
+        for (Entry e : vec) {
+            dests.add(e.dest);
+            Integer d = st.sent.get(e.dest);
+            if ((d == null) || (d != e.dist)) {
+                upd.add(e);
             }
         }
-        
-        // Return a vector with the aux routing table contents
-        return (aux.size() > 0) ? aux.get_Entry_vector() : null;
+        for (char dest : st.sent.keySet()) {
+            if (!dests.contains(dest)) {
+                wd.add(dest);
+            }
+        }
+        boolean full = st.full_needed || (st.since_full + 1 >= FULL_REFRESH)
+                || (upd.size() + wd.size() >= vec.length);
+        if (full) {
+            upd = new ArrayList<>(Arrays.asList(vec));
+            wd = Collections.emptyList();
+        }
+        boolean compact = n.has_cap(RouterNode.CAP_COMPACT);
+        if (compact) {
+            // Compact entries are sent sorted by destination
+            upd.sort((a, b) -> Character.compare(a.dest, b.dest));
+            Collections.sort(wd);
+        }
+        byte flags = (byte) ((full ? PacketCodec.FLAG_FULL : 0)
+                | (compact ? PacketCodec.FLAG_COMPACT : 0));
+        // Split the update in fragments that fit in ROUTE_MTU: each one
+        //   holds the entries from cuts[k] to cuts[k+1]
+        List<int[]> cuts = fragment(upd, wd, compact);
+        int frags = cuts.size() - 1;
+        if ((frags > 1) && !n.has_cap(RouterNode.CAP_ROUTE_FRAG)) {
+            Log(Log.Level.WARN, "Vector too long for " + n.Name() + " - ROUTE_DELTA not sent\n");
+            return false;
+        }
+        if (frags > RouterNode.MAX_FRAGMENTS) {
+            Log(Log.Level.WARN, "Too many fragments (" + frags + ") - ROUTE_DELTA not sent\n");
+            return false;
+        }
+        final boolean f = full;
+        final int seq = st.seq + 1;
+        Log(Log.Level.DEBUG, () -> "send_local_ROUTE_DELTA(" + n.Name() + ","
+                + (f ? "FULL" : "DELTA") + ",seq=" + seq + ",frags=" + frags + ")\n");
+        int k = 0;
+        try {
+            for (; k < frags; k++) {
+                int[] a = cuts.get(k);
+                int[] b = cuts.get(k + 1);
+                n.send_packet(ds, PacketCodec.get().encode_ROUTE_DELTA(local_name,
+                        period + TTL_ADD, flags, seq, k, frags,
+                        upd.subList(a[0], b[0]), wd.subList(a[1], b[1])));
+            }
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "Error sending ROUTE_DELTA: " + e + "\n");
+            if (k > 0) {
+                // The fragments sent were applied by the neighbour: the
+                //   sequence number is used, and the baseline is unknown
+                st.seq = seq;
+                st.full_needed = true;
+            }
+            return false;
+        }
+        // The packet sent becomes the baseline for the next delta
+        st.seq = seq;
+        st.full_needed = false;
+        st.since_full = full ? 0 : st.since_full + 1;
+        if (full) {
+            st.sent.clear();
+        }
+        for (char dest : wd) {
+            st.sent.remove(dest);
+        }
+        for (Entry e : upd) {
+            st.sent.put(e.dest, e.dist);
+        }
+        announcer.sent(n.Name());
+        lastSending = new Date();
+        node.ROUTE_snt.increment();
+        return true;
+    }
+
+    /**
+     * Split an update in fragments that fit in ROUTE_MTU; the entries are
+     * placed first, followed by the withdrawals. In compact fragments, the
+     * first destination of each list is sent in full, and the others as
+     * the difference to the previous one
+     *
+     * @param upd entries added or modified
+     * @param wd destinations withdrawn
+     * @param compact true for compact entries
+     * @return list with the start of each fragment and the end of the last,
+     *      as {entry index, withdrawal index}
+     */
+    static List<int[]> fragment(List<Entry> upd, List<Character> wd, boolean compact) {
+        int room = RouterNode.ROUTE_MTU - PacketCodec.ROUTE_DELTA_HEADER;
+        List<int[]> cuts = new ArrayList<>();
+        int u = 0, w = 0;
+        cuts.add(new int[] { u, w });
+        do {
+            int bytes = 0;
+            int prev = 0;
+            for (; u < upd.size(); u++) {
+                int len = compact ? PacketCodec.varint_len(PacketCodec.compact_entry(
+                        upd.get(u).dest - prev, upd.get(u).dist)) : PacketCodec.ENTRY_LEN;
+                if (bytes + len > room)
+                    break;
+                bytes += len;
+                prev = upd.get(u).dest;
+            }
+            prev = 0;
+            for (; w < wd.size(); w++) {
+                int len = compact ? PacketCodec.varint_len(wd.get(w) - prev) : 2;
+                if (bytes + len > room)
+                    break;
+                bytes += len;
+                prev = wd.get(w);
+            }
+            cuts.add(new int[] { u, w });
+        } while ((u < upd.size()) || (w < wd.size()));
+        return cuts;
+    }
+
+    /**
+     * Return the vector to send to a neighbour router; split horizon and
+     * hold down remove from the vector all the destinations that are not
+     * accessible. The vector comes from the cache, rebuilt in one pass
+     * when the table changes
+     * @param tab routing table snapshot
+     * @param n neighbour router
+     * @return  vector, or null if empty; it must not be modified
+     */
+    private Entry[] prepare_vec_for_neighbour(RoutingTable tab, Neighbour n) {
+        cache.update(tab);
+        return cache.vec(n.Name());
     }
 
     /**
@@ -238,278 +565,761 @@ public class Routing {
      * @return true if successful, false otherwise
      */
     public boolean send_local_ROUTE() {
-        if ((tab == null) || !tab.is_valid()) {
-            Log2("Cannot send ROUTE: invalid routing table\n");
+        RoutingTable tab = this.tab;
+        if (!can_send_ROUTE(tab)) {
             return false;
         }
-        if (tab.size() > Router.MAX_ROUTINGTABLE_SIZE) {
-            Log("Too many entries in routing table - ROUTE not sent\n");
-            return false;
+        cache.update(tab);
+        for (Neighbour pt : neig.values()) {
+            if (pt.is_valid()) {
+                send_cached_ROUTE_to_neighbour(pt);
+            }
         }
+        Set<Character> names = neig_names();
+        announced.keySet().retainAll(names);
+        reassembly.keySet().retainAll(names);
+        announcer.retain(names);
+        return true;
+    }
 
-        Log("Routing.send_local_ROUTE() not implemented\n");
-        // COMPLETE IN STEP 3 
-        // send the local vector to all the neighbor routers, one by one
-        //    using the methods above (prepare_vec_for_neighbour and send_local_ROUTE_to_neighbour)
-        
-        // send local vector
-         for (Neighbour pt : neig.values()) {
-            if (pt.is_valid()) {
-                send_local_ROUTE_to_neighbour(pt,prepare_vec_for_neighbour(pt));
+    /**
+     * Send a triggered ROUTE to all neighbours; the neighbours that received
+     * a ROUTE less than the minimum spacing ago receive it at the end of the
+     * spacing, with the table of that time
+     *
+     * @return true if successful, false otherwise
+     */
+    private boolean send_triggered_ROUTE() {
+        RoutingTable tab = this.tab;
+        if (!can_send_ROUTE(tab)) {
+            return false;
+        }
+        cache.update(tab);
+        for (Neighbour pt : neig.values()) {
+            if (pt.is_valid() && announcer.trigger(pt)) {
+                send_cached_ROUTE_to_neighbour(pt);
             }
         }
         return true;
     }
 
+    /**
+     * Send a triggered ROUTE deferred by the pacing; runs on the control
+     * executor
+     *
+     * @param pt neighbour
+     */
+    private void send_deferred_ROUTE(Neighbour pt) {
+        if ((node == null) || (neig.locate_neig(pt.Name()) != pt) || !pt.is_valid())
+            return;     // Stopped, or neighbour replaced or lost
+        RoutingTable tab = this.tab;
+        if (can_send_ROUTE(tab)) {
+            cache.update(tab);
+            send_cached_ROUTE_to_neighbour(pt);
+        }
+    }
+
+    /**
+     * Send the cached vector to a neighbour; neighbours that support it 
+     * receive only the changes, the others receive the cached ROUTE packet
+     *
+     * @param pt neighbour
+     */
+    private void send_cached_ROUTE_to_neighbour(Neighbour pt) {
+        if (pt.has_cap(RouterNode.CAP_ROUTE_DELTA)) {
+            send_local_ROUTE_DELTA_to_neighbour(pt, cache.vec(pt.Name()));
+        } else if (tab.size() > RouterNode.MAX_ROUTINGTABLE_SIZE) {
+            Log(Log.Level.WARN, "Too many entries in routing table - ROUTE not sent to "
+                    + pt.Name() + "\n");
+        } else {
+            ByteBuffer pkt= cache.packet(pt.Name());
+            if (pkt != null)
+                send_local_ROUTE_to_neighbour(pt, pkt);
+        }
+    }
+
+    /**
+     * Test if a routing table may be sent in ROUTE packets
+     *
+     * @param tab routing table snapshot
+     * @return true if valid
+     */
+    private boolean can_send_ROUTE(RoutingTable tab) {
+        if ((tab == null) || !tab.is_valid()) {
+            Log2("Cannot send ROUTE: invalid routing table\n");
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Unmarshall a ROUTE packet and process it
      *
      * @param sender the sender address
-     * @param dp datagram packet
-     * @param ip IP address of the sender
-     * @param dis input stream object
+     * @param pkt packet view, positioned after the header
      * @return true if packet was handled successfully, false if error
      */
-    public boolean process_ROUTE(char sender, DatagramPacket dp,
-            String ip, DataInputStream dis) {
-        //Log("Packet ROUTE not supported yet\n");
+    public boolean process_ROUTE(char sender, PacketView pkt) {
         if (sender == local_name) {
             // Packet loopback - ignored
             return true;
         }
-        Entry[] vec;
+        PacketCodec.RouteReader rd = PacketCodec.get().route;
         try {
-            Log("PKT_ROUTE");
-            String aux;
-            aux = "(" + sender + ",";
-            int TTL = dis.readInt();
-            aux += "TTL=" + TTL + ",";
-            int n = dis.readInt();
-            aux += "EntryList(" + n + ": ";
-            if ((n <= 0) || (n > Router.MAX_ROUTINGTABLE_SIZE)) {
-                Log("\nInvalid Entry list length '" + n + "'\n");
-                return false;
+            rd.wrap(pkt.buffer());
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "PKT_ROUTE(" + sender + "): ERROR - " + e.getMessage() + "\n");
+            return false;
+        }
+        Log(Log.Level.DEBUG, () -> "PKT_ROUTE(" + sender + "," + rd + ")\n");
+
+        Neighbour pt = neig.locate_neig(pkt.source());
+        if (pt == null) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender (" + pkt.ip() + " ; " + pkt.port() + "), it is not a neighbor\n");
+            return false;
+        }
+        if (pt.Name() != sender) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender name (" + sender + "), different from the neigbour table\n");
+            return false;
+        }
+
+        // Store the vector; a new vector is only created if it changed
+        Entry[] old_vec = pt.Vec();
+        boolean changed = !rd.equals_vec(old_vec);
+        try {
+            pt.update_vec(changed ? rd.to_vec() : old_vec, rd.TTL(), timers.clock().nanos());
+        } catch (Exception e) {
+            Log(Log.Level.WARN, "ERROR - Invalid neighbour update\n");
+            return false;
+        }
+        pt.route_seq_valid = false;
+        track_vec_TTL(pt);
+        if (changed) {
+            network_changed(false);
+        }
+        return true;
+    }
+
+    /**
+     * Return the time when the refresh of the vector of a neighbour starts
+     * being asked: one period before the end of the TTL
+     *
+     * @param pt neighbour
+     * @return time [ns, monotonic clock]
+     */
+    private long refresh_time(Neighbour pt) {
+        return pt.vec_deadline - TimeUnit.SECONDS.toNanos(period);
+    }
+
+    /**
+     * Return the next time when the vector of a neighbour is checked: each
+     * of the REFRESH_ASKS times, evenly spaced in the last period of the
+     * TTL, when the vector came in ROUTE_DELTA packets, and the end of the
+     * TTL
+     *
+     * @param pt neighbour
+     * @param now current time [ns, monotonic clock]
+     * @return time [ns, monotonic clock]
+     */
+    private long next_check(Neighbour pt, long now) {
+        if (pt.route_seq_valid) {
+            long step = TimeUnit.SECONDS.toNanos(period) / REFRESH_ASKS;
+            for (int k = REFRESH_ASKS; k > 0; k--) {
+                long t = pt.vec_deadline - k * step;
+                if (t > now)
+                    return t;
             }
-            vec = new Entry[n];
-            for (int i = 0; i < n; i++) {
+        }
+        return pt.vec_deadline;
+    }
+
+    /**
+     * Start the timer that invalidates the vector of a neighbour when its
+     * TTL ends, if it is not running; the timer checks the deadline when
+     * it fires, and restarts if the vector was refreshed meanwhile. When the
+     * vector came in ROUTE_DELTA packets, the timer also fires during the
+     * last period of the TTL, to ask for the full vector
+     *
+     * @param pt neighbour
+     */
+    private void track_vec_TTL(Neighbour pt) {
+        if (pt.vec_timer != null)
+            return;
+        long now = timers.clock().nanos();
+        long delay = next_check(pt, now) - now;
+        char name = pt.Name();
+        TimingWheel.Timeout[] t = new TimingWheel.Timeout[1];
+        t[0] = timers.schedule(() -> control.execute(() -> vec_TTL_expired(name, t[0])),
+                delay, TimeUnit.NANOSECONDS);
+        pt.vec_timer = t[0];
+    }
+
+    /**
+     * Handle the end of the TTL timer of a neighbour vector; an expired
+     * vector is invalidated and the routes are recalculated once. During the
+     * last period of the TTL, the vector is asked again with ROUTE_NACKs, so
+     * that losing a few ROUTE packets in a row does not remove the routes
+     * through the neighbour. The timer follows the copies of the neighbour
+     * made by update_neig
+     *
+     * @param name neighbour name
+     * @param t timer that ended
+     */
+    private void vec_TTL_expired(char name, TimingWheel.Timeout t) {
+        if (node == null)
+            return;     // Stopped
+        Neighbour pt = neig.locate_neig(name);
+        if ((pt == null) || (pt.vec_timer != t))
+            return;     // Neighbour removed or replaced by a new HELLO
+        pt.vec_timer = null;
+        long now = timers.clock().nanos();
+        if (pt.expire_vec(now)) {
+            Log(Log.Level.DEBUG, () -> "Vector of " + pt.Name() + " expired\n");
+            recompute.request(false);
+        } else if (pt.vec != null) {
+            if (pt.route_seq_valid && (now >= refresh_time(pt))) {
+                Log(Log.Level.DEBUG, () -> "Vector of " + pt.Name() + " not refreshed\n");
                 try {
-                    vec[i] = new Entry(dis);
+                    pt.send_packet(ds, PacketCodec.get().encode_ROUTE_NACK(
+                            local_name, pt.route_seq + 1));
                 } catch (IOException e) {
-                    Log("\nERROR - Invalid vector Entry: " + e.getMessage() + "\n");
-                    return false;
+                    Log(Log.Level.WARN, "Error sending ROUTE_NACK: " + e + "\n");
                 }
-                aux += (i == 0 ? "" : " ; ") + vec[i].toString();
-            }
-            Log(aux + ")\n");
-            
-            if (dis.available() > 0) {
-                Log("\nERROR - Invalid ROUTE - extra bytes after end of message\n");
-                return false;
             }
+            track_vec_TTL(pt);  // Refreshed meanwhile, or waits for the end
+        }
+    }
 
+    /**
+     * Unmarshall a ROUTE_DELTA packet and apply it to the vector of the
+     * sender; a NACK is sent back if a gap is detected in the sequence
+     *
+     * @param sender the sender address
+     * @param pkt packet view, positioned after the header
+     * @return true if packet was handled successfully, false if error
+     */
+    public boolean process_ROUTE_DELTA(char sender, PacketView pkt) {
+        if (sender == local_name) {
+            // Packet loopback - ignored
+            return true;
+        }
+        PacketCodec.RouteDeltaReader rd = PacketCodec.get().route_delta;
+        try {
+            rd.wrap(pkt.buffer());
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "PKT_ROUTE_DELTA(" + sender + "): ERROR - " + e.getMessage() + "\n");
+            return false;
+        }
+        Log(Log.Level.DEBUG, () -> "PKT_ROUTE_DELTA(" + sender + "," + rd + ")\n");
 
-            Neighbour pt = neig.locate_neig(dp.getAddress().getHostAddress(), dp.getPort());
-            if (pt == null) {
-                Log("\nERROR - Invalid sender (" + dp.getAddress().getHostAddress() + " ; " + dp.getPort() + "), it is not a neighbor\n");
-                return false;
+        Neighbour pt = neig.locate_neig(pkt.source());
+        if (pt == null) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender (" + pkt.ip() + " ; " + pkt.port() + "), it is not a neighbor\n");
+            return false;
+        }
+        if (pt.Name() != sender) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender name (" + sender + "), different from the neigbour table\n");
+            return false;
+        }
+
+        Entry[] old_vec = pt.Vec();
+        Reassembly ra = reassembly.get(sender);
+        if ((ra != null) && (ra.session != pt.session)) {
+            ra = null;      // Neighbour replaced by a new HELLO
+        }
+        boolean next_frag = (ra != null) && rd.fragmented() && (ra.seq == rd.seq());
+        if (!next_frag) {
+            // First packet of an update; the update being received, if any,
+            //   is abandoned
+            reassembly.remove(sender);
+            ra = null;
+            int gap = rd.seq() - pt.route_seq;
+            if (pt.route_seq_valid && (gap <= 0)) {
+                return true;    // Old or duplicated packet - ignored
             }
-            if (pt.Name() != sender) {
-                Log("\nERROR - Invalid sender name (" + sender + "), different from the neigbour table\n");
-                return false;
+            if (!rd.full() && (!pt.route_seq_valid || (gap != 1) || (old_vec == null))) {
+                // Missing baseline - ask for the full vector
+                Log(Log.Level.DEBUG, () -> "ROUTE_DELTA gap from " + sender + "\n");
+                try {
+                    pt.send_packet(ds, PacketCodec.get().encode_ROUTE_NACK(
+                            local_name, pt.route_seq + 1));
+                } catch (IOException e) {
+                    Log(Log.Level.WARN, "Error sending ROUTE_NACK: " + e + "\n");
+                }
+                if (old_vec != null) {
+                    // The neighbour is alive: the vector is kept until the
+                    //   full one arrives
+                    try {
+                        pt.update_vec(old_vec, rd.TTL(), timers.clock().nanos());
+                    } catch (Exception e) {
+                        Log(Log.Level.WARN, "ERROR - Invalid neighbour update\n");
+                    }
+                }
+                return true;
             }
-            
-            // Update Router vector
-            Log("Routing.process_ROUTE not implemented: ROUTE vector not stored\n");
-            
-            // COMPLETE in STEP 1 an STEP 6
-            // STEP 1:
-            //   Put here the code to store the vector received in the neighbour object associated
-            pt.update_vec(vec, TTL);
-            
-            
-            
-            // STEP 6:
-            //   Call 'network_changed' if the vector has changed!
-            //   Use the code provided - there are functions that compare Entry array vectors ...
-            //   if (win.is_sendIfChanges() /*"Send if change" is selected*/) { ... }
-            
-            //equal_Entry_vec();
-            
-            if(win.is_sendIfChanges()){
-                if(Entry.equal_Entry_vec(vec,pt.vec)){
-                    network_changed(true);
-                }            
+            if (rd.fragmented()) {
+                ra = new Reassembly();
+                ra.session = pt.session;
+                ra.seq = rd.seq();
+                ra.frags = rd.frags();
+                ra.full = rd.full();
+                reassembly.put(sender, ra);
             }
-
-            return true;
-            
-        } catch (IOException e) {
-            Log("\nERROR - Packet too short\n");
+        } else if ((ra.frags != rd.frags()) || (ra.full != rd.full())) {
+            Log(Log.Level.WARN, "PKT_ROUTE_DELTA(" + sender + "): ERROR - Inconsistent fragment\n");
             return false;
+        } else if (ra.received.get(rd.frag())) {
+            return true;    // Duplicated fragment - ignored
+        }
+        // Store the vector; a new vector is only created if it changed. 
+        //   Each fragment is applied when it arrives
+        Entry[] vec = rd.apply((old_vec == null) ? new Entry[0] : old_vec);
+        boolean complete = true;
+        if (ra != null) {
+            ra.received.set(rd.frag());
+            if (ra.full) {
+                for (int i = 0; i < rd.count(); i++) {
+                    ra.seen.add(rd.dest(i));
+                }
+            }
+            complete = (ra.received.cardinality() == ra.frags);
+            if (complete) {
+                reassembly.remove(sender);
+                if (ra.full) {
+                    vec = retain(vec, ra.seen);
+                }
+            }
+        }
+        try {
+            pt.update_vec(vec, rd.TTL(), timers.clock().nanos());
         } catch (Exception e) {
-            Log("\nERROR - Invalid neighbour update\n");
+            Log(Log.Level.WARN, "ERROR - Invalid neighbour update\n");
+            return false;
+        }
+        if (complete) {
+            // The sequence number only advances with complete updates
+            pt.route_seq = rd.seq();
+            pt.route_seq_valid = true;
+        }
+        track_vec_TTL(pt);
+        if (vec != old_vec) {
+            network_changed(false);
+        }
+        return true;
+    }
+
+    /**
+     * Remove from a vector the destinations not in a set
+     *
+     * @param vec vector
+     * @param keep destinations kept
+     * @return the resulting vector; vec itself if nothing was removed
+     */
+    private static Entry[] retain(Entry[] vec, Set<Character> keep) {
+        int n = 0;
+        for (Entry e : vec) {
+            if (keep.contains(e.dest)) {
+                n++;
+            }
+        }
+        if (n == vec.length) {
+            return vec;
+        }
+        Entry[] res = new Entry[n];
+        int i = 0;
+        for (Entry e : vec) {
+            if (keep.contains(e.dest)) {
+                res[i++] = e;
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Handle a ROUTE_NACK packet: the full vector is sent to the sender
+     *
+     * @param sender the sender address
+     * @param pkt packet view, positioned after the header
+     * @return true if packet was handled successfully, false if error
+     */
+    public boolean process_ROUTE_NACK(char sender, PacketView pkt) {
+        ByteBuffer buf = pkt.buffer();
+        if (buf.remaining() != 4) {
+            Log(Log.Level.WARN, "PKT_ROUTE_NACK(" + sender + "): ERROR - Invalid length\n");
             return false;
         }
+        int seq = buf.getInt();
+        Log(Log.Level.DEBUG, () -> "PKT_ROUTE_NACK(" + sender + ",seq=" + seq + ")\n");
+        Neighbour pt = neig.locate_neig(pkt.source());
+        if ((pt == null) || (pt.Name() != sender)) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender (" + sender + "), it is not a neighbor\n");
+            return false;
+        }
+        AnnounceState st = announced.get(sender);
+        if (st != null) {
+            st.full_needed = true;
+        }
+        RoutingTable tab = this.tab;
+        if ((tab != null) && tab.is_valid()) {
+            send_local_ROUTE_DELTA_to_neighbour(pt, prepare_vec_for_neighbour(tab, pt));
+        }
+        return true;
+    }
+
+    /* ------------------------------------ */
+    // Link state
+
+    /**
+     * Update the link state: originate a new local LSA if the links changed
+     * (or always, if refresh), send the database to new neighbours, and
+     * recalculate the routes; runs on the control executor
+     *
+     * @param refresh if true, the local LSA is originated even without changes
+     */
+    private void ls_update(boolean refresh) {
+        if (node == null)
+            return;     // Stopped
+        LinkState.Lsa own = ls.originate(neig.local_vec(false), period + TTL_ADD, refresh);
+        if (own != null) {
+            flood_LSA(own, null);
+        }
+        // Database synchronization with the new neighbours
+        Set<Character> names = neig_names();
+        for (Neighbour pt : neig.values()) {
+            if (pt.is_valid() && !ls_synced.contains(pt.Name())) {
+                for (LinkState.Lsa lsa : ls.lsas()) {
+                    send_LSA(pt, lsa);
+                }
+            }
+        }
+        ls_synced.clear();
+        ls_synced.addAll(names);
+        ls.expire();
+        apply_ls_routes(ls.spf());
+    }
+
+    /**
+     * Update the routing table with the routes calculated by the link state
+     *
+     * @param changed destinations whose route changed
+     */
+    private void apply_ls_routes(Set<Character> changed) {
+        if (changed.isEmpty())
+            return;
+        RoutingTable newtab = tab.copy();
+        for (char dest : changed) {
+            RouteEntry r = ls.route(dest);
+            if (r != null) {
+                newtab.add_route(r);
+            } else {
+                newtab.delete_routeEntry(newtab.get_RouteEntry(dest));
+            }
+        }
+        publish(newtab);
+        Log(Log.Level.DEBUG, () -> "Routing table changed (SPF): " + changed + "\n");
+        table_changed();
     }
 
     /**
-     * Test if a path is available through a Neighbour
+     * Send an LSA to one neighbour
      *
      * @param n Neighbour reference
-     * @param dest destination address
-     * @return true if available, false otherwise
+     * @param lsa link state advertisement
+     * @return true if successful, false otherwise
      */
-    private boolean is_path_available(Neighbour n, char dest) {
-        if (!n.vec_valid()) {
+    private boolean send_LSA(Neighbour n, LinkState.Lsa lsa) {
+        try {
+            n.send_packet(ds, PacketCodec.get().encode_LSA(local_name, lsa));
+            node.ROUTE_snt.increment();
+            return true;
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "Error sending LSA: " + e + "\n");
             return false;
         }
+    }
 
-        for (Entry Vec : n.Vec()) {
-            if (Vec.dest == dest) {
-                return Vec.dist < Router.MAX_DISTANCE;
+    /**
+     * Flood an LSA to all the neighbours, except one
+     *
+     * @param lsa link state advertisement
+     * @param exc Neighbour to exclude, or null
+     */
+    private void flood_LSA(LinkState.Lsa lsa, Neighbour exc) {
+        Log(Log.Level.DEBUG, () -> "flood_LSA(" + lsa.origin + ",seq=" + lsa.seq + ")\n");
+        for (Neighbour pt : neig.values()) {
+            if (pt.is_valid() && (pt != exc)) {
+                send_LSA(pt, lsa);
             }
         }
-        return false;
     }
 
     /**
-     * Handle the end of the holddown of one RouteEntry destination
+     * Unmarshall an LSA packet, install it in the link state database, and
+     * flood it if it is new
      *
-     * @param re the RouteEntry that ended the hold down interval
-     * @return true if the timer should be kept active, false otherwise
+     * @param sender the sender address
+     * @param pkt packet view, positioned after the header
+     * @return true if packet was handled successfully, false if error
      */
-    public synchronized boolean handle_holddown_timeout(RouteEntry re) {
-        if (!tab.is_valid())
+    public boolean process_LSA(char sender, PacketView pkt) {
+        if (sender == local_name) {
+            // Packet loopback - ignored
+            return true;
+        }
+        if (mode != Mode.LINK_STATE) {
+            Log(Log.Level.WARN, "PKT_LSA(" + sender + ") ignored: link state is not active\n");
             return false;
+        }
+        PacketCodec.LsaReader rd = PacketCodec.get().lsa;
+        try {
+            rd.wrap(pkt.buffer());
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "PKT_LSA(" + sender + "): ERROR - " + e.getMessage() + "\n");
+            return false;
+        }
+        Log(Log.Level.DEBUG, () -> "PKT_LSA(" + sender + "," + rd + ")\n");
 
-        // COMPLETE IN STEP 7
-        // Place here the code to handle the end of a hold down state from route re
-        // Call network_changed if a new route is discovered
-        
-        tab.delete_routeEntry(re);
-        network_changed(true);
-        
+        Neighbour pt = neig.locate_neig(pkt.source());
+        if ((pt == null) || (pt.Name() != sender)) {
+            Log(Log.Level.WARN, "ERROR - Invalid sender (" + sender + "), it is not a neighbor\n");
+            return false;
+        }
+        switch (ls.install(rd.origin(), rd.seq(), rd.to_vec(), rd.TTL())) {
+            case NEWER:
+                if (rd.origin() == local_name) {
+                    // Copy from before a restart - originate a newer one
+                    flood_LSA(ls.originate(neig.local_vec(false), period + TTL_ADD, true), null);
+                } else {
+                    flood_LSA(ls.get(rd.origin()), pt);
+                    recompute.request(false);
+                }
+                break;
+            case OLDER:
+                // The neighbour has an old copy - send the current one
+                LinkState.Lsa cur = ls.get(rd.origin());
+                if (cur != null)
+                    send_LSA(pt, cur);
+                break;
+            default:
+                break;
+        }
         return true;
     }
 
     /**
-     * Calculate the Routing table from area update
+     * Return the names of the current neighbours
+     * @return set with the names
+     */
+    private Set<Character> neig_names() {
+        Set<Character> names = new HashSet<>();
+        for (Neighbour pt : neig.values()) {
+            names.add(pt.Name());
+        }
+        return names;
+    }
+
+    /**
+     * Handle the end of the holddown of one RouteEntry destination; called
+     * from the timer thread, it only posts the work to the control executor
      *
-     * @return true if the Routing table was modified, false otherwise
+     * @param re the RouteEntry that ended the hold down interval
      */
-    private synchronized boolean update_routing_table() {
-        RoutingTable baktab = tab;
-        tab = new RoutingTable();
+    public void handle_holddown_timeout(RouteEntry re) {
+        try {
+            control.execute(() -> holddown_timeout(re));
+        } catch (RejectedExecutionException e) {
+            // Stopping
+        }
+    }
 
-        // Add local node
-        tab.add_route(new RouteEntry(local_name, ' ', 0, win));
+    /**
+     * Handle the end of the holddown of one RouteEntry destination; runs on
+     * the control executor
+     *
+     * @param re the RouteEntry that ended the hold down interval
+     */
+    private void holddown_timeout(RouteEntry re) {
+        if ((node == null) || !tab.is_valid())
+            return;
+        RouteEntry cur = tab.get_RouteEntry(re.dest);
+        if ((cur != re) || !cur.is_holddown_expired())
+            return;     // Replaced, stopped or restarted meanwhile
+        // Remove the hold down entry from a copy of the table, leaving the
+        //   published entry unchanged; the new route is looked for in the 
+        //   next recalculation
+        RoutingTable newtab = tab.copy();
+        newtab.delete_routeEntry(cur);
+        publish(newtab);
+        table_changed();
+        fdist.remove(re.dest);
+        forced.add(re.dest);
+        recompute.request(false);
+    }
 
-        Log("Routing.update_routing_table not implemented\n");
-        // Implement here the distance vector algorithm:            
-        // STEP 2:
-        //      Implement the basic DV algorithm
-        // Percorrer todos os vizinhos
-        for(Neighbour n: neig.values()){
-            for(Entry e: n.vec){
-                if(n.is_valid() && n.vec_valid()){
-                    Entry last_entry = tab.get_RouteEntry(e.dest);
-                    if(last_entry.dist>e.dist || !(is_path_available(n,e.dest))){
-                        RouteEntry Re = new RouteEntry(e.dest, tab.nextHop(e.dest),e.dist,win);
-                        tab.add_route(Re);
-                    }
-                    
-                }
-                
+    /**
+     * Calculate the Routing table from area update, recalculating only the
+     * destinations affected by changes in the neighbours or their vectors;
+     * runs on the control executor
+     *
+     * @return list with the RouteEntry objects modified; unreachable 
+     *      destinations are reported with distance RouterNode.MAX_DISTANCE
+     */
+    private List<RouteEntry> update_routing_table() {
+        Set<Character> affected = dv.sync(neig.values());
+        affected.addAll(forced);
+        forced.clear();
+        return recalculate(affected);
+    }
+
+    /**
+     * Recalculate the routes to a set of destinations and publish the new
+     * routing table if any route changed
+     *
+     * @param affected destinations to recalculate
+     * @return list with the RouteEntry objects modified
+     */
+    private List<RouteEntry> recalculate(Set<Character> affected) {
+        List<RouteEntry> changed = new ArrayList<>();
+        if (affected.isEmpty())
+            return changed;
+        RoutingTable newtab = tab.copy();
+        for (char dest : affected) {
+            if (dest == local_name)
+                continue;
+            RouteEntry cur = newtab.get_RouteEntry(dest);
+            if ((cur != null) && cur.is_holddown())
+                continue;   // Waits for the end of hold down
+            if (mode == Mode.FEASIBLE_SUCCESSOR) {
+                RouteEntry re = recalculate_feasible(newtab, dest, cur);
+                if (re != null)
+                    changed.add(re);
+                continue;
             }
-        }
-        // Já existe? Se sim a distância nova é menor que a que já tenho?
-        // Percorrer todas as entries(destinos) dos vizinhos e sacar a distância. Se for o melhor caminho (mais curto) atualizo a tabela.
-        
-        
-        // STEP 7:
-        //      Implement the hold down method, with the detection of hold down conditions
-        //          and the modification to the RouteEntry, to count the hold down time
-        //      This step is the toughest: You need to keep the RouteEntries in 
-        //          holddown state while the new table is being created
-        //      
-        
-        // Update the Routing table in the GUI 
-        update_routing_window();
-        return !tab.equal_RoutingTable(baktab);
-    }
-
-    /**
-     * Display the Routing table in the GUI
-     */
-    public void update_routing_window() {
-        Log2("update_routing_window\n");
-        // update window
-        Iterator<RouteEntry> rit = tab.iterator();
-        RouteEntry r;
-        for (int i = 0; i < tableObj.getRowCount(); i++) {
-            if ((rit!=null) && rit.hasNext()) {
-                r = rit.next();
-                Log2("(" + r.dest + " : " + r.next_hop + " : " + r.dist + " : " + r.holddown_ending_time() + ")");
-                tableObj.setValueAt("" + r.dest, i, 0);
-                tableObj.setValueAt("" + r.next_hop, i, 1);
-                if (r.is_holddown()) {
-                    tableObj.setValueAt("HOLD", i, 2);
-                    tableObj.setValueAt("" + r.holddown_ending_time(), i, 3);                
-                } else {
-                    tableObj.setValueAt("" + r.dist, i, 2);
-                    tableObj.setValueAt("", i, 3);              
-                }
+            RouteEntry best = dv.best_route(dest, cur);
+            if ((best == null) ? (cur == null)
+                    : (best.equals_to(cur) && best.same_hops(cur)))
+                continue;   // Not modified
+            if (holddown && (cur != null) && ((best == null) || (best.dist > cur.dist))) {
+                // Distance increased - start hold down
+                RouteEntry hd = new RouteEntry(dest, ' ', RouterNode.MAX_DISTANCE, node);
+                hd.start_holddown(holddown_time, this);
+                newtab.add_route(hd);
+                changed.add(hd);
+            } else if (best == null) {
+                newtab.delete_routeEntry(cur);
+                changed.add(new RouteEntry(dest, ' ', RouterNode.MAX_DISTANCE, node));
             } else {
-                tableObj.setValueAt("", i, 0);
-                tableObj.setValueAt("", i, 1);
-                tableObj.setValueAt("", i, 2);
-                tableObj.setValueAt("", i, 3);
+                newtab.add_route(best);
+                changed.add(best);
             }
         }
+        if (!changed.isEmpty()) {
+            publish(newtab);
+            Log(Log.Level.DEBUG, () -> "Routing table changed: " + changed + "\n");
+            // Update the Routing table in the GUI 
+            table_changed();
+        }
+        return changed;
     }
 
+    /**
+     * Recalculate the route to one destination using only feasible
+     * successors; if the current next hop fails, the best feasible successor
+     * replaces it at once. When there are routes but none is feasible, the
+     * destination holds down (if active), or is announced unreachable until
+     * the next periodic ROUTE, and then the feasible distance is reset
+     *
+     * @param newtab table being built
+     * @param dest destination
+     * @param cur current route, or null
+     * @return the modified RouteEntry, or null if not modified
+     */
+    private RouteEntry recalculate_feasible(RoutingTable newtab, char dest, RouteEntry cur) {
+        int fd = fdist.getOrDefault(dest, Integer.MAX_VALUE);
+        RouteEntry best = dv.feasible_route(dest, cur, fd);
+        if (best != null) {
+            active.remove(dest);
+            fdist.put(dest, Math.min(fd, best.dist));
+            if (best.equals_to(cur) && best.same_hops(cur))
+                return null;   // Not modified
+            newtab.add_route(best);
+            return best;
+        }
+        if (dv.best_route(dest, cur) == null) {
+            // No route at all - nothing can loop
+            fdist.remove(dest);
+            active.remove(dest);
+        } else if (holddown) {
+            // Wait for the end of hold down, then reset the feasible distance
+            RouteEntry hd = new RouteEntry(dest, ' ', RouterNode.MAX_DISTANCE, node);
+            hd.start_holddown(holddown_time, this);
+            newtab.add_route(hd);
+            return hd;
+        } else if (active.add(dest)) {
+            Log(Log.Level.DEBUG, () -> "No feasible successor to " + dest + "\n");
+        }
+        if (cur == null)
+            return null;
+        newtab.delete_routeEntry(cur);
+        return new RouteEntry(dest, ' ', RouterNode.MAX_DISTANCE, node);
+    }
 
-    /* ------------------------------------ */
-    // Announce timer
+    /**
+     * Reset the feasible distance of the destinations without feasible
+     * successors, after they were announced unreachable
+     */
+    private void release_active() {
+        for (char dest : active) {
+            fdist.remove(dest);
+            forced.add(dest);
+        }
+        active.clear();
+    }
 
     /**
-     * Run the timer responsible for sending periodic ROUTE packets to routers
+     * Publish a new routing table snapshot
+     *
+     * @param newtab the new table; it becomes read-only
      */
-    private void start_announce_timer() {       
-        
-        // STEP 4:
+    private void publish(RoutingTable newtab) {
+        tab = newtab.freeze();
+    }
 
-        TimerTask task = new TimerTask() {
-            public void run() {
-                send_local_ROUTE();
-                update_routing_table();
-            }
-        };
-        Timer timer = new Timer();
-        int delay = 0;
-        timer.schedule(task, delay,period*1000);
+    /**
+     * Return the current routing table snapshot; it must not be modified
+     *
+     * @return the routing table
+     */
+    public RoutingTable table() {
+        return tab;
     }
 
     /**
-     * Stop the timer responsible for sending periodic distance packets to
-     * neighbours
+     * Report the current routing table to the listener
      */
-    private void stop_announce_timer() {
-        if (timer_announce != null) {
-            timer_announce.stop();
-            timer_announce = null;
-        }
+    private void table_changed() {
+        Log(Log.Level.TRACE, "table_changed\n");
+        listener.routing_table_changed(table());
     }
 
+
+    /* ------------------------------------ */
+    // Announce timer
+
     /**
-     * Restart the timer responsible for sending periodic distance packets to
-     * neighbours
+     * Periodic announcement; runs on the control executor, called by the
+     * announce scheduler
      */
-    private void reset_announce_timer() {
-        if ((timer_announce != null) && timer_announce.isRunning()) {
-            stop_announce_timer();
+    private void announce() {
+        if (node == null)
+            return;     // Stopped
+        if (mode == Mode.LINK_STATE) {
+            ls_update(true);
+        } else {
+            send_local_ROUTE();
+            release_active();
+            update_routing_table();
         }
-        start_announce_timer();
     }
 
     
@@ -524,50 +1334,73 @@ public class Routing {
      * @return the address of the next hop, or ' ' if not found.
      */
     public char next_Hop(char dest) {
-        RouteEntry nxt = tab.get_RouteEntry(dest);
-        if (nxt == null) {
-            return ' ';
-        }
-        return nxt.next_hop;
+        return tab.nextHop(dest);
+    }
+
+    /**
+     * returns next hop to reach destination for a flow; flows are spread
+     * among the equal cost next hops, and each flow keeps its next hop
+     *
+     * @param src source of the flow
+     * @param dest destination address
+     * @return the address of the next hop, or ' ' if not found.
+     */
+    public char next_Hop(char src, char dest) {
+        return tab.nextHop(src, dest);
     }
 
     /**
      * send a DATA packet using the Routing table and the neighbor information
      *
      * @param dest destination address
-     * @param dp datagram packet object
+     * @param buf buffer with the packet
      */
-    public void send_data_packet(char dest, DatagramPacket dp) {
-        if (win.is_local_name(dest)) {
+    public void send_data_packet(char dest, ByteBuffer buf) {
+        send_data_packet(local_name, dest, buf);
+    }
+
+    /**
+     * send a DATA packet using the Routing table and the neighbor information
+     *
+     * @param src source of the flow
+     * @param dest destination address
+     * @param buf buffer with the packet
+     */
+    private void send_data_packet(char src, char dest, ByteBuffer buf) {
+        if (node.is_local_name(dest)) {
             // Send to local node
             try {
-                dp.setAddress(InetAddress.getLocalHost());
-                dp.setPort(ds.getLocalPort());
-                ds.send(dp);
-                win.DATA_snt++;
-            } catch (UnknownHostException e) {
-                Log("Error sending packet to himself: " + e + "\n");
+                if (local_addr == null) {
+                    local_addr = ds.local_address();
+                }
+                ds.send(buf, local_addr);
+                node.DATA_snt.increment();
             } catch (IOException e) {
-                Log("Error sending packet to himself: " + e + "\n");
+                Log(Log.Level.WARN, "Error sending packet to himself: " + e + "\n");
             }
 
         } else { // Send to Neighbour Router
-            char prox = next_Hop(dest);
+            char prox = next_Hop(src, dest);
             if (prox == ' ') {
-                Log("No route to destination: packet discarded\n");
+                Log(Log.Level.WARN, "No route to destination: packet discarded\n");
             } else {
                 // Lookup Neighbour
                 Neighbour pt = neig.locate_neig(prox);
                 if (pt == null) {
-                    Log("Invalid neighbour (" + prox
+                    Log(Log.Level.WARN, "Invalid neighbour (" + prox
                             + ") in routing table: packet discarder\n");
                     return;
                 }
+                if ((buf.get(0) == RouterNode.PKT_DATA_WIDE) && !pt.has_cap(RouterNode.CAP_WIDE_ID)) {
+                    Log(Log.Level.WARN, "Neighbour " + NodeId.str(prox)
+                            + " does not support wide addresses: packet discarded\n");
+                    return;
+                }
                 try {
-                    pt.send_packet(ds, dp);
-                    win.DATA_snt++;
+                    pt.send_packet(ds, buf);
+                    node.DATA_snt.increment();
                 } catch (IOException e) {
-                    Log("Error sending DATA packet: " + e + "\n");
+                    Log(Log.Level.WARN, "Error sending DATA packet: " + e + "\n");
                 }
             }
         }
@@ -581,27 +1414,12 @@ public class Routing {
      * @param seq sequence number
      * @param msg message contents
      * @param path path already transverse
-     * @return datagram packet to send
+     * @return buffer with the packet, owned by the calling thread's codec
      */
-    public DatagramPacket make_data_packet(char sender, char dest,
+    public ByteBuffer make_data_packet(char sender, char dest,
             int seq, String msg, String path) {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(os);
-        try {
-            dos.writeByte(Router.PKT_DATA);
-            dos.writeChar(sender);
-            dos.writeChar(dest);
-            dos.writeInt(seq);
-            dos.writeShort(msg.length());
-            dos.writeBytes(msg);
-            dos.writeByte(path.length() + 1);
-            dos.writeBytes(path + win.local_name());
-        } catch (IOException e) {
-            Log("Error encoding data packet: " + e + "\n");
-            return null;
-        }
-        byte[] buffer = os.toByteArray();
-        return new DatagramPacket(buffer, buffer.length);
+        return PacketCodec.get().encode_DATA(sender, dest, seq, msg, path, 
+                node.local_name());
     }
 
     /**
@@ -615,89 +1433,113 @@ public class Routing {
      */
     public void send_data_packet(char sender, char dest, int seq, String msg,
             String path) {
-        if (!Character.isUpperCase(sender)) {
+        if (!NodeId.is_valid(sender)) {
             Log("Invalid sender '" + sender + "'\n");
             return;
         }
-        if (!Character.isUpperCase(dest)) {
+        if (!NodeId.is_valid(dest)) {
             Log("Invalid destination '" + dest + "'\n");
             return;
         }
-        DatagramPacket dp = make_data_packet(sender, dest, seq, msg, path);
-        if (dp != null) {
-            send_data_packet(dest, dp);
-        }
+        send_data_packet(sender, dest, make_data_packet(sender, dest, seq, msg, path));
     }
 
     /**
      * unmarshals DATA packet e process it
      *
      * @param sender the sender of the packet
-     * @param dp datagram packet received
-     * @param ip IP of the sender
-     * @param dis vec input stream
+     * @param pkt packet view, positioned after the header
      * @return true if decoding was successful
      */
-    public boolean process_DATA(char sender, DatagramPacket dp,
-            String ip, DataInputStream dis) {
+    public boolean process_DATA(char sender, PacketView pkt) {
+        if (!NodeId.is_valid(sender)) {
+            Log(Log.Level.WARN, "PKT_DATA: Invalid sender '" + sender + "'\n");
+            return false;
+        }
+        PacketCodec.DataReader rd = PacketCodec.get().data;
         try {
-            Log("PKT_DATA");
-            if (!Character.isUpperCase(sender)) {
-                Log("Invalid sender '" + sender + "'\n");
-                return false;
-            }
-            // Read Dest
-            char dest = dis.readChar();
-            // Read seq
-            int seq = dis.readInt();
-            // Read message
-            int len_msg = dis.readShort();
-            if (len_msg > 255) {
-                Log(": message too long (" + len_msg + ">255)\n");
-                return false;
-            }
-            byte[] sbuf1 = new byte[len_msg];
-            int n = dis.read(sbuf1, 0, len_msg);
-            if (n != len_msg) {
-                Log(": Invalid message length\n");
-                return false;
-            }
-            String msg = new String(sbuf1, 0, n);
-            // Read path
-            int len_path = dis.readByte();
-            if (len_path > Router.MAX_PATH_LEN) {
-                Log(": path length too long (" + len_path + ">" + Router.MAX_PATH_LEN
-                        + ")\n");
-                return false;
-            }
-            byte[] sbuf2 = new byte[len_path];
-            n = dis.read(sbuf2, 0, len_path);
-            if (n != len_path) {
-                Log(": Invalid path length\n");
+            rd.wrap(pkt.buffer(), pkt.code() == RouterNode.PKT_DATA_WIDE);
+        } catch (IOException e) {
+            Log(Log.Level.WARN, "PKT_DATA: " + e.getMessage() + "\n");
+            return false;
+        }
+        if (!node.is_local_name(rd.dest())) {
+            // Transit packet - forwarded without decoding the payload
+            return forward_DATA(sender, rd, pkt.buffer());
+        }
+        // Arrived at destination
+        Log("PKT_DATA (" + NodeId.str(sender) + "-" + NodeId.str(rd.dest()) + "," + rd.seq()
+                + "):'" + rd.msg() + "':Path='" + NodeId.str(rd.path() + node.local_name()) + "'\n");
+        Log("DATA packet reached destination\n");
+        return true;
+    }
+
+    /**
+     * Forward a transit DATA packet: appends the local name to the path 
+     * inside the received buffer and sends the same buffer to the next hop
+     *
+     * @param sender the sender of the packet
+     * @param rd reader with the packet header, already validated
+     * @param buf packet buffer
+     * @return true if the packet was forwarded
+     */
+    private boolean forward_DATA(char sender, PacketCodec.DataReader rd, ByteBuffer buf) {
+        char dest = rd.dest();
+        int len_path = rd.path_len();
+        if (len_path >= RouterNode.MAX_PATH_LEN) {
+            Log(Log.Level.WARN, "PKT_DATA: path length too long (" + (len_path + 1) + ">" + RouterNode.MAX_PATH_LEN
+                    + ")\n");
+            return false;
+        }
+        // The flow is identified by the source (first name in the path)
+        char src = (len_path > 0) ? rd.path_name(0) : sender;
+        char prox = next_Hop(src, dest);
+        if (prox == ' ') {
+            Log(Log.Level.WARN, "No route to destination: packet discarded\n");
+            return false;
+        }
+        Neighbour pt = neig.locate_neig(prox);
+        if (pt == null) {
+            Log(Log.Level.WARN, "Invalid neighbour (" + prox
+                    + ") in routing table: packet discarder\n");
+            return false;
+        }
+        if (!rd.wide() && !NodeId.is_narrow(local_name)) {
+            // The local name does not fit in the path: use the wide format
+            buf = PacketCodec.get().encode_DATA(sender, dest, rd.seq(), rd.msg(),
+                    rd.path(), local_name);
+        } else {
+            int end = buf.limit();
+            int name_len = rd.wide() ? 2 : 1;
+            if (end + name_len > buf.capacity()) {
+                Log(Log.Level.WARN, "No room to add the local name to the path: packet discarded\n");
                 return false;
             }
-            String path = new String(sbuf2, 0, n);
-            Log(" (" + sender + "-" + dest + "," + seq + "):'" + msg + "':Path='" + path + win.local_name() + "'\n");
-            // Test Routing table
-            if (win.is_local_name(dest)) {
-                // Arrived at destination
-                Log("DATA packet reached destination\n");
-                return true;
+            // Append the local name to the path
+            buf.limit(end + name_len);
+            if (rd.wide()) {
+                buf.putChar(end, local_name);
             } else {
-                char prox = next_Hop(dest);
-                if (prox == ' ') {
-                    Log("No route to destination: packet discarded\n");
-                    return false;
-                } else {
-                    // Send packet to next hop
-                    send_data_packet(sender, dest, seq, msg, path);
-                    return true;
-                }
+                buf.put(end, (byte) local_name);
             }
+            buf.put(rd.path_len_pos(), (byte) (len_path + 1));
+            buf.position(0);
+        }
+        if ((buf.get(0) == RouterNode.PKT_DATA_WIDE) && !pt.has_cap(RouterNode.CAP_WIDE_ID)) {
+            Log(Log.Level.WARN, "Neighbour " + NodeId.str(prox)
+                    + " does not support wide addresses: packet discarded\n");
+            return false;
+        }
+        int seq = rd.seq();
+        Log(Log.Level.DEBUG, () -> "PKT_DATA (" + sender + "-" + dest + "," + seq + "): forwarded to " + prox + "\n");
+        try {
+            pt.send_packet(ds, buf);
+            node.DATA_snt.increment();
+            return true;
         } catch (IOException e) {
-            Log(" Error decoding data packet: " + e + "\n");
+            Log(Log.Level.WARN, "Error sending DATA packet: " + e + "\n");
+            return false;
         }
-        return false;
     }
 
     /**
@@ -710,15 +1552,36 @@ public class Routing {
      * @param s log string
      */
     public final void Log(String s) {
-        win.Log(s);
+        node.Log(s);
+    }
+
+    /**
+     * Output the string if the logging level is enabled
+     *
+     * @param level logging level
+     * @param s log string
+     */
+    public final void Log(Log.Level level, String s) {
+        node.Log(level, s);
+    }
+
+    /**
+     * Output the string if the logging level is enabled; the string is only
+     * built when the level is enabled
+     *
+     * @param level logging level
+     * @param s function that builds the log string
+     */
+    public final void Log(Log.Level level, Supplier<String> s) {
+        node.Log(level, s);
     }
 
     /**
-     * Auxiliary log function - when more detail is required remove the comments
+     * Auxiliary log function - writes debug level messages
      *
      * @param s log string
      */
     public final void Log2(String s) {
-        win.Log2(s);
+        node.Log2(s);
     }
 }
@@ -11,19 +11,54 @@
  */
 package router;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Iterator;
 
+/**
+ * Routing table stored in arrays sorted by destination address, with one
+ * slot per route; lookups use a binary search, so that they do not box
+ * addresses or walk iterators, and copies and comparisons only touch the
+ * routes in the table, whatever the range of the addresses.
+ *
+ * A table becomes a read-only snapshot after freeze(); changes are made on a
+ * copy(), which is then frozen and published.
+ */
 public final class RoutingTable {
-    /** Routing table list */
-    private final HashMap<Character,RouteEntry> rtab;
+    /** Initial array length */
+    private final static int INITIAL_LEN = 32;
+
+    /** Destination of each slot, in increasing order */
+    private char[] dests;
+    /** Route entry of each slot */
+    private RouteEntry[] entries;
+    /** Next hop of each slot */
+    private char[] next;
+    /** Distance of each slot */
+    private int[] dist;
+    /** Number of routes in the table; the slots used are 0 to count-1 */
+    private int count;
+    /** True if the table is a read-only snapshot */
+    private boolean frozen;
     
     /**
      * Constructor
      */
     public RoutingTable() {
-        rtab= new HashMap<>();
+        this(INITIAL_LEN);
+    }
+
+    /**
+     * Constructor - create an empty table
+     * @param len  initial array length
+     */
+    private RoutingTable(int len) {
+        dests= new char[len];
+        entries= new RouteEntry[len];
+        next= new char[len];
+        dist= new int[len];
+        count= 0;
     }
 
     /**
@@ -31,16 +66,78 @@ public final class RoutingTable {
      * @param src  Initial table 
      */
     public RoutingTable(RoutingTable src) {
-        rtab= new HashMap<>();
+        this();
         merge_table(src);
     }
+
+    /**
+     * Create a modifiable copy of the table; the RouteEntry objects are
+     * shared with this table
+     * @return new table
+     */
+    public RoutingTable copy() {
+        RoutingTable rt= new RoutingTable(Math.max(INITIAL_LEN, count + count / 4));
+        System.arraycopy(dests, 0, rt.dests, 0, count);
+        System.arraycopy(entries, 0, rt.entries, 0, count);
+        System.arraycopy(next, 0, rt.next, 0, count);
+        System.arraycopy(dist, 0, rt.dist, 0, count);
+        rt.count= count;
+        return rt;
+    }
+
+    /**
+     * Turn the table into a read-only snapshot
+     * @return this table
+     */
+    public RoutingTable freeze() {
+        frozen= true;
+        return this;
+    }
+
+    /**
+     * Test if the table is a read-only snapshot
+     * @return true if the table cannot be modified
+     */
+    public boolean is_frozen() {
+        return frozen;
+    }
+
+    /**
+     * Fail if the table is a read-only snapshot
+     */
+    private void check_modifiable() {
+        if (frozen)
+            throw new IllegalStateException("Routing table snapshot is read-only");
+    }
+
+    /**
+     * Find the slot of a destination
+     * @param dest destination address
+     * @return the slot, or (-(insertion slot) - 1) if there is no route
+     */
+    private int slot(char dest) {
+        return Arrays.binarySearch(dests, 0, count, dest);
+    }
+
+    /**
+     * Make sure the arrays can hold one more route
+     */
+    private void ensure_capacity() {
+        if (count < dests.length)
+            return;
+        int len= 2 * dests.length;
+        dests= Arrays.copyOf(dests, len);
+        entries= Arrays.copyOf(entries, len);
+        next= Arrays.copyOf(next, len);
+        dist= Arrays.copyOf(dist, len);
+    }
     
     /**
      * Check if the routing table is defined and initialized 
      * @return true if it is defined
      */
     public boolean is_valid() {
-        return (rtab!=null) && !rtab.isEmpty();
+        return (count > 0);
     }
     
     /**
@@ -48,22 +145,27 @@ public final class RoutingTable {
      * @return the number of entries in the routing table
      */
     public int size() {    
-        if (!is_valid())
-            return 0;
-        return rtab.size();
+        return count;
+    }
+    
+    /**
+     * Stops all hold down timers, without modifying the table
+     */
+    public void stop_holddown_timers() {
+        for (int i= 0; i<count; i++) {
+            if (entries[i].is_holddown())
+                entries[i].stop_holddown();
+        }
     }
     
     /**
      * Clears the routing table and stops all hold down timers
      */
     public void clear() {
-        if (rtab != null) {
-            for (RouteEntry re : rtab.values()) {
-                if (re.is_holddown())
-                    re.stop_holddown(false);
-            }
-            rtab.clear();
-        }
+        check_modifiable();
+        stop_holddown_timers();
+        Arrays.fill(entries, 0, count, null);
+        count= 0;
     }
     
     /**
@@ -71,8 +173,25 @@ public final class RoutingTable {
      * @param re RouteEntry object
      */
     public void add_route(RouteEntry re) {
-        if ((rtab != null) && (re!=null))
-            rtab.put(re.dest, re);
+        check_modifiable();
+        if (re == null)
+            return;
+        int i= slot(re.dest);
+        if (i < 0) {
+            // New destination - opens a slot in its place
+            i= -i - 1;
+            ensure_capacity();
+            int n= count - i;
+            System.arraycopy(dests, i, dests, i + 1, n);
+            System.arraycopy(entries, i, entries, i + 1, n);
+            System.arraycopy(next, i, next, i + 1, n);
+            System.arraycopy(dist, i, dist, i + 1, n);
+            dests[i]= re.dest;
+            count++;
+        }
+        entries[i]= re;
+        next[i]= re.next_hop;
+        dist[i]= re.dist;
     }
     
     /**
@@ -80,12 +199,14 @@ public final class RoutingTable {
      * @param rt  Routing table to merge
      */
     public void merge_table(RoutingTable rt) {
-        if ((rtab == null) || !rt.is_valid() || (rt == null))
+        check_modifiable();
+        if ((rt == null) || !rt.is_valid())
             return;
-        for (RouteEntry re: rt.rtab.values()) {
-            RouteEntry aux= rtab.get(re.dest);
+        for (int i= 0; i<rt.count; i++) {
+            RouteEntry re= rt.entries[i];
+            RouteEntry aux= get_RouteEntry(re.dest);
             if ((aux==null) || (re.dist < aux.dist))
-                rtab.put(re.dest, new RouteEntry(re));
+                add_route(new RouteEntry(re));
         }
     }
     
@@ -95,9 +216,8 @@ public final class RoutingTable {
      * @return RouteEntry object
      */
     public RouteEntry get_RouteEntry(char dest) {
-        if (!is_valid())
-            return null;
-        return rtab.get(dest);
+        int i= slot(dest);
+        return (i >= 0) ? entries[i] : null;
     }
     
     /**
@@ -107,7 +227,7 @@ public final class RoutingTable {
     public Collection<RouteEntry> get_routeset() {
         if (!is_valid())
             return null;
-        return rtab.values();
+        return new ArrayList<>(Arrays.asList(entries).subList(0, count));
     }
     
     /**
@@ -116,9 +236,18 @@ public final class RoutingTable {
      * @return  true if the object was removed, false otherwise
      */
     public boolean delete_routeEntry(RouteEntry re) {
-        if (rtab == null)
+        check_modifiable();
+        if ((re == null) || (get_RouteEntry(re.dest) != re))
             return false;
-        return rtab.remove(re.dest, re);
+        int i= slot(re.dest);
+        int n= count - i - 1;
+        System.arraycopy(dests, i + 1, dests, i, n);
+        System.arraycopy(entries, i + 1, entries, i, n);
+        System.arraycopy(next, i + 1, next, i, n);
+        System.arraycopy(dist, i + 1, dist, i, n);
+        count--;
+        entries[count]= null;
+        return true;
     }
     
     /**
@@ -128,13 +257,8 @@ public final class RoutingTable {
     public Entry[] get_Entry_vector() {
         if (!is_valid())
             return null;
-        Entry[] vec= new Entry[rtab.size()];
-        rtab.values().toArray(vec);
-/*        Iterator<RouteEntry> it= rtab.values().iterator();
-        for (int i= 0; (i<vec.length) && it.hasNext(); i++) {
-            RouteEntry re= it.next();
-            vec[i]= new Entry(re);
-        }*/
+        Entry[] vec= new Entry[count];
+        System.arraycopy(entries, 0, vec, 0, count);
         return vec;
     }   
     
@@ -144,10 +268,30 @@ public final class RoutingTable {
      * @return the next hop address
      */
     public char nextHop(char dest) {
+        int i= slot(dest);
+        return (i >= 0) ? next[i] : ' ';
+    }
+    
+    /**
+     * Returns the next hop address for a flow from src to dest; with equal
+     * cost routes, the flows are spread among the next hops
+     * @param src  source of the flow
+     * @param dest destination
+     * @return the next hop address, or ' ' if there is no route
+     */
+    public char nextHop(char src, char dest) {
         RouteEntry re= get_RouteEntry(dest);
-        if (re == null)
-            return ' ';
-        return re.next_hop;
+        return (re == null) ? ' ' : re.select_hop(src);
+    }
+    
+    /**
+     * Returns the distance to dest
+     * @param dest destination
+     * @return the distance, or -1 if there is no route
+     */
+    public int distance(char dest) {
+        int i= slot(dest);
+        return (i >= 0) ? dist[i] : -1;
     }
     
     /**
@@ -157,7 +301,7 @@ public final class RoutingTable {
     public Iterator<RouteEntry> iterator() {
         if (!is_valid())
             return null;
-        return rtab.values().iterator();
+        return get_routeset().iterator();
     }
     
     /**
@@ -168,17 +312,14 @@ public final class RoutingTable {
     public boolean equal_RoutingTable(RoutingTable rt) {
         if ((rt == null) || !rt.is_valid() || !is_valid() )
             return false;
-        HashMap<Character, RouteEntry> map= rt.rtab;
-        if (rtab.size() != map.size()) {
+        if (count != rt.count) {
             return false;
         }
-        Iterator<RouteEntry> it= rt.iterator();
-        while (it.hasNext()) {
-            RouteEntry re= it.next();
-            if (!re.equals_to(rtab.get(re.dest))) {
+        // Both tables are sorted by destination
+        for (int i= 0; i<count; i++) {
+            if ((dests[i] != rt.dests[i]) || (dist[i] != rt.dist[i]))
                 return false;
-            }                
-        }      
+        }
         return true;
     } 
     
@@ -187,11 +328,8 @@ public final class RoutingTable {
      * @param log Logging object
      */
     public void Log_routing_table(Log log) {
-        if (rtab==null) {
-            return;
-        }
-        for (RouteEntry re: rtab.values()) {
-            log.Log(re.toString()+"\n");
+        for (int i= 0; i<count; i++) {
+            log.Log(entries[i].toString()+"\n");
         }
     }
     
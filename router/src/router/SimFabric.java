@@ -0,0 +1,304 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * SimFabric.java
+ *
+ * In-memory datagram fabric and virtual clock of the simulator
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discrete event simulation kernel: a virtual clock, a queue of events
+ * ordered by time, and an in-memory datagram network between endpoints.
+ *
+ * Everything runs in the thread that calls run_until(): the control tasks
+ * of every router, the packet deliveries and the timing wheel, which is
+ * never started and only advances with the virtual clock. Time only moves
+ * between events, so a long scenario runs as fast as the routers process it.
+ *
+ * Each datagram is delivered after the latency plus a uniform random jitter,
+ * or lost with the configured probability. The CPU time used by each event
+ * is added to the endpoint that ran it.
+ */
+public class SimFabric implements TimingWheel.Clock {
+
+    /**
+     * Task scheduled at a virtual time
+     */
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long seq;
+        final Endpoint ep;
+        final Runnable task;
+
+        Event(long time, long seq, Endpoint ep, Runnable task) {
+            this.time = time;
+            this.seq = seq;
+            this.ep = ep;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time)
+                return Long.compare(time, o.time);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * Router attachment to the fabric: it is the router transport and its
+     * control executor
+     */
+    public final class Endpoint implements Transport, Executor {
+        /** Address of the endpoint */
+        private final InetSocketAddress addr;
+        /** Router that receives the packets, or null */
+        private RouterNode node;
+
+        /* Statistics counters */
+        public long packets_snt;
+        public long packets_rcv;
+        public long packets_lost;
+        public long bytes_snt;
+        public long events;
+        /** CPU time used by the events of the endpoint [ns] */
+        public long cpu;
+
+        private Endpoint(InetSocketAddress addr) {
+            this.addr = addr;
+        }
+
+        /**
+         * Set the router that receives the packets
+         * @param node router, or null
+         */
+        public void attach(RouterNode node) {
+            this.node = node;
+        }
+
+        @Override
+        public int send(ByteBuffer src, InetSocketAddress target) throws IOException {
+            int n = src.remaining();
+            packets_snt++;
+            bytes_snt += n;
+            Endpoint dst = endpoints.get(target);
+            if ((dst == null) || ((loss > 0) && (rnd.nextDouble() < loss))) {
+                packets_lost++;
+                src.position(src.limit());
+                return n;
+            }
+            // Copy the datagram, leaving room to forward DATA packets in place
+            ByteBuffer copy = ByteBuffer.allocate(n + PacketView.TAILROOM);
+            copy.put(src);
+            copy.flip();
+            long delay = latency + ((jitter > 0) ? (long) (jitter * rnd.nextDouble()) : 0);
+            post(dst, now + delay, () -> dst.deliver(copy, addr));
+            return n;
+        }
+
+        @Override
+        public InetSocketAddress local_address() {
+            return addr;
+        }
+
+        /**
+         * Run a control task of the router, at the current virtual time
+         * @param task task
+         */
+        @Override
+        public void execute(Runnable task) {
+            post(this, now, task);
+        }
+
+        /**
+         * Deliver a datagram to the router
+         * @param buf  datagram
+         * @param from source address
+         */
+        private void deliver(ByteBuffer buf, InetSocketAddress from) {
+            RouterNode n = node;
+            if ((n == null) || !n.is_running()) {
+                packets_lost++;
+                return;
+            }
+            packets_rcv++;
+            PacketView view = new PacketView();
+            if (view.wrap(buf, from))
+                n.process_packet(view);
+        }
+    }
+
+    /** Timing wheel tick [ns] */
+    private final long tick;
+    /** Timing wheel shared by all the routers */
+    private final TimingWheel timers;
+    /** Latency of each datagram [ns] */
+    private final long latency;
+    /** Maximum jitter added to the latency [ns] */
+    private final long jitter;
+    /** Probability of losing a datagram */
+    private double loss;
+    /** Random generator used for the jitter and losses */
+    private final Random rnd;
+    /** Log object for task errors */
+    private final Log log;
+    /** Endpoints by address */
+    private final HashMap<InetSocketAddress, Endpoint> endpoints = new HashMap<>();
+    /** Pending events */
+    private final PriorityQueue<Event> queue = new PriorityQueue<>();
+    /** CPU time source */
+    private final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    /** True if the thread CPU time is available */
+    private final boolean cpu_time;
+    /** Current virtual time [ns] */
+    private long now;
+    /** Sequence number of the last event, to keep the order of equal times */
+    private long seq;
+    /** Number of events run */
+    private long events;
+    /** Number of tasks that failed */
+    private long errors;
+
+    /**
+     * Constructor
+     *
+     * @param latency_ms latency of each datagram [ms]
+     * @param jitter_ms maximum random jitter added to the latency [ms]
+     * @param loss probability of losing a datagram (0 to 1)
+     * @param rnd random generator
+     * @param log Log object for task errors
+     */
+    public SimFabric(double latency_ms, double jitter_ms, double loss, Random rnd, Log log) {
+        this.latency = (long) (latency_ms * 1000000);
+        this.jitter = (long) (jitter_ms * 1000000);
+        this.loss = loss;
+        this.rnd = rnd;
+        this.log = log;
+        this.tick = TimeUnit.MILLISECONDS.toNanos(RouterNode.TIMER_TICK);
+        this.timers = new TimingWheel(this, RouterNode.TIMER_TICK, RouterNode.TIMER_SLOTS, log);
+        this.cpu_time = mx.isCurrentThreadCpuTimeSupported();
+    }
+
+    /**
+     * Return the virtual time
+     * @return time since the start [ns]
+     */
+    @Override
+    public long nanos() {
+        return now;
+    }
+
+    /**
+     * Change the probability of losing a datagram
+     * @param loss probability of losing a datagram (0 to 1)
+     */
+    public void set_loss(double loss) {
+        this.loss = loss;
+    }
+
+    /**
+     * Return the timing wheel shared by the routers
+     * @return the timing wheel
+     */
+    public TimingWheel timers() {
+        return timers;
+    }
+
+    /**
+     * Create an endpoint
+     * @param addr address of the endpoint
+     * @return the endpoint
+     */
+    public Endpoint add_endpoint(InetSocketAddress addr) {
+        Endpoint ep = new Endpoint(addr);
+        endpoints.put(addr, ep);
+        return ep;
+    }
+
+    /**
+     * Schedule a task
+     * @param ep endpoint charged with the CPU time, or null
+     * @param time virtual time [ns]
+     * @param task task to run
+     */
+    public void post(Endpoint ep, long time, Runnable task) {
+        queue.add(new Event(Math.max(time, now), ++seq, ep, task));
+    }
+
+    /**
+     * Run the simulation until a virtual time
+     * @param end virtual time [ns]
+     */
+    public void run_until(long end) {
+        while (now < end) {
+            long next_tick = Math.min(end, (now / tick + 1) * tick);
+            Event e;
+            while (((e = queue.peek()) != null) && (e.time <= next_tick)) {
+                queue.poll();
+                now = e.time;
+                run(e);
+            }
+            now = next_tick;
+            timers.advance(now);
+        }
+    }
+
+    /**
+     * Run one event, charging its CPU time to the endpoint
+     * @param e event
+     */
+    private void run(Event e) {
+        long t0 = cpu_nanos();
+        try {
+            e.task.run();
+        } catch (RuntimeException ex) {
+            errors++;
+            log.Log(Log.Level.WARN, "Simulation task failed: " + ex + "\n");
+        }
+        events++;
+        if (e.ep != null) {
+            e.ep.events++;
+            e.ep.cpu += cpu_nanos() - t0;
+        }
+    }
+
+    /**
+     * Return the CPU time of the simulation thread
+     * @return CPU time [ns], or the elapsed time if not available
+     */
+    public long cpu_nanos() {
+        return cpu_time ? mx.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Return the number of events run
+     * @return number of events
+     */
+    public long events() {
+        return events;
+    }
+
+    /**
+     * Return the number of tasks that failed
+     * @return number of failed tasks
+     */
+    public long errors() {
+        return errors;
+    }
+}
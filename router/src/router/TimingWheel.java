@@ -0,0 +1,305 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * TimingWheel.java
+ *
+ * Hashed timing wheel shared by all the router timers
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel: each timeout is placed in the bucket of the tick when
+ * it expires, with the number of wheel rounds still to wait. Scheduling and
+ * cancelling are O(1), and one thread runs all the timeouts, whatever their
+ * number. Timeouts never run early, and run at most one tick late.
+ *
+ * Tasks run on the wheel thread, and must be short; the router tasks only
+ * hand the work to the control executor.
+ *
+ * The time comes from a Clock. Without start(), no thread is created and the
+ * wheel only moves when advance() is called, e.g. with a virtual clock.
+ */
+public class TimingWheel {
+
+    /**
+     * Source of monotonic time
+     */
+    public interface Clock {
+        /**
+         * Return the current time
+         * @return time [ns]
+         */
+        long nanos();
+    }
+
+    /** Clock that follows System.nanoTime */
+    public final static Clock SYSTEM = System::nanoTime;
+
+    /* Timeout states */
+    private final static int PENDING = 0;
+    private final static int CANCELLED = 1;
+    private final static int EXPIRED = 2;
+
+    /**
+     * Handle of a scheduled task
+     */
+    public final class Timeout {
+        /** Task to run */
+        private final Runnable task;
+        /** Expiration time [ns] */
+        private final long deadline;
+        /** Wheel rounds to wait */
+        private long rounds;
+        /** Links in the bucket list */
+        private Timeout prev, next;
+        /** Bucket where the timeout is, or null */
+        private Bucket bucket;
+        /** PENDING, CANCELLED or EXPIRED */
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout; may be called from any thread
+         * @return true if cancelled, false if it already ran or was cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Test if the timeout was cancelled
+         * @return true if cancelled
+         */
+        public boolean is_cancelled() { return state.get() == CANCELLED; }
+
+        /**
+         * Test if the task already ran
+         * @return true if expired
+         */
+        public boolean is_expired() { return state.get() == EXPIRED; }
+
+        /**
+         * Return the time left until the expiration
+         * @param unit time unit
+         * @return time left, or 0 if it already expired
+         */
+        public long remaining(TimeUnit unit) {
+            return unit.convert(Math.max(0, deadline - clock.nanos()), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * List of timeouts of one wheel slot
+     */
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.prev = tail;
+            t.next = null;
+            if (tail == null)
+                head = t;
+            else
+                tail.next = t;
+            tail = t;
+        }
+
+        void remove(Timeout t) {
+            if (t.prev == null)
+                head = t.next;
+            else
+                t.prev.next = t.next;
+            if (t.next == null)
+                tail = t.prev;
+            else
+                t.next.prev = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+    }
+
+    /** Time source */
+    private final Clock clock;
+    /** Tick duration [ns] */
+    private final long tick;
+    /** Wheel slots; the number is a power of two */
+    private final Bucket[] wheel;
+    /** Number of slots - 1 */
+    private final int mask;
+    /** Time of tick 0 [ns] */
+    private final long start;
+    /** Next tick to process; only used by the thread that advances */
+    private long ticks;
+    /** Timeouts scheduled and not yet placed in the wheel */
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    /** Timeouts cancelled and not yet removed from the wheel */
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    /** Log object, or null */
+    private final Log log;
+    /** Wheel thread, or null if not started */
+    private Thread worker;
+    /** False after stop() */
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param clock time source
+     * @param tick_ms tick duration [ms]
+     * @param size minimum number of slots
+     * @param log Log object for task errors, or null
+     */
+    public TimingWheel(Clock clock, long tick_ms, int size, Log log) {
+        int n = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.clock = clock;
+        this.tick = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick_ms));
+        this.wheel = new Bucket[n];
+        for (int i = 0; i < n; i++)
+            wheel[i] = new Bucket();
+        this.mask = n - 1;
+        this.start = clock.nanos();
+        this.log = log;
+    }
+
+    /**
+     * Return the time source
+     * @return the clock
+     */
+    public Clock clock() {
+        return clock;
+    }
+
+    /**
+     * Start the wheel thread
+     * @param name thread name
+     */
+    public synchronized void start(String name) {
+        if (worker != null)
+            return;
+        running = true;
+        worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the wheel thread; the pending timeouts are discarded
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            LockSupport.unpark(worker);
+            worker = null;
+        }
+    }
+
+    /**
+     * Schedule a task; may be called from any thread
+     *
+     * @param task task to run
+     * @param delay delay
+     * @param unit delay time unit
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, clock.nanos() + unit.toNanos(Math.max(0, delay)));
+        pending.add(t);
+        return t;
+    }
+
+    /**
+     * Run all the ticks that ended until a time; only one thread may call it
+     *
+     * @param now current time [ns]
+     */
+    public void advance(long now) {
+        while ((ticks + 1) * tick <= now - start) {
+            transfer_pending();
+            remove_cancelled();
+            expire(wheel[(int) (ticks & mask)]);
+            ticks++;
+        }
+    }
+
+    /**
+     * Place the new timeouts in the wheel
+     */
+    private void transfer_pending() {
+        Timeout t;
+        while ((t = pending.poll()) != null) {
+            if (t.state.get() != PENDING)
+                continue;
+            long at = (t.deadline - start) / tick;
+            t.rounds = (at > ticks) ? (at - ticks) / wheel.length : 0;
+            wheel[(int) (Math.max(at, ticks) & mask)].add(t);
+        }
+    }
+
+    /**
+     * Remove the cancelled timeouts from the wheel
+     */
+    private void remove_cancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null)
+                t.bucket.remove(t);
+        }
+    }
+
+    /**
+     * Run the timeouts of a slot that end in this round
+     *
+     * @param b wheel slot
+     */
+    private void expire(Bucket b) {
+        Timeout t = b.head;
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.rounds <= 0) {
+                b.remove(t);
+                if (t.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        if (log != null)
+                            log.Log(Log.Level.WARN, "Timer task failed: " + e + "\n");
+                    }
+                }
+            } else {
+                t.rounds--;
+            }
+            t = next;
+        }
+    }
+
+    /**
+     * Wheel thread main function
+     */
+    private void run() {
+        while (running) {
+            long wait = start + (ticks + 1) * tick - clock.nanos();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            advance(clock.nanos());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * Transport.java
+ *
+ * Datagram transport used to send packets
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends datagrams to the neighbours: a UDP channel in a real router, or an
+ * in-memory fabric in the simulator
+ */
+public interface Transport {
+
+    /**
+     * Send a datagram, as DatagramChannel.send
+     * @param src     buffer with the datagram, between position and limit;
+     *                the position is moved to the limit if sent
+     * @param target  destination socket address
+     * @return number of bytes sent, or 0 if there was no space to send it
+     * @throws IOException Error sending packet
+     */
+    public int send(ByteBuffer src, InetSocketAddress target) throws IOException;
+
+    /**
+     * Return the address where the local router receives datagrams
+     * @return socket address
+     * @throws IOException if not known
+     */
+    public InetSocketAddress local_address() throws IOException;
+
+    /**
+     * Create a transport that sends through a UDP channel
+     * @param dc  datagram channel
+     * @return the transport
+     */
+    public static Transport udp(DatagramChannel dc) {
+        return new Transport() {
+            @Override
+            public int send(ByteBuffer src, InetSocketAddress target) throws IOException {
+                return dc.send(src, target);
+            }
+
+            @Override
+            public InetSocketAddress local_address() throws IOException {
+                // The channel is bound to the wildcard address
+                int port = ((InetSocketAddress) dc.getLocalAddress()).getPort();
+                return new InetSocketAddress(InetAddress.getLocalHost(), port);
+            }
+        };
+    }
+}
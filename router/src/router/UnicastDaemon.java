@@ -11,65 +11,110 @@
  */
 package router;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
- *
+ * Receive engine: waits on a Selector for the unicast channel and drains
+ * every pending datagram on each wakeup, reading each one into a pooled
+ * view and handing it to the PacketDispatcher
  * @author lflb2
  */
 public class UnicastDaemon extends Thread {
+    /** Size of the receive buffer */
+    public final static int MAX_DATAGRAM= 8096;
+    /** Time waited for a view when all are in use [ms] */
+    private final static int VIEW_WAIT= 100;
+
     volatile boolean keepRunning= true;
-    DatagramSocket ds;
-    Router router;
-    
+    DatagramChannel ds;
+    /** Log object */
+    Log log;
+    /** Dispatcher that processes the received packets */
+    PacketDispatcher dispatcher;
+    /** Selector used to wait for incoming datagrams */
+    private Selector selector;
+    /** View where the next datagram is received, or null */
+    private PacketView view;
+
     // Constructor
-    UnicastDaemon(Router router, DatagramSocket ds) {
-        this.router= router;
+    UnicastDaemon(Log log, PacketDispatcher dispatcher, 
+                    DatagramChannel ds) throws IOException {
+        this.log= log;
+        this.dispatcher= dispatcher;
         this.ds= ds;
+        this.selector= Selector.open();
+        ds.register(selector, SelectionKey.OP_READ);
     }
 
-    
+
     // Thread main function
     @Override
     public void run() {
-        byte [] buf= new byte[8096];
-        DatagramPacket dp= new DatagramPacket(buf, buf.length);
         try {
             while (keepRunning) {
-                try {
-                    ds.receive(dp);
-                    ByteArrayInputStream BAis= 
-                        new ByteArrayInputStream(buf, 0, dp.getLength());
-                    DataInputStream dis= new DataInputStream(BAis);
-                    System.out.println("Received packet ("+dp.getLength()+
-                        ") from " + dp.getAddress().getHostAddress() +
-                        ":" +dp.getPort());
-
-                    router.process_packet(dp, dis);
-                }
-                catch (SocketException se) {
-                    if (keepRunning) {
-                        router.Log("recv UDP SocketException : " + se + "\n");
-                    }
-                }
+                if ((view == null) && ((view= dispatcher.take(VIEW_WAIT)) == null))
+                    continue;   // All the views in use - the datagrams wait in the socket
+                if (selector.select() == 0)
+                    continue;
+                selector.selectedKeys().clear();
+                drain();
+            }
+        }
+        catch (ClosedChannelException e) {
+            if (keepRunning) {
+                log.Log("recv UDP channel closed : " + e + "\n");
             }
         }
         catch(IOException e) {
             if (keepRunning) {
-                router.Log("IO exception receiving data from socket : " + e);
+                log.Log("IO exception receiving data from socket : " + e);
+            }
+        }
+        finally {
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                // Ignored - the thread is ending
+            }
+        }
+    }
+
+    /**
+     * Receive and process all datagrams pending in the channel
+     * @throws IOException error reading from the channel
+     */
+    private void drain() throws IOException {
+        InetSocketAddress src;
+        while (keepRunning) {
+            if ((view == null) && ((view= dispatcher.take(0)) == null))
+                return;     // All the views in use - the datagrams wait in the socket
+            ByteBuffer buf= view.store();
+            // Keeps the TAILROOM free
+            buf.limit(MAX_DATAGRAM);
+            if ((src= (InetSocketAddress)ds.receive(buf)) == null)
+                break;
+            buf.flip();
+            if (view.wrap(buf, src)) {
+                // The dispatcher owns the view now
+                dispatcher.dispatch(view);
+                view= null;
+            } else {
+                log.Log(Log.Level.WARN, "Packet too short\n");
+                buf.clear();
             }
         }
     }
 
-    
     // Stop thread
     public void stopRunning() {
         keepRunning= false;
+        selector.wakeup();
     }
 }
-
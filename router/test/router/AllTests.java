@@ -0,0 +1,64 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * AllTests.java
+ *
+ * Runs all the tests
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+/**
+ * Runs all the tests, without a test framework:
+ *
+ *   javac -encoding UTF-8 -d out router/src/router/*.java router/test/router/*.java
+ *   java -cp out router.AllTests [-nosim]
+ *
+ * The exit status is 1 if a check failed. -nosim skips the simulator
+ * regression, which takes longer than the unit tests
+ */
+public class AllTests {
+
+    /**
+     * main function of the tests
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        boolean sim = !((args.length > 0) && args[0].equals("-nosim"));
+        try {
+            run("PacketCodec", PacketCodecTest::run);
+            run("TimingWheel", TimingWheelTest::run);
+            run("AnnounceScheduler", AnnounceSchedulerTest::run);
+            run("RoutingTable", RoutingTableTest::run);
+            run("RecomputeScheduler", RecomputeSchedulerTest::run);
+            run("LinkState", LinkStateTest::run);
+            run("Holddown", HolddownTest::run);
+            run("PacketDispatcher", PacketDispatcherTest::run);
+            if (sim)
+                run("RouterSim", RouterSimTest::run);
+        } catch (Exception e) {
+            System.err.println("Test aborted: " + e);
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.out.println(String.format("%d checks, %d failed", Check.checks(), Check.failures()));
+        System.exit((Check.failures() > 0) ? 1 : 0);
+    }
+
+    /**
+     * Run a group of tests
+     * @param name  group name
+     * @param test  tests to run
+     * @throws Exception if a test aborted
+     */
+    private static void run(String name, Check.Code test) throws Exception {
+        int f = Check.failures();
+        long t0 = System.nanoTime();
+        test.run();
+        System.out.println(String.format("%-20s %s (%.3f s)", name,
+                (Check.failures() == f) ? "ok" : "FAILED", (System.nanoTime() - t0) / 1e9));
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * AnnounceSchedulerTest.java
+ *
+ * Tests of the announcement scheduler
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the scheduler on the calling thread, with a timing wheel advanced
+ * by a manual clock
+ */
+final class AnnounceSchedulerTest {
+    /** Tick of the timing wheel [ms] */
+    private final static int TICK = 10;
+    /** Announcement period [ms] */
+    private final static int PERIOD = 1000;
+    /** Jitter, as a fraction of the period */
+    private final static double JITTER = 0.5;
+    /** Minimum spacing of triggered updates [ms] */
+    private final static int SPACING = 200;
+
+    /** Current time of the manual clock [ns] */
+    private long now;
+    private final TimingWheel wheel = new TimingWheel(() -> now, TICK, 64, null);
+    /** Times of the periodic announcements [ms] */
+    private final List<Long> periodic = new ArrayList<>();
+    /** Neighbours that received deferred updates */
+    private final List<Character> deferred = new ArrayList<>();
+    private final AnnounceScheduler sched = new AnnounceScheduler(Runnable::run, wheel,
+            PERIOD, JITTER, SPACING, new Random(1), () -> periodic.add(ms()),
+            n -> deferred.add(n.Name()));
+    /** Neighbour of the triggered updates */
+    private final Neighbour neig = new Neighbour('B', "127.0.0.1", 20001, 1, s -> { });
+
+    private AnnounceSchedulerTest() {
+    }
+
+    /**
+     * Return the time of the manual clock
+     * @return time [ms]
+     */
+    private long ms() {
+        return TimeUnit.NANOSECONDS.toMillis(now);
+    }
+
+    /**
+     * Move the clock tick by tick until a time
+     * @param ms  new time [ms]
+     */
+    private void advance_to(long ms) {
+        while (ms() < ms) {
+            now += TimeUnit.MILLISECONDS.toNanos(TICK);
+            wheel.advance(now);
+        }
+    }
+
+    /**
+     * The periodic announcements stay within the jitter of the period
+     */
+    private void test_periodic() {
+        sched.start();
+        advance_to(30 * PERIOD);
+        Check.is_true(periodic.size() >= 20, "periodic announcements sent (" + periodic.size() + ")");
+        Check.is_true(periodic.get(0) <= PERIOD * JITTER + TICK, "first announcement within the jitter");
+        long min = Long.MAX_VALUE, max = 0;
+        for (int i = 1; i < periodic.size(); i++) {
+            long d = periodic.get(i) - periodic.get(i - 1);
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+        Check.is_true(min >= PERIOD * (1 - JITTER), "shortest interval " + min + " ms");
+        Check.is_true(max <= PERIOD * (1 + JITTER) + TICK, "longest interval " + max + " ms");
+        Check.is_true(max - min > TICK, "intervals are not all equal");
+
+        // reset() restarts the period from now
+        long t = ms();
+        int n = periodic.size();
+        sched.reset();
+        advance_to(t + (long) (PERIOD * (1 - JITTER)) - TICK);
+        Check.equal(n, periodic.size(), "no announcement soon after reset");
+        advance_to(t + (long) (PERIOD * (1 + JITTER)) + TICK);
+        Check.is_true(periodic.size() > n, "announcement after reset");
+        Check.is_true(periodic.get(n) - t <= PERIOD * (1 + JITTER) + TICK,
+                "first announcement after reset within the period");
+    }
+
+    /**
+     * Triggered updates are spaced, and merged while deferred
+     */
+    private void test_trigger() {
+        Check.is_true(sched.trigger(neig), "first triggered update sent now");
+        long t = ms();
+        sched.sent(neig.Name());
+        advance_to(t + SPACING / 4);
+        Check.is_true(!sched.trigger(neig), "close triggered update deferred");
+        Check.is_true(!sched.trigger(neig), "second close triggered update deferred");
+        advance_to(t + SPACING - TICK);
+        Check.is_true(deferred.isEmpty(), "deferred update waits for the spacing");
+        advance_to(t + SPACING + TICK);
+        Check.equal(1, deferred.size(), "deferred updates merged into one");
+        Check.equal(neig.Name(), deferred.get(0), "deferred update to the neighbour");
+        Check.is_true(sched.trigger(neig), "triggered update after the spacing sent now");
+        Check.equal("Triggered updates:4 deferred:1 merged:1", sched.statistics(),
+                "trigger statistics");
+    }
+
+    /**
+     * stop() cancels the deferred and periodic announcements
+     */
+    private void test_stop() {
+        sched.sent(neig.Name());
+        Check.is_true(!sched.trigger(neig), "update deferred before stop");
+        int n = periodic.size();
+        int d = deferred.size();
+        sched.stop();
+        advance_to(ms() + 3 * PERIOD);
+        Check.equal(n, periodic.size(), "no periodic announcement after stop");
+        Check.equal(d, deferred.size(), "no deferred update after stop");
+    }
+
+    /**
+     * Run the tests
+     */
+    static void run() {
+        AnnounceSchedulerTest t = new AnnounceSchedulerTest();
+        t.test_periodic();
+        t.test_trigger();
+        t.test_stop();
+    }
+}
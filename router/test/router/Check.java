@@ -0,0 +1,86 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * Check.java
+ *
+ * Assertions used by the tests
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.Objects;
+
+/**
+ * Minimal assertions for the tests, which run without a test framework;
+ * each failure is written to the error output and counted
+ */
+final class Check {
+    /** Number of checks done */
+    private static int checks;
+    /** Number of checks that failed */
+    private static int failures;
+
+    private Check() {
+    }
+
+    /**
+     * Check a condition
+     * @param cond  condition
+     * @param what  description of the check
+     */
+    static void is_true(boolean cond, String what) {
+        checks++;
+        if (!cond) {
+            failures++;
+            System.err.println("FAILED: " + what);
+        }
+    }
+
+    /**
+     * Check that two values are equal
+     * @param expected  expected value
+     * @param got       value obtained
+     * @param what      description of the check
+     */
+    static void equal(Object expected, Object got, String what) {
+        is_true(Objects.equals(expected, got), what + " - expected <" + expected
+                + "> got <" + got + ">");
+    }
+
+    /**
+     * Check that a code block throws an exception of a type
+     * @param type  exception type expected
+     * @param code  code to run
+     * @param what  description of the check
+     */
+    static void throws_ex(Class<? extends Exception> type, Code code, String what) {
+        try {
+            code.run();
+            is_true(false, what + " - no exception");
+        } catch (Exception e) {
+            is_true(type.isInstance(e), what + " - got " + e);
+        }
+    }
+
+    /**
+     * Code that may throw an exception
+     */
+    interface Code {
+        void run() throws Exception;
+    }
+
+    /**
+     * Return the number of checks done
+     * @return number of checks
+     */
+    static int checks() { return checks; }
+
+    /**
+     * Return the number of checks that failed
+     * @return number of failures
+     */
+    static int failures() { return failures; }
+}
@@ -0,0 +1,138 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * HolddownTest.java
+ *
+ * Tests of the end of hold down
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * Runs three routers on a SimFabric: A-B with cost 1, and A-C and B-C with
+ * cost 5. When A-B fails, A holds down the route to B; when the hold down
+ * ends, only that destination is recalculated, through C
+ */
+final class HolddownTest {
+    /** Hold down time [s] */
+    private final static int HOLDDOWN = 3;
+    /** Log that discards the messages */
+    private final static Log LOG = s -> { };
+
+    private final SimFabric fabric = new SimFabric(1, 0, 0, new Random(1), LOG);
+    private final RouterNode[] nodes = new RouterNode[3];
+
+    private HolddownTest() {
+    }
+
+    /**
+     * Return the address of a router
+     * @param i  router index
+     * @return IP address
+     */
+    private static String ip(int i) {
+        return "10.0.0." + (i + 1);
+    }
+
+    /**
+     * Create and start the routers
+     * @throws IOException if a router failed to start
+     */
+    private void start() throws IOException {
+        for (int i = 0; i < nodes.length; i++) {
+            SimFabric.Endpoint ep = fabric.add_endpoint(new InetSocketAddress(ip(i), 20000));
+            nodes[i] = new RouterNode(LOG, new RouterListener() { }, fabric.timers());
+            ep.attach(nodes[i]);
+            RouterConfig cfg = new RouterConfig();
+            cfg.name = (char) ('A' + i);
+            cfg.period = 1;
+            cfg.holddown = true;
+            cfg.holddown_time = HOLDDOWN;
+            cfg.data_workers = 1;
+            cfg.seed = i + 1;
+            nodes[i].start(cfg, ep, ep);
+        }
+        link(0, 1, 1, true);
+        link(0, 2, 5, true);
+        link(1, 2, 5, true);
+    }
+
+    /**
+     * Add or remove a link in both routers
+     * @param a     first router
+     * @param b     second router
+     * @param cost  link cost
+     * @param up    true to add, false to remove
+     */
+    private void link(int a, int b, int cost, boolean up) {
+        if (up) {
+            nodes[a].add_neighbour((char) ('A' + b), ip(b), 20000, cost);
+            nodes[b].add_neighbour((char) ('A' + a), ip(a), 20000, cost);
+        } else {
+            nodes[a].remove_neighbour((char) ('A' + b));
+            nodes[b].remove_neighbour((char) ('A' + a));
+        }
+    }
+
+    /**
+     * Run the simulation until a time
+     * @param s  virtual time [s]
+     */
+    private void run_until(double s) {
+        fabric.run_until((long) (s * 1e9));
+    }
+
+    /**
+     * Return the route of router A to a destination
+     * @param dest  destination
+     * @return the route, or null
+     */
+    private RouteEntry route(char dest) {
+        return nodes[0].routing().table().get_RouteEntry(dest);
+    }
+
+    /**
+     * The hold down entry is replaced when the hold down ends
+     * @throws IOException if a router failed to start
+     */
+    private void test_end() throws IOException {
+        start();
+        run_until(20);
+        Check.equal(1, (route('B') == null) ? -1 : route('B').dist, "route to B before the failure");
+        Check.equal(5, (route('C') == null) ? -1 : route('C').dist, "route to C before the failure");
+
+        link(0, 1, 1, false);
+        run_until(21);
+        RouteEntry hd = route('B');
+        Check.is_true((hd != null) && hd.is_holddown(), "route to B in hold down");
+        Check.equal(RouterNode.MAX_DISTANCE, (hd == null) ? -1 : hd.dist, "hold down distance");
+        Check.is_true((hd != null) && !hd.is_holddown_expired(), "hold down running");
+        RouteEntry to_c = route('C');
+
+        run_until(20 + HOLDDOWN + 2);
+        RouteEntry re = route('B');
+        Check.is_true((re != null) && (re != hd) && !re.is_holddown(), "hold down ended");
+        Check.equal(10, (re == null) ? -1 : re.dist, "route to B through C");
+        Check.equal('C', (re == null) ? ' ' : re.next_hop, "next hop to B");
+        Check.is_true((hd != null) && hd.is_holddown_expired() && hd.is_holddown(),
+                "expired entry left unchanged");
+        Check.is_true(route('C') == to_c, "route to C not recalculated");
+        for (RouterNode n : nodes)
+            n.stop();
+    }
+
+    /**
+     * Run the tests
+     * @throws IOException if a router failed to start
+     */
+    static void run() throws IOException {
+        new HolddownTest().test_end();
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * LinkStateTest.java
+ *
+ * Tests of the shortest path calculation
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Changes the links of a random topology, and compares the incremental
+ * result with a full calculation over the same database
+ */
+final class LinkStateTest {
+    /** Number of routers */
+    private final static int N = 60;
+    /** LSA TTL [s] */
+    private final static int TTL = 60;
+    /** Log that discards the messages */
+    private final static Log LOG = s -> { };
+    /** Clock of the LSAs; they never expire in the test */
+    private final static TimingWheel.Clock CLOCK = () -> 0;
+
+    /** Link costs; 0 if there is no link */
+    private final int[][] cost = new int[N][N];
+    /** Sequence number of the LSA of each router */
+    private final int[] seq = new int[N];
+    private final Random rnd = new Random(5);
+
+    private LinkStateTest() {
+    }
+
+    /**
+     * Return the name of a router
+     * @param i  router index
+     * @return router name
+     */
+    private static char name(int i) {
+        return (char) ('A' + i);
+    }
+
+    /**
+     * Return the links of a router
+     * @param i  router index
+     * @return links
+     */
+    private Entry[] links(int i) {
+        ArrayList<Entry> l = new ArrayList<>();
+        for (int j = 0; j < N; j++) {
+            if (cost[i][j] > 0)
+                l.add(new Entry(name(j), cost[i][j]));
+        }
+        return l.toArray(new Entry[l.size()]);
+    }
+
+    /**
+     * Install the current LSA of a router
+     * @param ls  link state database of router 0
+     * @param i   router index
+     */
+    private void install(LinkState ls, int i) {
+        if (i == 0)
+            ls.originate(links(0), TTL, false);
+        else
+            ls.install(name(i), ++seq[i], links(i), TTL);
+    }
+
+    /**
+     * Set the cost of a link in both directions
+     * @param a  first router
+     * @param b  second router
+     * @param c  cost, or 0 to remove the link
+     */
+    private void set(int a, int b, int c) {
+        cost[a][b] = c;
+        cost[b][a] = c;
+    }
+
+    /**
+     * Compare the routes of router 0 with a full calculation
+     * @param ls    link state database updated incrementally
+     * @param what  description of the change
+     */
+    private void compare(LinkState ls, String what) {
+        LinkState full = new LinkState(name(0), LOG, CLOCK);
+        full.originate(links(0), TTL, false);
+        for (int i = 1; i < N; i++)
+            full.install(name(i), 1, links(i), TTL);
+        full.spf();
+        for (int i = 1; i < N; i++) {
+            RouteEntry a = ls.route(name(i));
+            RouteEntry b = full.route(name(i));
+            Check.equal((b == null) ? null : b.dist, (a == null) ? null : a.dist,
+                    what + ": distance to " + name(i));
+            if ((a != null) && (cost[0][a.next_hop - 'A'] == 0))
+                Check.is_true(false, what + ": next hop " + a.next_hop + " is a neighbour");
+        }
+    }
+
+    /**
+     * Apply random link changes, one LSA pair at a time
+     */
+    private void test_changes() {
+        for (int i = 0; i < N; i++) {
+            set(i, (i + 1) % N, 1 + rnd.nextInt(9));
+            set(i, rnd.nextInt(N), 1 + rnd.nextInt(9));
+        }
+        for (int i = 0; i < N; i++)
+            cost[i][i] = 0;
+        LinkState ls = new LinkState(name(0), LOG, CLOCK);
+        for (int i = 0; i < N; i++)
+            install(ls, i);
+        Set<Character> changed = ls.spf();
+        Check.equal(N - 1, changed.size(), "all routers reachable after the first SPF");
+        compare(ls, "initial");
+        for (int k = 0; k < 200; k++) {
+            int a = rnd.nextInt(N), b = rnd.nextInt(N);
+            if (a == b)
+                continue;
+            int r = rnd.nextInt(4);
+            int c = (r == 0) ? 0 : ((r == 1) ? cost[a][b] + 1 + rnd.nextInt(5)
+                    : Math.max(1, cost[a][b] - 1 - rnd.nextInt(5)));
+            set(a, b, c);
+            install(ls, a);
+            install(ls, b);
+            ls.spf();
+            compare(ls, "change " + k + " " + name(a) + "-" + name(b) + "=" + c);
+        }
+        String st = ls.statistics();
+        Check.is_true(!st.contains("incremental:0 "), "incremental SPF used (" + st + ")");
+    }
+
+    /**
+     * Run the tests
+     */
+    static void run() {
+        new LinkStateTest().test_changes();
+    }
+}
@@ -0,0 +1,310 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * PacketCodecTest.java
+ *
+ * Tests of the packet encoders and readers
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Encodes HELLO, ROUTE_DELTA and DATA packets and decodes them with the
+ * flyweight readers
+ */
+final class PacketCodecTest {
+    /** Source address of the decoded packets */
+    private final static InetSocketAddress SRC = new InetSocketAddress("127.0.0.1", 20000);
+
+    private PacketCodecTest() {
+    }
+
+    /**
+     * Copy an encoded packet; the codec reuses its output buffer
+     * @param b  encoded packet
+     * @return new buffer with the packet, with room to forward DATA packets
+     */
+    private static ByteBuffer copy(ByteBuffer b) {
+        ByteBuffer c = ByteBuffer.allocate(b.remaining() + PacketView.TAILROOM);
+        c.put(b.duplicate());
+        c.flip();
+        return c;
+    }
+
+    /**
+     * Decode the common header of an encoded packet
+     * @param b  encoded packet
+     * @return view positioned after the header
+     */
+    private static PacketView view(ByteBuffer b) {
+        PacketView v = new PacketView();
+        Check.is_true(v.wrap(copy(b), SRC), "header decoded");
+        return v;
+    }
+
+    /**
+     * Return the contents of a vector, by destination
+     * @param vec  vector
+     * @return map from destination to distance
+     */
+    private static TreeMap<Character, Integer> map(Entry[] vec) {
+        TreeMap<Character, Integer> m = new TreeMap<>();
+        for (Entry e : vec) {
+            Check.is_true(m.put(e.dest, e.dist) == null, "no duplicated destination " + e.dest);
+        }
+        return m;
+    }
+
+    /**
+     * Return a vector with consecutive destinations
+     * @param first  first destination
+     * @param n      number of entries
+     * @return vector
+     */
+    private static List<Entry> vector(char first, int n) {
+        List<Entry> vec = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            vec.add(new Entry((char) (first + i), 1 + i % (RouterNode.MAX_DISTANCE - 1)));
+        }
+        return vec;
+    }
+
+    /**
+     * The plain HELLO keeps the baseline size; the capabilities byte is
+     * optional
+     * @throws IOException if a packet is not decoded
+     */
+    private static void test_hello() throws IOException {
+        PacketCodec pc = PacketCodec.get();
+        PacketView v = view(pc.encode_HELLO('A', 7));
+        Check.equal(PacketView.HEADER_LEN + 4, v.length(), "plain HELLO length");
+        Check.equal(RouterNode.PKT_HELLO, v.code(), "HELLO code");
+        Check.equal('A', v.sender(), "HELLO sender");
+        pc.hello.wrap(v.buffer());
+        Check.equal(7, pc.hello.dist(), "plain HELLO distance");
+        Check.is_true(!pc.hello.has_caps(), "plain HELLO has no capabilities");
+
+        byte caps = (byte) (RouterNode.CAP_ROUTE_DELTA | RouterNode.CAP_COMPACT);
+        v = view(pc.encode_HELLO('B', 3, caps));
+        Check.equal(PacketView.HEADER_LEN + 5, v.length(), "HELLO with capabilities length");
+        pc.hello.wrap(v.buffer());
+        Check.equal(3, pc.hello.dist(), "HELLO with capabilities distance");
+        Check.is_true(pc.hello.has_caps(), "HELLO has capabilities");
+        Check.equal(caps, pc.hello.caps(), "HELLO capabilities");
+
+        ByteBuffer b = copy(pc.encode_HELLO('C', 1));
+        b.limit(b.limit() - 1);
+        PacketView t = new PacketView();
+        t.wrap(b, SRC);
+        Check.throws_ex(IOException.class, () -> pc.hello.wrap(t.buffer()), "short HELLO rejected");
+    }
+
+    /**
+     * Compact varints: one byte up to 127, and 7 more bits per byte
+     */
+    private static void test_varint() {
+        Check.equal(1, PacketCodec.varint_len(0), "varint_len(0)");
+        Check.equal(1, PacketCodec.varint_len(127), "varint_len(127)");
+        Check.equal(2, PacketCodec.varint_len(128), "varint_len(128)");
+        Check.equal(2, PacketCodec.varint_len(16383), "varint_len(16383)");
+        Check.equal(3, PacketCodec.varint_len(16384), "varint_len(16384)");
+        Check.equal((1 << PacketCodec.DIST_BITS) | 5, PacketCodec.compact_entry(1, 5),
+                "compact_entry(1, 5)");
+        // Consecutive destinations at a short distance use one byte each
+        Check.equal(1, PacketCodec.varint_len(PacketCodec.compact_entry(1, RouterNode.MAX_DISTANCE)),
+                "consecutive compact entry length");
+    }
+
+    /**
+     * Encode and decode a ROUTE_DELTA delta, and apply it to the old vector
+     * @param compact  true for compact entries
+     * @throws IOException if the packet is not decoded
+     */
+    private static void test_route_delta(boolean compact) throws IOException {
+        PacketCodec pc = PacketCodec.get();
+        String mode = compact ? "compact" : "plain";
+        Entry[] old = { new Entry('A', 1), new Entry('B', 2), new Entry('C', 3),
+            new Entry('D', 4), new Entry((char) 0x1234, 5) };
+        List<Entry> upd = Arrays.asList(new Entry('B', 6), new Entry('E', 1),
+                new Entry((char) 0xFFFF, RouterNode.MAX_DISTANCE));
+        List<Character> wd = Arrays.asList('C', (char) 0x1234);
+        byte flags = compact ? PacketCodec.FLAG_COMPACT : 0;
+        PacketView v = view(pc.encode_ROUTE_DELTA('X', 15, flags, 42, upd, wd));
+        Check.equal(RouterNode.PKT_ROUTE_DELTA, v.code(), mode + " ROUTE_DELTA code");
+        PacketCodec.RouteDeltaReader rd = pc.route_delta;
+        rd.wrap(v.buffer());
+        Check.equal(15, rd.TTL(), mode + " ROUTE_DELTA TTL");
+        Check.equal(42, rd.seq(), mode + " ROUTE_DELTA seq");
+        Check.is_true(!rd.full() && !rd.fragmented(), mode + " ROUTE_DELTA is one delta");
+        Check.equal(compact, rd.compact(), mode + " ROUTE_DELTA compact flag");
+        Check.equal(3, rd.count(), mode + " ROUTE_DELTA entries");
+        Check.equal(2, rd.wd_count(), mode + " ROUTE_DELTA withdrawals");
+        Check.equal((char) 0xFFFF, rd.dest(2), mode + " ROUTE_DELTA wide destination");
+        Check.equal((char) 0x1234, rd.withdrawn(1), mode + " ROUTE_DELTA wide withdrawal");
+
+        TreeMap<Character, Integer> want = new TreeMap<>();
+        want.put('A', 1);
+        want.put('B', 6);
+        want.put('D', 4);
+        want.put('E', 1);
+        want.put((char) 0xFFFF, RouterNode.MAX_DISTANCE);
+        Check.equal(want, map(rd.apply(old)), mode + " ROUTE_DELTA applied");
+
+        // A delta that repeats the old values returns the old vector
+        v = view(pc.encode_ROUTE_DELTA('X', 15, flags, 43,
+                Arrays.asList(new Entry('A', 1)), Arrays.asList('Z')));
+        rd.wrap(v.buffer());
+        Check.is_true(rd.apply(old) == old, mode + " ROUTE_DELTA without changes");
+
+        // A full vector replaces the old one
+        v = view(pc.encode_ROUTE_DELTA('X', 15, (byte) (flags | PacketCodec.FLAG_FULL), 44,
+                Arrays.asList(new Entry('A', 2)), new ArrayList<>()));
+        rd.wrap(v.buffer());
+        Check.is_true(rd.full(), mode + " full ROUTE_DELTA");
+        Check.equal(1, rd.apply(old).length, mode + " full ROUTE_DELTA replaces the vector");
+
+        // Malformed packets
+        ByteBuffer b = copy(pc.encode_ROUTE_DELTA('X', 15, flags, 45, upd, wd));
+        b.limit(b.limit() - 1);
+        PacketView t = new PacketView();
+        t.wrap(b, SRC);
+        Check.throws_ex(IOException.class, () -> rd.wrap(t.buffer()),
+                mode + " truncated ROUTE_DELTA rejected");
+        PacketView d = view(pc.encode_ROUTE_DELTA('X', 15, flags, 46,
+                Arrays.asList(new Entry('A', 1), new Entry('A', 2)), new ArrayList<>()));
+        if (compact)
+            Check.throws_ex(IOException.class, () -> rd.wrap(d.buffer()),
+                    "compact ROUTE_DELTA with duplicated address rejected");
+        PacketView w = view(pc.encode_ROUTE_DELTA('X', 15, (byte) (flags | PacketCodec.FLAG_FULL),
+                47, upd, wd));
+        Check.throws_ex(IOException.class, () -> rd.wrap(w.buffer()),
+                mode + " full ROUTE_DELTA with withdrawals rejected");
+    }
+
+    /**
+     * Split a full vector of the maximum size in fragments, and rebuild it
+     * from the fragments
+     * @param compact  true for compact entries
+     * @throws IOException if a fragment is not decoded
+     */
+    private static void test_fragments(boolean compact) throws IOException {
+        PacketCodec pc = PacketCodec.get();
+        String mode = compact ? "compact" : "plain";
+        List<Entry> upd = vector('!', RouterNode.MAX_ROUTINGTABLE_SIZE);
+        List<Character> wd = new ArrayList<>();
+        List<int[]> cuts = Routing.fragment(upd, wd, compact);
+        int frags = cuts.size() - 1;
+        int per_frag = (RouterNode.ROUTE_MTU - PacketCodec.ROUTE_DELTA_HEADER) / PacketCodec.ENTRY_LEN;
+        if (compact)
+            Check.equal(1, frags, "compact full vector fits in one fragment");
+        else
+            Check.equal((upd.size() + per_frag - 1) / per_frag, frags, "plain fragments");
+        Check.equal(upd.size(), cuts.get(frags)[0], mode + " fragments cover the vector");
+
+        byte flags = (byte) (PacketCodec.FLAG_FULL | (compact ? PacketCodec.FLAG_COMPACT : 0));
+        Entry[] vec = new Entry[0];
+        for (int k = 0; k < frags; k++) {
+            int[] a = cuts.get(k), b = cuts.get(k + 1);
+            PacketView v = view(pc.encode_ROUTE_DELTA('X', 15, flags, 9, k, frags,
+                    upd.subList(a[0], b[0]), wd.subList(a[1], b[1])));
+            Check.is_true(v.length() <= RouterNode.ROUTE_MTU,
+                    mode + " fragment " + k + " fits in ROUTE_MTU (" + v.length() + ")");
+            pc.route_delta.wrap(v.buffer());
+            Check.equal(frags > 1, pc.route_delta.fragmented(), mode + " fragment flag");
+            Check.equal(k, pc.route_delta.frag(), mode + " fragment index");
+            Check.equal(frags, pc.route_delta.frags(), mode + " number of fragments");
+            Check.equal(9, pc.route_delta.seq(), mode + " fragment seq");
+            vec = pc.route_delta.apply(vec);
+        }
+        Check.equal(map(upd.toArray(new Entry[0])), map(vec), mode + " vector rebuilt from fragments");
+
+        // A large delta with withdrawals is also split
+        List<Entry> few = vector('!', 10);
+        List<Character> many = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            many.add((char) (0x1000 + 37 * i));
+        }
+        cuts = Routing.fragment(few, many, compact);
+        frags = cuts.size() - 1;
+        Check.is_true(frags >= (compact ? 1 : 2), mode + " withdrawals are fragmented");
+        Check.is_true(Arrays.equals(new int[] { few.size(), many.size() }, cuts.get(frags)),
+                mode + " fragments cover the withdrawals");
+        flags = compact ? PacketCodec.FLAG_COMPACT : 0;
+        for (int k = 0; k < frags; k++) {
+            int[] a = cuts.get(k), b = cuts.get(k + 1);
+            PacketView v = view(pc.encode_ROUTE_DELTA('X', 15, flags, 10, k, frags,
+                    few.subList(a[0], b[0]), many.subList(a[1], b[1])));
+            Check.is_true(v.length() <= RouterNode.ROUTE_MTU,
+                    mode + " withdrawal fragment " + k + " fits in ROUTE_MTU");
+            pc.route_delta.wrap(v.buffer());
+            Check.equal(b[1] - a[1], pc.route_delta.wd_count(), mode + " withdrawals in fragment");
+        }
+    }
+
+    /**
+     * Encode a DATA packet and decode it
+     * @throws IOException if a packet is not decoded
+     */
+    private static void test_data() throws IOException {
+        PacketCodec pc = PacketCodec.get();
+        PacketView v = view(pc.encode_DATA('A', 'C', 7, "hello", "AB", 'X'));
+        Check.equal(RouterNode.PKT_DATA, v.code(), "narrow DATA code");
+        pc.data.wrap(v.buffer(), false);
+        Check.equal('C', pc.data.dest(), "DATA destination");
+        Check.equal(7, pc.data.seq(), "DATA seq");
+        Check.equal("hello", pc.data.msg(), "DATA message");
+        Check.equal("ABX", pc.data.path(), "narrow DATA path");
+        Check.is_true(!pc.data.wide(), "narrow DATA is not wide");
+    }
+
+    /**
+     * Encode DATA packets with wide names in the path
+     * @throws IOException if a packet is not decoded
+     */
+    private static void test_data_wide() throws IOException {
+        PacketCodec pc = PacketCodec.get();
+        String path = "A" + (char) 0x1234;
+        PacketView v = view(pc.encode_DATA('A', (char) 0x2000, 8, "hi", path, (char) 0x0300));
+        Check.equal(RouterNode.PKT_DATA_WIDE, v.code(), "wide DATA code");
+        pc.data.wrap(v.buffer(), true);
+        Check.equal((char) 0x2000, pc.data.dest(), "wide DATA destination");
+        Check.equal("hi", pc.data.msg(), "wide DATA message");
+        Check.equal(3, pc.data.path_len(), "wide DATA path length");
+        Check.equal(path + (char) 0x0300, pc.data.path(), "wide DATA path");
+
+        // A wide local name also makes the packet wide
+        v = view(pc.encode_DATA('A', 'C', 9, "x", "AB", (char) 0x0100));
+        Check.equal(RouterNode.PKT_DATA_WIDE, v.code(), "DATA with wide local name");
+
+        // Decoding a wide packet as narrow fails the length checks
+        PacketView w = view(pc.encode_DATA('A', 'C', 10, "x", path, 'X'));
+        Check.throws_ex(IOException.class, () -> pc.data.wrap(w.buffer(), false),
+                "wide DATA decoded as narrow rejected");
+    }
+
+    /**
+     * Run the tests
+     * @throws IOException if a packet is not decoded
+     */
+    static void run() throws IOException {
+        test_hello();
+        test_varint();
+        test_route_delta(false);
+        test_route_delta(true);
+        test_fragments(false);
+        test_fragments(true);
+        test_data();
+        test_data_wide();
+    }
+}
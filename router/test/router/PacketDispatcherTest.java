@@ -0,0 +1,110 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * PacketDispatcherTest.java
+ *
+ * Tests of the packet dispatcher
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Exhausts the pool of receive views, and fills the control queue while
+ * the control executor is busy
+ */
+final class PacketDispatcherTest {
+
+    /** Log that discards the messages */
+    private final static Log LOG = s -> { };
+    /** Source address of the packets */
+    private final static InetSocketAddress SRC = new InetSocketAddress("127.0.0.1", 20000);
+
+    private PacketDispatcherTest() {
+    }
+
+    /**
+     * Create a router that is not started; it ignores the packets
+     * @return router
+     */
+    private static RouterNode router() {
+        return new RouterNode(LOG, null, new TimingWheel(TimingWheel.SYSTEM, 10, 64, null));
+    }
+
+    /**
+     * No more than MAX_VIEWS views are created; a released view is reused
+     */
+    private static void test_pool() {
+        PacketDispatcher pd = new PacketDispatcher(router(), 1);
+        List<PacketView> used = new ArrayList<>();
+        PacketView v;
+        while ((used.size() <= PacketDispatcher.MAX_VIEWS) && ((v = pd.take(0)) != null))
+            used.add(v);
+        Check.equal(PacketDispatcher.MAX_VIEWS, used.size(), "views created up to the limit");
+        Check.equal(PacketDispatcher.VIEW_CAPACITY, used.get(0).store().capacity(), "view capacity");
+        long t0 = System.nanoTime();
+        Check.is_true(pd.take(20) == null, "no view while all are in use");
+        Check.is_true(System.nanoTime() - t0 >= 15000000, "take waited for a view");
+        PacketView r = used.remove(0);
+        r.store().put((byte) 1);
+        pd.release(r);
+        v = pd.take(0);
+        Check.is_true(v == r, "released view reused");
+        Check.equal(0, v.store().position(), "released view cleared");
+        pd.shutdown();
+    }
+
+    /**
+     * Packets that do not fit in the control queue are dropped and counted,
+     * and their views return to the pool
+     * @throws InterruptedException if interrupted
+     */
+    private static void test_drop() throws InterruptedException {
+        RouterNode node = router();
+        PacketDispatcher pd = new PacketDispatcher(node, 1);
+        CountDownLatch busy = new CountDownLatch(1);
+        pd.submit_control(() -> {
+            try {
+                busy.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        int n = PacketDispatcher.CONTROL_PACKETS + 10;
+        for (int i = 0; i < n; i++) {
+            PacketView v = pd.take(0);
+            ByteBuffer b = v.store();
+            b.put(RouterNode.PKT_HELLO).putChar('B').putInt(1);
+            b.flip();
+            v.wrap(b, SRC);
+            pd.dispatch(v);
+        }
+        Check.equal(10L, node.DROPPED_rcv.sum(), "packets dropped with the control queue full");
+        // The views of the dropped packets are idle again
+        int idle = 0;
+        while ((pd.take(0) != null) && (idle <= PacketDispatcher.MAX_VIEWS))
+            idle++;
+        Check.equal(PacketDispatcher.MAX_VIEWS - PacketDispatcher.CONTROL_PACKETS, idle,
+                "views of the dropped packets released");
+        busy.countDown();
+        pd.shutdown();
+        Check.equal(10L, node.DROPPED_rcv.sum(), "no drop at the shutdown");
+    }
+
+    /**
+     * Run the tests
+     * @throws InterruptedException if interrupted
+     */
+    static void run() throws InterruptedException {
+        test_pool();
+        test_drop();
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RecomputeSchedulerTest.java
+ *
+ * Tests of the recalculation scheduler
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the scheduler on the calling thread, with a timing wheel advanced
+ * by a manual clock
+ */
+final class RecomputeSchedulerTest {
+    /** Tick of the timing wheel [ms] */
+    private final static int TICK = 10;
+    /** Coalescing window [ms] */
+    private final static int WINDOW = 100;
+
+    /** Current time of the manual clock [ns] */
+    private long now;
+    private final TimingWheel wheel = new TimingWheel(() -> now, TICK, 64, null);
+    /** send_always flag of each run */
+    private final List<Boolean> runs = new ArrayList<>();
+    private final RecomputeScheduler sched = new RecomputeScheduler(runs::add, Runnable::run,
+            wheel, WINDOW);
+
+    private RecomputeSchedulerTest() {
+    }
+
+    /**
+     * Move the clock tick by tick until a time
+     * @param ms  new time [ms]
+     */
+    private void advance_to(long ms) {
+        while (TimeUnit.NANOSECONDS.toMillis(now) < ms) {
+            now += TimeUnit.MILLISECONDS.toNanos(TICK);
+            wheel.advance(now);
+        }
+    }
+
+    /**
+     * A burst of events runs the action once per window
+     */
+    private void test_burst() {
+        sched.request(false);
+        Check.equal(Arrays.asList(false), runs, "first event runs now");
+        Check.equal(1, sched.last_merged(), "first run handles one event");
+
+        advance_to(10);
+        sched.request(false);
+        sched.request(true);
+        sched.request(false);
+        advance_to(WINDOW - TICK);
+        Check.equal(1, runs.size(), "burst waits for the end of the window");
+        advance_to(WINDOW + TICK);
+        Check.equal(Arrays.asList(false, true), runs, "burst merged into one run, sending always");
+        Check.equal(3, sched.last_merged(), "events merged into the run");
+
+        advance_to(4 * WINDOW);
+        sched.request(false);
+        Check.equal(Arrays.asList(false, true, false), runs,
+                "event after the window runs now, without sending always");
+        Check.equal(5L, sched.events(), "events counted");
+        Check.equal(3L, sched.runs(), "runs counted");
+    }
+
+    /**
+     * stop() cancels the pending run
+     */
+    private void test_stop() {
+        sched.request(true);
+        sched.stop();
+        advance_to(TimeUnit.NANOSECONDS.toMillis(now) + 3 * WINDOW);
+        Check.equal(3, runs.size(), "no run after stop");
+    }
+
+    /**
+     * Run the tests
+     */
+    static void run() {
+        RecomputeSchedulerTest t = new RecomputeSchedulerTest();
+        t.test_burst();
+        t.test_stop();
+    }
+}
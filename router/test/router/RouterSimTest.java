@@ -0,0 +1,103 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RouterSimTest.java
+ *
+ * Convergence regression of the simulated network
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.io.IOException;
+
+/**
+ * Runs the simulator in several scenarios, and checks the routes at the
+ * end of each phase
+ */
+final class RouterSimTest {
+
+    private RouterSimTest() {
+    }
+
+    /**
+     * Run a scenario
+     * @param args  simulator arguments
+     * @return routes matching the shortest paths, and router pairs, of each phase
+     * @throws IOException if a router failed to start
+     */
+    private static long[][] simulate(String... args) throws IOException {
+        long[][] ok = RouterSim.simulate(args);
+        System.out.println();
+        return ok;
+    }
+
+    /**
+     * Check that all the routes converged at the end of the phases
+     * @param ok    results of the phases
+     * @param what  description of the scenario
+     */
+    private static void converged(long[][] ok, String what) {
+        for (int i = 0; i < ok.length; i++) {
+            Check.equal(ok[i][1], ok[i][0], what + ": routes ok in phase " + i);
+        }
+    }
+
+    /**
+     * Without losses, all the routes converge to the shortest paths, also
+     * after a link fails and after it is restored
+     * @throws IOException if a router failed to start
+     */
+    private static void test_no_loss() throws IOException {
+        converged(simulate("-n", "40", "-seed", "1", "-fail", "200", "-restore", "400",
+                "-quiet"), "fail and restore");
+        for (int seed = 1; seed <= 3; seed++) {
+            converged(simulate("-n", "40", "-seed", Integer.toString(seed), "-sendifchanges",
+                    "-fail", "200", "-restore", "400", "-quiet"),
+                    "fail and restore with send if changes, seed " + seed);
+        }
+    }
+
+    /**
+     * With hold down, the hold down entries end and the routes converge
+     * after a link fails and after it is restored
+     * @throws IOException if a router failed to start
+     */
+    private static void test_holddown() throws IOException {
+        for (int seed = 1; seed <= 3; seed++) {
+            converged(simulate("-n", "20", "-seed", Integer.toString(seed), "-holddown", "5",
+                    "-fail", "100", "-duration", "300", "-quiet"), "hold down, seed " + seed);
+            converged(simulate("-n", "40", "-seed", Integer.toString(seed), "-holddown", "5",
+                    "-sendifchanges", "-fail", "200", "-restore", "400", "-quiet"),
+                    "hold down with send if changes, seed " + seed);
+        }
+    }
+
+    /**
+     * With 10% losses, the neighbour vectors survive the lost updates: at
+     * most a few routes are being repaired at the end of the losses, and
+     * all converge in the settle period without losses
+     * @throws IOException if a router failed to start
+     */
+    private static void test_loss() throws IOException {
+        for (int seed = 1; seed <= 3; seed++) {
+            long[][] ok = simulate("-n", "40", "-loss", "0.1", "-seed", Integer.toString(seed),
+                    "-settle", "60", "-quiet");
+            Check.is_true(ok[0][0] >= ok[0][1] * 99 / 100, "routes ok with 10% losses, seed "
+                    + seed + " (" + ok[0][0] + "/" + ok[0][1] + ")");
+            Check.equal(ok[1][1], ok[1][0], "routes ok after the losses, seed " + seed);
+        }
+    }
+
+    /**
+     * Run the tests
+     * @throws IOException if a router failed to start
+     */
+    static void run() throws IOException {
+        test_no_loss();
+        test_holddown();
+        test_loss();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * RoutingTableTest.java
+ *
+ * Tests of the routing table and of the equal cost next hops
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Fills the routing table in random order, and spreads flows over equal
+ * cost next hops
+ */
+final class RoutingTableTest {
+    /** Log that discards the messages */
+    private final static Log LOG = s -> { };
+
+    private RoutingTableTest() {
+    }
+
+    /**
+     * Add, replace and delete routes; the table stays sorted
+     */
+    private static void test_table() {
+        List<Character> dests = new ArrayList<>();
+        for (int i = 0; i < RouterNode.MAX_ROUTINGTABLE_SIZE; i++) {
+            dests.add((char) (NodeId.MIN + 50 * i));
+        }
+        Collections.shuffle(dests, new Random(3));
+        RoutingTable tab = new RoutingTable();
+        for (char d : dests) {
+            tab.add_route(new RouteEntry(d, 'B', d % RouterNode.MAX_DISTANCE, LOG));
+        }
+        Check.equal(dests.size(), tab.size(), "routes added");
+        Entry[] vec = tab.get_Entry_vector();
+        boolean sorted = true;
+        for (int i = 1; i < vec.length; i++) {
+            sorted &= vec[i - 1].dest < vec[i].dest;
+        }
+        Check.is_true(sorted, "table sorted by destination");
+        char wide = (char) (NodeId.MIN + 50 * 1000);
+        Check.equal(wide % RouterNode.MAX_DISTANCE, tab.distance(wide), "distance to a wide id");
+        Check.equal('B', tab.nextHop(wide), "next hop to a wide id");
+        Check.equal(-1, tab.distance('"'), "no distance without route");
+        Check.equal(' ', tab.nextHop('"'), "no next hop without route");
+
+        // Replace a route
+        tab.add_route(new RouteEntry(wide, 'C', 2, LOG));
+        Check.equal(dests.size(), tab.size(), "route replaced");
+        Check.equal('C', tab.nextHop(wide), "replaced next hop");
+        Check.equal(2, tab.distance(wide), "replaced distance");
+
+        // A copy is independent, and equal until changed
+        RoutingTable cp = tab.copy();
+        Check.is_true(cp.equal_RoutingTable(tab), "copy equal to the table");
+        Check.is_true(!tab.delete_routeEntry(new RouteEntry(wide, 'C', 2, LOG)),
+                "only the entry in the table is deleted");
+        Check.is_true(cp.delete_routeEntry(cp.get_RouteEntry(wide)), "route deleted from the copy");
+        Check.equal(dests.size() - 1, cp.size(), "copy size after delete");
+        Check.equal(dests.size(), tab.size(), "table unchanged by the copy");
+        Check.is_true(!cp.equal_RoutingTable(tab), "copy differs after delete");
+        Check.equal(-1, cp.distance(wide), "deleted route");
+
+        // Delete all the routes, in another order
+        Collections.shuffle(dests, new Random(4));
+        for (char d : dests) {
+            if (d != wide)
+                cp.delete_routeEntry(cp.get_RouteEntry(d));
+        }
+        Check.equal(0, cp.size(), "all routes deleted");
+
+        // Snapshots are read-only
+        tab.freeze();
+        Check.throws_ex(IllegalStateException.class,
+                () -> tab.add_route(new RouteEntry('A', 'B', 1, LOG)), "frozen table not modified");
+    }
+
+    /**
+     * Flows keep their next hop, and are spread among the equal cost hops
+     */
+    private static void test_ecmp() {
+        RouteEntry re = new RouteEntry('Z', 'B', 3, LOG);
+        Check.equal('B', re.select_hop('A'), "single next hop");
+        re.next_hops = new char[] { 'B', 'C', 'D', 'E' };
+        HashMap<Character, Integer> use = new HashMap<>();
+        for (int s = 0; s < 1000; s++) {
+            char src = (char) (NodeId.MIN + s);
+            char h = re.select_hop(src);
+            Check.is_true(re.has_hop(h), "next hop of the flow is one of the hops");
+            Check.equal(h, re.select_hop(src), "flow keeps its next hop");
+            use.merge(h, 1, Integer::sum);
+        }
+        Check.equal(new HashSet<>(Arrays.asList('B', 'C', 'D', 'E')), use.keySet(), "all hops used");
+        for (int n : use.values()) {
+            Check.is_true((n > 150) && (n < 350), "flows spread among the hops (" + use + ")");
+        }
+        RoutingTable tab = new RoutingTable();
+        tab.add_route(re);
+        Check.equal(re.select_hop('A'), tab.nextHop('A', 'Z'), "table uses the flow next hop");
+    }
+
+    /**
+     * Run the tests
+     */
+    static void run() {
+        test_table();
+        test_ecmp();
+    }
+}
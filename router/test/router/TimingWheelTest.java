@@ -0,0 +1,127 @@
+/**
+ * Redes Integradas de Telecomunicacoes
+ * MIEEC/MEEC 2022/2023
+ *
+ * TimingWheelTest.java
+ *
+ * Tests of the timing wheel
+ *
+ * Updated on August 26, 2022
+ * @author  Luis Bernardo
+ */
+package router;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a wheel that is never started, advanced by a manual clock
+ */
+final class TimingWheelTest {
+    /** Tick [ms] */
+    private final static int TICK = 10;
+    /** Number of slots; one round is 80 ms */
+    private final static int SLOTS = 8;
+
+    /** Current time of the manual clock [ns] */
+    private long now;
+    /** Wheel under test */
+    private final TimingWheel wheel = new TimingWheel(() -> now, TICK, SLOTS, null);
+
+    private TimingWheelTest() {
+    }
+
+    /**
+     * Move the clock and run the ticks that ended
+     * @param ms  new time [ms]
+     */
+    private void advance(long ms) {
+        now = TimeUnit.MILLISECONDS.toNanos(ms);
+        wheel.advance(now);
+    }
+
+    /**
+     * Timeouts run after their deadline, within one tick
+     */
+    private void test_deadline() {
+        boolean[] ran = new boolean[1];
+        TimingWheel.Timeout t = wheel.schedule(() -> ran[0] = true, 25, TimeUnit.MILLISECONDS);
+        advance(20);
+        Check.is_true(!ran[0] && !t.is_expired(), "timeout not run before the deadline");
+        advance(25 + TICK);
+        Check.is_true(ran[0] && t.is_expired(), "timeout run one tick after the deadline");
+        Check.is_true(!t.cancel(), "expired timeout cannot be cancelled");
+    }
+
+    /**
+     * Timeouts longer than one round wait for their round
+     */
+    private void test_rounds() {
+        long t0 = now / 1000000;
+        boolean[] ran = new boolean[1];
+        wheel.schedule(() -> ran[0] = true, 205, TimeUnit.MILLISECONDS);
+        for (long t = t0; t < t0 + 200; t += TICK) {
+            advance(t);
+        }
+        Check.is_true(!ran[0], "timeout not run in the earlier rounds");
+        advance(t0 + 205 + TICK);
+        Check.is_true(ran[0], "timeout run in its round");
+    }
+
+    /**
+     * Cancelled timeouts do not run
+     */
+    private void test_cancel() {
+        boolean[] ran = new boolean[1];
+        TimingWheel.Timeout t = wheel.schedule(() -> ran[0] = true, 30, TimeUnit.MILLISECONDS);
+        Check.is_true(t.cancel(), "pending timeout cancelled");
+        Check.is_true(t.is_cancelled(), "timeout is cancelled");
+        Check.is_true(!t.cancel(), "timeout cancelled only once");
+        advance(now / 1000000 + 100);
+        Check.is_true(!ran[0] && !t.is_expired(), "cancelled timeout not run");
+    }
+
+    /**
+     * Timeouts run in the order of the deadlines, and a failed task does
+     * not stop the others
+     */
+    private void test_order() {
+        long t0 = now / 1000000;
+        List<Integer> order = new ArrayList<>();
+        wheel.schedule(() -> order.add(50), 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> order.add(10), 10, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> { throw new IllegalStateException("test"); }, 20, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> order.add(30), 30, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> order.add(130), 130, TimeUnit.MILLISECONDS);
+        for (long t = t0; t <= t0 + 200; t += TICK) {
+            advance(t);
+        }
+        Check.equal(Arrays.asList(10, 30, 50, 130), order, "timeouts run by deadline");
+    }
+
+    /**
+     * A jump of the clock runs all the ticks in between
+     */
+    private void test_jump() {
+        int[] ran = new int[1];
+        for (int i = 0; i < 20; i++) {
+            wheel.schedule(() -> ran[0]++, 15 * i, TimeUnit.MILLISECONDS);
+        }
+        advance(now / 1000000 + 1000);
+        Check.equal(20, ran[0], "all the timeouts run after a jump");
+    }
+
+    /**
+     * Run the tests
+     */
+    static void run() {
+        TimingWheelTest t = new TimingWheelTest();
+        t.test_deadline();
+        t.test_rounds();
+        t.test_cancel();
+        t.test_order();
+        t.test_jump();
+    }
+}